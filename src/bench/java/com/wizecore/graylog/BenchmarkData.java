@@ -0,0 +1,89 @@
+package com.wizecore.graylog;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Test data for benchmarks: message text, additional fields and exceptions of requested size.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class BenchmarkData {
+	private static final String TEXT = "Processed request \"GET /api/orders\" for user ünïcødé in 15 ms\tstatus=200\n";
+
+	private BenchmarkData() {
+	}
+
+	/**
+	 * Message text of specified length, with characters which need escaping.
+	 */
+	public static String text(int size) {
+		StringBuilder s = new StringBuilder(size);
+		while (s.length() < size) {
+			s.append(TEXT, 0, Math.min(TEXT.length(), size - s.length()));
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Additional fields in the format of fields option.
+	 */
+	public static String fieldsOption(int count) {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				s.append(",");
+			}
+			s.append("field").append(i).append("=value").append(i);
+		}
+		return s.length() > 0 ? s.toString() : null;
+	}
+
+	public static Map<String, String> fields(int count) {
+		Map<String, String> m = new LinkedHashMap<String, String>();
+		for (int i = 0; i < count; i++) {
+			m.put("field" + i, "value" + i);
+		}
+		return m;
+	}
+
+	/**
+	 * Exception with stack trace of specified depth, or null if depth is 0.
+	 */
+	public static Throwable exception(int depth) {
+		if (depth == 0) {
+			return null;
+		}
+
+		Throwable t = new IllegalStateException("Order service failed");
+		StackTraceElement[] trace = new StackTraceElement[depth];
+		for (int i = 0; i < depth; i++) {
+			trace[i] = new StackTraceElement("com.example.orders.OrderService" + (i % 7), "process" + i, "OrderService" + (i % 7) + ".java", 100 + i);
+		}
+		t.setStackTrace(trace);
+		return t;
+	}
+
+	/**
+	 * Message as produced by appenders, with stack trace in full message.
+	 */
+	public static GelfMessage message(int size, int fieldCount, int stackDepth) {
+		String text = text(size);
+		String shortMessage = text.length() > GelfMessage.MAX_MESSAGE_LENGTH ? text.substring(0, GelfMessage.MAX_MESSAGE_LENGTH - 1) : text;
+		GelfMessage m = new GelfMessage(shortMessage, text, System.currentTimeMillis(), GelfMessage.SYSLOG_INFO, null, 0);
+		Throwable t = exception(stackDepth);
+		if (t != null) {
+			m.setFullMessage(text + "\n" + GelfMessage.extractStacktrace(t, m, 0));
+			m.addField("exception", t.getClass().getName());
+		}
+		m.setHost("benchmark-host");
+		m.setFacility("gelf-logger");
+		for (Map.Entry<String, String> e: fields(fieldCount).entrySet()) {
+			m.addField(e.getKey(), e.getValue());
+		}
+		m.addField("thread_name", "main");
+		m.addField("logger", "com.example.orders.OrderService");
+		m.addField("char_length", text.length());
+		return m;
+	}
+}
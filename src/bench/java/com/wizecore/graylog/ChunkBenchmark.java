@@ -0,0 +1,68 @@
+package com.wizecore.graylog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wizecore.graylog.GelfSender.Protocol;
+
+/**
+ * Splitting compressed message to GELF chunks and writing them to UDP channel.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkBenchmark {
+	/**
+	 * Size of compressed message in bytes.
+	 */
+	@Param({ "1000", "10000", "100000" })
+	public int size;
+
+	private LoopbackSink sink;
+	private DatagramChannel channel;
+	private GelfChunker chunker;
+	private byte[] message;
+	private long messageId;
+
+	@Setup
+	public void setup() throws IOException {
+		sink = new LoopbackSink(Protocol.UDP);
+		channel = DatagramChannel.open();
+		channel.connect(new InetSocketAddress("127.0.0.1", sink.getPort()));
+		chunker = new GelfChunker();
+		message = new byte[size];
+		new Random(1).nextBytes(message);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		channel.close();
+		sink.close();
+	}
+
+	@Benchmark
+	public void send() throws IOException {
+		chunker.send(channel, ++messageId, message, message.length, GelfSender.MAXIMUM_UDP_CHUNK_SIZE);
+	}
+}
@@ -0,0 +1,62 @@
+package com.wizecore.graylog;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wizecore.graylog.GelfCompressor.Codec;
+
+/**
+ * Compression of encoded UDP messages.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressBenchmark {
+	@Param({ "100", "1000", "10000" })
+	public int messageSize;
+
+	@Param({ "0", "20", "100" })
+	public int stackDepth;
+
+	@Param({ "GZIP", "ZLIB", "NONE" })
+	public String codec;
+
+	private byte[] json;
+	private GelfCompressor compressor;
+
+	@Setup
+	public void setup() {
+		GelfEncoder e = new GelfEncoder();
+		e.encode(BenchmarkData.message(messageSize, 10, stackDepth));
+		json = e.toByteArray();
+		compressor = new GelfCompressor(Codec.parse(codec), -1, 0);
+	}
+
+	@TearDown
+	public void tearDown() {
+		compressor.close();
+	}
+
+	@Benchmark
+	public int compress() {
+		compressor.compress(json, json.length);
+		return compressor.size();
+	}
+}
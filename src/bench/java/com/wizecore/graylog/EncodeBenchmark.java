@@ -0,0 +1,66 @@
+package com.wizecore.graylog;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JSON serialization of {@link GelfMessage}.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+	@Param({ "100", "1000", "10000" })
+	public int messageSize;
+
+	@Param({ "0", "10" })
+	public int fields;
+
+	@Param({ "0", "20", "100" })
+	public int stackDepth;
+
+	private GelfMessage message;
+	private GelfEncoder encoder;
+
+	@Setup
+	public void setup() {
+		message = BenchmarkData.message(messageSize, fields, stackDepth);
+		encoder = new GelfEncoder();
+	}
+
+	/**
+	 * Encoding to reused buffer, as done by sender.
+	 */
+	@Benchmark
+	public int encode() {
+		encoder.reset();
+		encoder.encode(message);
+		return encoder.size();
+	}
+
+	@Benchmark
+	public String formatMessage() {
+		return GelfMessage.formatMessage(message);
+	}
+
+	@Benchmark
+	public String escapeJson() {
+		return GelfMessage.escapeJson(message.getFullMessage());
+	}
+}
@@ -0,0 +1,122 @@
+package com.wizecore.graylog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.wizecore.graylog.GelfSender.Protocol;
+
+/**
+ * Local UDP or TCP server which reads and discards everything, so end-to-end benchmarks run without Graylog.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class LoopbackSink implements Closeable {
+	private final Protocol proto;
+	private final AtomicLong bytes = new AtomicLong();
+	private final List<Closeable> channels = new CopyOnWriteArrayList<Closeable>();
+	private final int port;
+	private volatile boolean running = true;
+
+	public LoopbackSink(Protocol proto) throws IOException {
+		this.proto = proto;
+		if (proto == Protocol.UDP) {
+			final DatagramChannel channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress("127.0.0.1", 0));
+			channel.socket().setReceiveBufferSize(4 * 1024 * 1024);
+			channels.add(channel);
+			port = channel.socket().getLocalPort();
+			start("UDP", new Runnable() {
+				@Override
+				public void run() {
+					ByteBuffer buf = ByteBuffer.allocateDirect(65536);
+					try {
+						while (running) {
+							buf.clear();
+							channel.receive(buf);
+							bytes.addAndGet(buf.position());
+						}
+					} catch (IOException e) {
+						// Closed
+					}
+				}
+			});
+		} else {
+			final ServerSocketChannel server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress("127.0.0.1", 0));
+			channels.add(server);
+			port = server.socket().getLocalPort();
+			start("TCP accept", new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (running) {
+							read(server.accept());
+						}
+					} catch (IOException e) {
+						// Closed
+					}
+				}
+			});
+		}
+	}
+
+	private void read(final SocketChannel channel) {
+		channels.add(channel);
+		start("TCP read", new Runnable() {
+			@Override
+			public void run() {
+				ByteBuffer buf = ByteBuffer.allocateDirect(65536);
+				try {
+					int n;
+					while (running && (n = channel.read(buf)) >= 0) {
+						bytes.addAndGet(n);
+						buf.clear();
+					}
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		});
+	}
+
+	private static void start(String name, Runnable r) {
+		Thread t = new Thread(r, "LoopbackSink " + name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public Protocol getProtocol() {
+		return proto;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Number of bytes received so far.
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	@Override
+	public void close() {
+		running = false;
+		for (Closeable c: channels) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// Don`t care
+			}
+		}
+	}
+}
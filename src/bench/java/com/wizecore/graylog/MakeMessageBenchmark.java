@@ -0,0 +1,96 @@
+package com.wizecore.graylog;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogRecord;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversion of logging events to {@link GelfMessage} by JUL handler, log4j and log4j2 appenders.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MakeMessageBenchmark {
+	@Param({ "100", "1000", "10000" })
+	public int messageSize;
+
+	@Param({ "0", "10" })
+	public int fields;
+
+	@Param({ "0", "20", "100" })
+	public int stackDepth;
+
+	private GelfHandler handler;
+	private GelfAppender appender;
+	private GelfAppender2 appender2;
+	private LogRecord record;
+	private LoggingEvent event;
+	private LogEvent event2;
+
+	@Setup
+	public void setup() {
+		String text = BenchmarkData.text(messageSize);
+		Throwable t = BenchmarkData.exception(stackDepth);
+
+		handler = new GelfHandler();
+		handler.getPreparedFields().putAll(BenchmarkData.fields(fields));
+		record = new LogRecord(java.util.logging.Level.INFO, text);
+		record.setLoggerName("com.example.orders.OrderService");
+		record.setThrown(t);
+
+		appender = new GelfAppender();
+		appender.setHost("127.0.0.1");
+		appender.setFields(BenchmarkData.fieldsOption(fields));
+		appender.activateOptions();
+		event = new LoggingEvent(Logger.class.getName(), Logger.getLogger("com.example.orders.OrderService"), System.currentTimeMillis(), org.apache.log4j.Level.INFO, text, t);
+
+		appender2 = new GelfAppender2("benchmark", null, PatternLayout.createDefaultLayout(), true, "udp", "127.0.0.1", 0, true,
+				BenchmarkData.fieldsOption(fields), "gelf-logger", "benchmark-host", true, null);
+		event2 = new Log4jLogEvent("com.example.orders.OrderService", null, Logger.class.getName(), org.apache.logging.log4j.Level.INFO, new SimpleMessage(text), t);
+	}
+
+	@TearDown
+	public void tearDown() {
+		handler.close();
+		appender.close();
+		appender2.stop();
+	}
+
+	@Benchmark
+	public GelfMessage julHandler() {
+		return handler.makeMessage(record);
+	}
+
+	@Benchmark
+	public GelfMessage log4jAppender() {
+		return appender.makeMessage(event);
+	}
+
+	@Benchmark
+	public GelfMessage log4j2Appender() {
+		return appender2.makeMessage(event2);
+	}
+}
@@ -0,0 +1,76 @@
+package com.wizecore.graylog;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wizecore.graylog.GelfSender.Protocol;
+
+/**
+ * Full path from logging event to the wire, through log4j appender to {@link LoopbackSink}.
+ * TCP messages are queued with blocking overflow policy, so throughput is limited by the I/O thread.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendBenchmark {
+	@Param({ "UDP", "TCP" })
+	public String protocol;
+
+	@Param({ "100", "1000", "10000" })
+	public int messageSize;
+
+	@Param({ "0", "10" })
+	public int fields;
+
+	@Param({ "0", "20" })
+	public int stackDepth;
+
+	private LoopbackSink sink;
+	private GelfAppender appender;
+	private LoggingEvent event;
+
+	@Setup
+	public void setup() throws IOException {
+		sink = new LoopbackSink(Protocol.valueOf(protocol));
+		appender = new GelfAppender();
+		appender.setProtocol(protocol);
+		appender.setHost("127.0.0.1");
+		appender.setPort(sink.getPort());
+		appender.setOverflowPolicy("block");
+		appender.setFields(BenchmarkData.fieldsOption(fields));
+		appender.activateOptions();
+		event = new LoggingEvent(Logger.class.getName(), Logger.getLogger("com.example.orders.OrderService"), System.currentTimeMillis(),
+				org.apache.log4j.Level.INFO, BenchmarkData.text(messageSize), BenchmarkData.exception(stackDepth));
+	}
+
+	@TearDown
+	public void tearDown() {
+		appender.close();
+		sink.close();
+	}
+
+	@Benchmark
+	public void append() {
+		appender.append(event);
+	}
+}
@@ -4,11 +4,15 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.zip.Deflater;
 
 import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.Level;
 import org.apache.log4j.spi.LoggingEvent;
 
+import com.wizecore.graylog.GelfCompressor.Codec;
+import com.wizecore.graylog.GelfDestinations.Balance;
+import com.wizecore.graylog.GelfSender.OverflowPolicy;
 import com.wizecore.graylog.GelfSender.Protocol;
 
 /**
@@ -31,6 +35,40 @@ public class GelfAppender extends AppenderSkeleton {
     protected int port = GelfSender.DEFAULT_PORT;
     protected String updater;
     protected GelfMessageUpdater updaterInstance;
+    protected boolean async;
+    protected int queueSize = GelfSender.DEFAULT_QUEUE_SIZE;
+    protected String overflowPolicy;
+    protected String compression;
+    protected int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    protected int compressionThreshold;
+    protected int batchSize;
+    protected long batchLinger = GelfSender.DEFAULT_BATCH_LINGER;
+    protected long connectTimeout = GelfSender.DEFAULT_CONNECT_TIMEOUT;
+    protected String balance;
+    protected long dnsTtl = GelfSender.DEFAULT_DNS_TTL;
+    protected String spillDir;
+    protected long spillMaxSize = GelfSpillBuffer.DEFAULT_MAX_SIZE;
+    protected boolean jmx = true;
+    protected String metricsListener;
+    protected double rateLimit;
+    protected int rateBurst;
+    protected double sampleDebug = 1;
+    protected double sampleInfo = 1;
+    protected long rateSummaryInterval = GelfRateLimiter.DEFAULT_SUMMARY_INTERVAL;
+    protected GelfRateLimiter rateLimiter;
+    protected long dedupWindow;
+    protected int dedupMaxEntries = GelfDeduplicator.DEFAULT_MAX_ENTRIES;
+    protected GelfDeduplicator deduplicator;
+    protected int stacktraceDepth;
+    protected int stacktraceCauses;
+    protected String stacktraceFold;
+    protected int stacktraceCacheSize = GelfStackTraceRenderer.DEFAULT_CACHE_SIZE;
+    protected GelfStackTraceRenderer stackTraceRenderer = new GelfStackTraceRenderer();
+    protected String contextKeys;
+    protected boolean sharedSender = true;
+    protected GelfContextKeys contextKeysInstance;
+    protected volatile GelfStaticFields staticFields;
+    protected final GelfMessagePool messagePool = new GelfMessagePool();
     
     public GelfAppender() {
     	originHost = GelfSender.findLocalHostName();
@@ -55,34 +93,26 @@ public class GelfAppender extends AppenderSkeleton {
             shortMessage = renderedMessage;
         }
 
+        GelfMessage gelfMessage = messagePool.obtain();
+        gelfMessage.setShortMessage(shortMessage);
+        gelfMessage.setFullMessage(renderedMessage);
+        gelfMessage.setTimestamp(timeStamp);
+        gelfMessage.setLevel(level.getSyslogEquivalent());
+        int length = renderedMessage.length();
+
         // Receive stack trace and file:line
-        GelfMessage m = null;
         Throwable t = event.getThrowableInformation() != null ? event.getThrowableInformation().getThrowable() : null;
         if (isExtractStacktrace() && t != null) {
-        	m = new GelfMessage();
-        	renderedMessage += "\n" + GelfMessage.extractStacktrace(t, m, 0);
-        }
-        
-        GelfMessage gelfMessage = new GelfMessage(shortMessage, renderedMessage, timeStamp, level.getSyslogEquivalent(), null, 0);
-        if (m != null) {
-        	gelfMessage.setFile(m.getFile());
-        	gelfMessage.setLine(m.getLine());
-        }
-
-        if (getOriginHost() != null) {
-            gelfMessage.setHost(getOriginHost());
+        	GelfStackTraceRenderer.StackTrace st = stackTraceRenderer.render(t);
+        	gelfMessage.setStackTrace(st);
+        	length += 1 + st.length();
+        	if (st.getTop() != null) {
+        		gelfMessage.setFile(st.getTop().getFileName());
+        		gelfMessage.setLine(st.getTop().getLineNumber());
+        	}
         }
 
-        if (getFacility() != null) {
-            gelfMessage.setFacility(getFacility());
-        }
-
-        Map<String, String> fields = preparedFields;
-        if (fields != null) {
-            for (Map.Entry<String, String> entry : fields.entrySet()) {
-                gelfMessage.addField(entry.getKey(), entry.getValue());
-            }
-        }
+        gelfMessage.setStaticFields(getStaticFields());
 
         if (addExtendedInformation) {
             if (t != null) {
@@ -93,12 +123,23 @@ public class GelfAppender extends AppenderSkeleton {
             }
             gelfMessage.addField("thread_name", Thread.currentThread().getName());
             gelfMessage.addField("original_level", level.toString());
-            gelfMessage.addField("char_length", renderedMessage.length());
+            gelfMessage.addField("char_length", length);
             
             // FIXME: Only add logger if it is different from originating class name
             gelfMessage.addField("logger", event.getLoggerName());
         }
         
+        GelfContextKeys keys = contextKeysInstance;
+        if (keys != null) {
+        	// Event has MDC copy, if it is processed by another thread
+        	for (int i = 0; i < keys.size(); i++) {
+        		Object v = event.getMDC(keys.getKey(i));
+        		if (v != null) {
+        			gelfMessage.addField(keys.getName(i), v);
+        		}
+        	}
+        }
+        
         if (updaterInstance != null) {
         	updaterInstance.update(gelfMessage);
         }
@@ -133,6 +174,9 @@ public class GelfAppender extends AppenderSkeleton {
 			}
 		}
 		
+		stackTraceRenderer = new GelfStackTraceRenderer(stacktraceDepth, stacktraceCauses, stacktraceFold, stacktraceCacheSize);
+		contextKeysInstance = GelfContextKeys.parse(contextKeys);
+		
 		if (fields != null) {
 			Map<String,String> preparedFields = new HashMap<String, String>();
 			for (StringTokenizer en = new StringTokenizer(fields, ",; \r\n\t"); en.hasMoreElements();) {
@@ -149,22 +193,89 @@ public class GelfAppender extends AppenderSkeleton {
 			}
 			this.preparedFields = preparedFields;  
 		}
+		staticFields = null;
+		getStaticFields();
 		
 		GelfSender s = new GelfSender(
 			proto,
 			host,
 			port
 		);
+		s.setAsync(async);
+		s.setQueueSize(queueSize);
+		s.setOverflowPolicy(OverflowPolicy.parse(overflowPolicy));
+		s.setCompression(Codec.parse(compression));
+		s.setCompressionLevel(compressionLevel);
+		s.setCompressionThreshold(compressionThreshold);
+		s.setBatchSize(batchSize);
+		s.setBatchLinger(batchLinger);
+		s.setConnectTimeout(connectTimeout);
+		s.setBalance(Balance.parse(balance));
+		s.setDnsTtl(dnsTtl);
+		s.setSpillDir(spillDir);
+		s.setSpillMaxSize(spillMaxSize);
+		s.setJmx(jmx);
+		if (metricsListener != null) {
+			try {
+				s.setMetricsListener((GelfMetricsListener) Class.forName(metricsListener).newInstance());
+			} catch (Exception e) {
+				System.err.println("GelfAppender: failed to create " + metricsListener + " instance: " + e);
+			}
+		}
+		if (sharedSender) {
+			s = GelfSenderRegistry.acquire(s);
+		}
+		GelfSender old = sender;
 		sender = s;
+		if (old != null) {
+			// Options activated again, new sender is acquired first so shared one is kept open
+			GelfSenderRegistry.release(old);
+		}
+		
+		if (rateLimiter != null) {
+			rateLimiter.stop();
+			rateLimiter = null;
+		}
+		GelfRateLimiter limiter = new GelfRateLimiter(rateLimit, rateBurst, sampleDebug, sampleInfo);
+		if (limiter.isEnabled()) {
+			limiter.start(s, getOriginHost(), getFacility(), rateSummaryInterval);
+			rateLimiter = limiter;
+		}
+		
+		if (deduplicator != null) {
+			deduplicator.stop();
+			deduplicator = null;
+		}
+		if (dedupWindow > 0) {
+			deduplicator = new GelfDeduplicator(dedupWindow, dedupMaxEntries);
+			deduplicator.start(s);
+		}
 		System.err.println("Started GELF log4j appender: " + proto.name().toLowerCase() + "://" + sender.getHost() + ":" + sender.getPort() + 
 				", facility " + getFacility() + ", originHost " + getOriginHost());		
 	}
  
     @Override
     protected void append(LoggingEvent event) {
+    	long fingerprint = 0;
+    	if (deduplicator != null) {
+    		Object msg = event.getMessage();
+    		Throwable t = event.getThrowableInformation() != null ? event.getThrowableInformation().getThrowable() : null;
+    		fingerprint = GelfDeduplicator.fingerprint(event.getLoggerName(), event.getLevel().toInt(), msg instanceof String ? (String) msg : event.getRenderedMessage(), t);
+    		if (!deduplicator.admit(fingerprint)) {
+    			return;
+    		}
+    	}
+    	
+    	if (rateLimiter != null && !rateLimiter.admit(event.getLoggerName(), event.getLevel().getSyslogEquivalent())) {
+    		return;
+    	}
+    	
         GelfMessage gelfMessage = makeMessage(event);
         
         if (sender != null && gelfMessage != null) {
+        	if (deduplicator != null) {
+        		deduplicator.sent(fingerprint, gelfMessage);
+        	}
         	try {
 				sender.sendMessage(gelfMessage);
 			} catch (IOException e) {
@@ -175,8 +286,16 @@ public class GelfAppender extends AppenderSkeleton {
 
     @Override
     public void close() {
+    	if (deduplicator != null) {
+    		deduplicator.stop();
+    		deduplicator = null;
+    	}
+    	if (rateLimiter != null) {
+    		rateLimiter.stop();
+    		rateLimiter = null;
+    	}
         if (sender != null) {
-            sender.close();
+            GelfSenderRegistry.release(sender);
             sender = null;
         }
     }
@@ -200,6 +319,7 @@ public class GelfAppender extends AppenderSkeleton {
 
 	public void setOriginHost(String originHost) {
 		this.originHost = originHost;
+		staticFields = null;
 	}
 
 	public String getFacility() {
@@ -208,6 +328,7 @@ public class GelfAppender extends AppenderSkeleton {
 
 	public void setFacility(String facility) {
 		this.facility = facility;
+		staticFields = null;
 	}
 
 	public boolean isExtractStacktrace() {
@@ -264,6 +385,19 @@ public class GelfAppender extends AppenderSkeleton {
 
 	public void setPreparedFields(Map<String, String> preparedFields) {
 		this.preparedFields = preparedFields;
+		staticFields = null;
+	}
+
+	/**
+	 * Version, host, facility and prepared fields, encoded once until one of them is changed.
+	 */
+	protected GelfStaticFields getStaticFields() {
+		GelfStaticFields sf = staticFields;
+		if (sf == null) {
+			sf = new GelfStaticFields(GelfMessage.GELF_VERSION, getOriginHost(), getFacility(), preparedFields);
+			staticFields = sf;
+		}
+		return sf;
 	}
 
 	public String getUpdater() {
@@ -281,4 +415,228 @@ public class GelfAppender extends AppenderSkeleton {
 	public void setUpdaterInstance(GelfMessageUpdater updaterInstance) {
 		this.updaterInstance = updaterInstance;
 	}
+
+	public boolean isAsync() {
+		return async;
+	}
+
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public String getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(String overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public String getCompression() {
+		return compression;
+	}
+
+	public void setCompression(String compression) {
+		this.compression = compression;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public long getBatchLinger() {
+		return batchLinger;
+	}
+
+	public void setBatchLinger(long batchLinger) {
+		this.batchLinger = batchLinger;
+	}
+
+	public long getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(long connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public String getBalance() {
+		return balance;
+	}
+
+	public void setBalance(String balance) {
+		this.balance = balance;
+	}
+
+	public long getDnsTtl() {
+		return dnsTtl;
+	}
+
+	public void setDnsTtl(long dnsTtl) {
+		this.dnsTtl = dnsTtl;
+	}
+
+	public String getSpillDir() {
+		return spillDir;
+	}
+
+	public void setSpillDir(String spillDir) {
+		this.spillDir = spillDir;
+	}
+
+	public long getSpillMaxSize() {
+		return spillMaxSize;
+	}
+
+	public void setSpillMaxSize(long spillMaxSize) {
+		this.spillMaxSize = spillMaxSize;
+	}
+
+	public boolean isJmx() {
+		return jmx;
+	}
+
+	public void setJmx(boolean jmx) {
+		this.jmx = jmx;
+	}
+
+	public String getMetricsListener() {
+		return metricsListener;
+	}
+
+	public void setMetricsListener(String metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+
+	public double getRateLimit() {
+		return rateLimit;
+	}
+
+	public void setRateLimit(double rateLimit) {
+		this.rateLimit = rateLimit;
+	}
+
+	public int getRateBurst() {
+		return rateBurst;
+	}
+
+	public void setRateBurst(int rateBurst) {
+		this.rateBurst = rateBurst;
+	}
+
+	public double getSampleDebug() {
+		return sampleDebug;
+	}
+
+	public void setSampleDebug(double sampleDebug) {
+		this.sampleDebug = sampleDebug;
+	}
+
+	public double getSampleInfo() {
+		return sampleInfo;
+	}
+
+	public void setSampleInfo(double sampleInfo) {
+		this.sampleInfo = sampleInfo;
+	}
+
+	public long getRateSummaryInterval() {
+		return rateSummaryInterval;
+	}
+
+	public void setRateSummaryInterval(long rateSummaryInterval) {
+		this.rateSummaryInterval = rateSummaryInterval;
+	}
+
+	public long getDedupWindow() {
+		return dedupWindow;
+	}
+
+	public void setDedupWindow(long dedupWindow) {
+		this.dedupWindow = dedupWindow;
+	}
+
+	public int getDedupMaxEntries() {
+		return dedupMaxEntries;
+	}
+
+	public void setDedupMaxEntries(int dedupMaxEntries) {
+		this.dedupMaxEntries = dedupMaxEntries;
+	}
+
+	public int getStacktraceDepth() {
+		return stacktraceDepth;
+	}
+
+	public void setStacktraceDepth(int stacktraceDepth) {
+		this.stacktraceDepth = stacktraceDepth;
+	}
+
+	public int getStacktraceCauses() {
+		return stacktraceCauses;
+	}
+
+	public void setStacktraceCauses(int stacktraceCauses) {
+		this.stacktraceCauses = stacktraceCauses;
+	}
+
+	public String getStacktraceFold() {
+		return stacktraceFold;
+	}
+
+	public void setStacktraceFold(String stacktraceFold) {
+		this.stacktraceFold = stacktraceFold;
+	}
+
+	public int getStacktraceCacheSize() {
+		return stacktraceCacheSize;
+	}
+
+	public void setStacktraceCacheSize(int stacktraceCacheSize) {
+		this.stacktraceCacheSize = stacktraceCacheSize;
+	}
+
+	public String getContextKeys() {
+		return contextKeys;
+	}
+
+	public void setContextKeys(String contextKeys) {
+		this.contextKeys = contextKeys;
+	}
+
+	public boolean isSharedSender() {
+		return sharedSender;
+	}
+
+	public void setSharedSender(boolean sharedSender) {
+		this.sharedSender = sharedSender;
+	}
 }
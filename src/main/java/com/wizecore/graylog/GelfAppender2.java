@@ -5,6 +5,7 @@ import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.zip.Deflater;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Filter;
@@ -16,7 +17,11 @@ import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.config.plugins.PluginFactory;
 import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.Message;
 
+import com.wizecore.graylog.GelfCompressor.Codec;
+import com.wizecore.graylog.GelfDestinations.Balance;
+import com.wizecore.graylog.GelfSender.OverflowPolicy;
 import com.wizecore.graylog.GelfSender.Protocol;
 
 /**
@@ -29,6 +34,11 @@ public class GelfAppender2 extends AbstractAppender {
 
 	private static final long serialVersionUID = 1L;
 	
+	/**
+	 * True if log4j has garbage-free APIs (2.7+), used to render messages and context data without allocation.
+	 */
+	protected static final boolean GARBAGE_FREE = isGarbageFreeAvailable();
+	
 	protected boolean addExtendedInformation = true;
 	protected Map<String,String> preparedFields;
 	protected String fields;
@@ -37,6 +47,13 @@ public class GelfAppender2 extends AbstractAppender {
 	protected boolean extractStacktrace = true;
 	protected GelfSender sender;
 	protected GelfMessageUpdater updaterInstance;
+	protected GelfRateLimiter rateLimiter;
+	protected GelfDeduplicator deduplicator;
+	protected GelfStackTraceRenderer stackTraceRenderer = new GelfStackTraceRenderer();
+	protected boolean addContextData;
+	protected GelfContextKeys contextKeys;
+	protected volatile GelfStaticFields staticFields;
+	protected final GelfMessagePool messagePool = new GelfMessagePool();
 	
 	protected GelfAppender2(String name, Filter filter,
             Layout<? extends Serializable> layout, final boolean ignoreExceptions,
@@ -93,14 +110,12 @@ public class GelfAppender2 extends AbstractAppender {
         	this.preparedFields = preparedFields;  
         }
         
-        GelfSender s = new GelfSender(
+        // Only options until first message, createAppender() can replace it with shared sender
+        sender = new GelfSender(
         	proto,
         	host,
         	port
         );
-        sender = s;
-        System.err.println("Started GELF log4j2 appender: " + proto.name().toLowerCase() + "://" + sender.getHost() + ":" + sender.getPort() + 
-        		", facility " + getFacility() + ", originHost " + getOriginHost());		
     }
     
     /**
@@ -117,53 +132,89 @@ public class GelfAppender2 extends AbstractAppender {
 		return lev;
 	}
     
+    /**
+     * Checks if running log4j version has garbage-free APIs, without loading {@link GelfLog4j2Support}.
+     */
+    private static boolean isGarbageFreeAvailable() {
+    	try {
+    		Class.forName("org.apache.logging.log4j.util.StringBuilderFormattable");
+    		Class.forName("org.apache.logging.log4j.util.TriConsumer");
+    		LogEvent.class.getMethod("getContextData");
+    		return true;
+    	} catch (ClassNotFoundException e) {
+    		return false;
+    	} catch (NoSuchMethodException e) {
+    		return false;
+    	}
+    }
+    
+    /**
+     * Syslog level for {@link GelfRateLimiter}, which also distinguishes DEBUG and TRACE.
+     */
+    protected static int getAdmissionLevel(Level level) {
+    	return level.intLevel() > Level.INFO.intLevel() ? GelfMessage.SYSLOG_DEBUG : getSyslogEquivalent(level);
+    }
+    
+    /**
+     * Adds context of log4j versions without {@link LogEvent#getContextData()}.
+     */
+    @SuppressWarnings("deprecation")
+    private void addContextMap(LogEvent event, GelfMessage gelfMessage) {
+    	// Can build new map on each call
+    	Map<String, String> context = event.getContextMap();
+    	if (contextKeys != null) {
+    		contextKeys.addFields(context, gelfMessage);
+    	} else
+    	if (context != null) {
+    		for (Map.Entry<String, String> e: context.entrySet()) {
+    			gelfMessage.addField(e.getKey(), e.getValue());
+    		}
+    	}
+    }
+    
     protected GelfMessage makeMessage(LogEvent event) {
         long timeStamp = event.getTimeMillis();
         Level level = event.getLevel();
 
-        String renderedMessage = null;
-        if (event.getMessage() != null) {        	
-        	renderedMessage = event.getMessage().getFormattedMessage();
-        }
-        if (renderedMessage == null || renderedMessage.isEmpty()) {
+        Message message = event.getMessage();
+        if (message == null) {
         	return null;
         }
         
-        String shortMessage;
-        if (renderedMessage.length() > GelfMessage.MAX_MESSAGE_LENGTH) {
-            shortMessage = renderedMessage.substring(0, GelfMessage.MAX_MESSAGE_LENGTH - 1);
+        // Render directly into reusable buffer of pooled message, short message is taken from it when encoded
+        GelfMessage gelfMessage = messagePool.obtain();
+        StringBuilder text = gelfMessage.getMessageBuffer();
+        if (GARBAGE_FREE) {
+        	GelfLog4j2Support.formatTo(message, text);
         } else {
-            shortMessage = renderedMessage;
+        	String s = message.getFormattedMessage();
+        	if (s != null) {
+        		text.append(s);
+        	}
+        }
+        if (text.length() == 0) {
+        	gelfMessage.release();
+        	return null;
         }
+        
+        gelfMessage.setMessageFromBuffer();
+        gelfMessage.setTimestamp(timeStamp);
+        gelfMessage.setLevel(getSyslogEquivalent(level));
+        int length = text.length();
 
         // Receive stack trace and file:line
-        GelfMessage m = null;
         Throwable t = event.getThrown();
         if (isExtractStacktrace() && t != null) {
-        	m = new GelfMessage();
-        	renderedMessage += "\n" + GelfMessage.extractStacktrace(t, m, 0);
-        }
-        
-        GelfMessage gelfMessage = new GelfMessage(shortMessage, renderedMessage, timeStamp, getSyslogEquivalent(level), null, 0);
-        if (m != null) {
-        	gelfMessage.setFile(m.getFile());
-        	gelfMessage.setLine(m.getLine());
-        }
-
-        if (getOriginHost() != null) {
-            gelfMessage.setHost(getOriginHost());
-        }
-
-        if (getFacility() != null) {
-            gelfMessage.setFacility(getFacility());
+        	GelfStackTraceRenderer.StackTrace st = stackTraceRenderer.render(t);
+        	gelfMessage.setStackTrace(st);
+        	length += 1 + st.length();
+        	if (st.getTop() != null) {
+        		gelfMessage.setFile(st.getTop().getFileName());
+        		gelfMessage.setLine(st.getTop().getLineNumber());
+        	}
         }
 
-        Map<String, String> fields = preparedFields;
-        if (fields != null) {
-            for (Map.Entry<String, String> entry : fields.entrySet()) {
-                gelfMessage.addField(entry.getKey(), entry.getValue());
-            }
-        }
+        gelfMessage.setStaticFields(getStaticFields());
 
         if (addExtendedInformation) {
             if (t != null) {
@@ -172,14 +223,23 @@ public class GelfAppender2 extends AbstractAppender {
             if (t != null && t.getMessage() != null) {
             	gelfMessage.addField("exception_message", t.getMessage());
             }
-            gelfMessage.addField("thread_name", Thread.currentThread().getName());
+            // Event can be processed by another thread, i.e. with async loggers
+            gelfMessage.addField("thread_name", event.getThreadName());
             gelfMessage.addField("original_level", level.toString());
-            gelfMessage.addField("char_length", renderedMessage.length());
+            gelfMessage.addField("char_length", length);
             
             // FIXME: Only add logger if it is different from originating class name
             gelfMessage.addField("logger", event.getLoggerName());
         }
         
+        if (addContextData) {
+        	if (GARBAGE_FREE) {
+        		GelfLog4j2Support.addContextData(event, gelfMessage, contextKeys);
+        	} else {
+        		addContextMap(event, gelfMessage);
+        	}
+        }
+        
         if (updaterInstance != null) {
         	updaterInstance.update(gelfMessage);
         }
@@ -189,9 +249,25 @@ public class GelfAppender2 extends AbstractAppender {
 
     @Override
     public void append(LogEvent event) {
+    	long fingerprint = 0;
+    	if (deduplicator != null) {
+    		String template = event.getMessage() != null ? event.getMessage().getFormat() : null;
+    		fingerprint = GelfDeduplicator.fingerprint(event.getLoggerName(), event.getLevel().intLevel(), template, event.getThrown());
+    		if (!deduplicator.admit(fingerprint)) {
+    			return;
+    		}
+    	}
+    	
+    	if (rateLimiter != null && !rateLimiter.admit(event.getLoggerName(), getAdmissionLevel(event.getLevel()))) {
+    		return;
+    	}
+    	
     	GelfMessage gelfMessage = makeMessage(event);
         
         if (sender != null && gelfMessage != null) {
+        	if (deduplicator != null) {
+        		deduplicator.sent(fingerprint, gelfMessage);
+        	}
         	try {
 				sender.sendMessage(gelfMessage);
 			} catch (IOException e) {
@@ -202,8 +278,16 @@ public class GelfAppender2 extends AbstractAppender {
     
 	@Override
     public void stop() {
+		if (deduplicator != null) {
+			deduplicator.stop();
+			deduplicator = null;
+		}
+		if (rateLimiter != null) {
+			rateLimiter.stop();
+			rateLimiter = null;
+		}
 		if (sender != null) {
-            sender.close();
+            GelfSenderRegistry.release(sender);
             sender = null;            
         }
 		 
@@ -218,12 +302,41 @@ public class GelfAppender2 extends AbstractAppender {
             @PluginAttribute(value = "protocol") String protocol,
             @PluginAttribute(value = "host") String host,
             @PluginAttribute(value = "port") int port,
-            @PluginAttribute(value = "addExtendedInformation") Boolean addExtendedInformation,
+            @PluginAttribute(value = "addExtendedInformation", defaultBoolean = true) Boolean addExtendedInformation,
             @PluginAttribute(value = "fields") String fields,
             @PluginAttribute(value = "facility") String facility,
             @PluginAttribute(value = "originHost") String originHost,
-            @PluginAttribute(value = "extractStackTrace") Boolean extractStackTrace,
-            @PluginAttribute(value = "updater") String updater
+            @PluginAttribute(value = "extractStackTrace", defaultBoolean = true) Boolean extractStackTrace,
+            @PluginAttribute(value = "updater") String updater,
+            @PluginAttribute(value = "async") Boolean async,
+            @PluginAttribute(value = "queueSize", defaultInt = GelfSender.DEFAULT_QUEUE_SIZE) Integer queueSize,
+            @PluginAttribute(value = "overflowPolicy") String overflowPolicy,
+            @PluginAttribute(value = "compression") String compression,
+            @PluginAttribute(value = "compressionLevel", defaultInt = Deflater.DEFAULT_COMPRESSION) Integer compressionLevel,
+            @PluginAttribute(value = "compressionThreshold") Integer compressionThreshold,
+            @PluginAttribute(value = "batchSize") Integer batchSize,
+            @PluginAttribute(value = "batchLinger", defaultLong = GelfSender.DEFAULT_BATCH_LINGER) Long batchLinger,
+            @PluginAttribute(value = "connectTimeout", defaultLong = GelfSender.DEFAULT_CONNECT_TIMEOUT) Long connectTimeout,
+            @PluginAttribute(value = "balance") String balance,
+            @PluginAttribute(value = "dnsTtl", defaultLong = GelfSender.DEFAULT_DNS_TTL) Long dnsTtl,
+            @PluginAttribute(value = "spillDir") String spillDir,
+            @PluginAttribute(value = "spillMaxSize", defaultLong = GelfSpillBuffer.DEFAULT_MAX_SIZE) Long spillMaxSize,
+            @PluginAttribute(value = "jmx", defaultBoolean = true) Boolean jmx,
+            @PluginAttribute(value = "metricsListener") String metricsListener,
+            @PluginAttribute(value = "rateLimit") Double rateLimit,
+            @PluginAttribute(value = "rateBurst") Integer rateBurst,
+            @PluginAttribute(value = "sampleDebug", defaultDouble = 1) Double sampleDebug,
+            @PluginAttribute(value = "sampleInfo", defaultDouble = 1) Double sampleInfo,
+            @PluginAttribute(value = "rateSummaryInterval", defaultLong = GelfRateLimiter.DEFAULT_SUMMARY_INTERVAL) Long rateSummaryInterval,
+            @PluginAttribute(value = "dedupWindow") Long dedupWindow,
+            @PluginAttribute(value = "dedupMaxEntries", defaultInt = GelfDeduplicator.DEFAULT_MAX_ENTRIES) Integer dedupMaxEntries,
+            @PluginAttribute(value = "stacktraceDepth") Integer stacktraceDepth,
+            @PluginAttribute(value = "stacktraceCauses") Integer stacktraceCauses,
+            @PluginAttribute(value = "stacktraceFold") String stacktraceFold,
+            @PluginAttribute(value = "stacktraceCacheSize", defaultInt = GelfStackTraceRenderer.DEFAULT_CACHE_SIZE) Integer stacktraceCacheSize,
+            @PluginAttribute(value = "addContextData") Boolean addContextData,
+            @PluginAttribute(value = "contextKeys") String contextKeys,
+            @PluginAttribute(value = "sharedSender", defaultBoolean = true) Boolean sharedSender
             ) {
         if (name == null) {
             LOGGER.error("No name provided for GelfAppender2");
@@ -252,15 +365,116 @@ public class GelfAppender2 extends AbstractAppender {
         
         GelfAppender2 a = new GelfAppender2(name, filter, layout, true, protocol, host, port, 
         		addExtendedInformation, fields, facility, originHost, extractStackTrace, updater);
+        
+        if (async != null) {
+        	a.sender.setAsync(async);
+        }
+        
+        if (queueSize != null) {
+        	a.sender.setQueueSize(queueSize);
+        }
+        
+        a.sender.setOverflowPolicy(OverflowPolicy.parse(overflowPolicy));
+        a.sender.setCompression(Codec.parse(compression));
+        
+        if (compressionLevel != null) {
+        	a.sender.setCompressionLevel(compressionLevel);
+        }
+        
+        if (compressionThreshold != null) {
+        	a.sender.setCompressionThreshold(compressionThreshold);
+        }
+        
+        if (batchSize != null) {
+        	a.sender.setBatchSize(batchSize);
+        }
+        
+        if (batchLinger != null) {
+        	a.sender.setBatchLinger(batchLinger);
+        }
+        
+        if (connectTimeout != null) {
+        	a.sender.setConnectTimeout(connectTimeout);
+        }
+        
+        a.sender.setBalance(Balance.parse(balance));
+        
+        if (dnsTtl != null) {
+        	a.sender.setDnsTtl(dnsTtl);
+        }
+        
+        a.sender.setSpillDir(spillDir);
+        if (spillMaxSize != null) {
+        	a.sender.setSpillMaxSize(spillMaxSize);
+        }
+        
+        a.sender.setJmx(jmx == null || jmx);
+        if (metricsListener != null) {
+        	try {
+        		a.sender.setMetricsListener((GelfMetricsListener) Class.forName(metricsListener).newInstance());
+        	} catch (Exception e) {
+        		System.err.println("GelfAppender2: failed to create " + metricsListener + " instance: " + e);
+        	}
+        }
+        
+        if (sharedSender == null || sharedSender) {
+        	a.sender = GelfSenderRegistry.acquire(a.sender);
+        }
+        System.err.println("Started GELF log4j2 appender: " + a.sender.getProtocol().name().toLowerCase() + "://" + a.sender.getHost() + ":" + a.sender.getPort() + 
+        		", facility " + a.getFacility() + ", originHost " + a.getOriginHost());
+        
+        GelfRateLimiter limiter = new GelfRateLimiter(
+        	rateLimit != null ? rateLimit : 0,
+        	rateBurst != null ? rateBurst : 0,
+        	sampleDebug != null ? sampleDebug : 1,
+        	sampleInfo != null ? sampleInfo : 1
+        );
+        if (limiter.isEnabled()) {
+        	limiter.start(a.sender, a.getOriginHost(), a.getFacility(), rateSummaryInterval != null ? rateSummaryInterval : GelfRateLimiter.DEFAULT_SUMMARY_INTERVAL);
+        	a.rateLimiter = limiter;
+        }
+        
+        if (dedupWindow != null && dedupWindow > 0) {
+        	a.deduplicator = new GelfDeduplicator(dedupWindow, dedupMaxEntries != null ? dedupMaxEntries : GelfDeduplicator.DEFAULT_MAX_ENTRIES);
+        	a.deduplicator.start(a.sender);
+        }
+        
+        a.getStaticFields();
+        a.contextKeys = GelfContextKeys.parse(contextKeys);
+        a.addContextData = (addContextData != null && addContextData) || a.contextKeys != null;
+        
+        a.stackTraceRenderer = new GelfStackTraceRenderer(
+        	stacktraceDepth != null ? stacktraceDepth : 0,
+        	stacktraceCauses != null ? stacktraceCauses : 0,
+        	stacktraceFold,
+        	stacktraceCacheSize != null ? stacktraceCacheSize : GelfStackTraceRenderer.DEFAULT_CACHE_SIZE
+        );
         return a;
     }
 
+	public GelfSender getSender() {
+		return sender;
+	}
+
 	public Map<String, String> getPreparedFields() {
 		return preparedFields;
 	}
 
 	public void setPreparedFields(Map<String, String> preparedFields) {
 		this.preparedFields = preparedFields;
+		staticFields = null;
+	}
+
+	/**
+	 * Version, host, facility and prepared fields, encoded once until one of them is changed.
+	 */
+	protected GelfStaticFields getStaticFields() {
+		GelfStaticFields sf = staticFields;
+		if (sf == null) {
+			sf = new GelfStaticFields(GelfMessage.GELF_VERSION, getOriginHost(), getFacility(), preparedFields);
+			staticFields = sf;
+		}
+		return sf;
 	}
 
 	public String getFields() {
@@ -277,6 +491,7 @@ public class GelfAppender2 extends AbstractAppender {
 
 	public void setFacility(String facility) {
 		this.facility = facility;
+		staticFields = null;
 	}
 
 	public String getOriginHost() {
@@ -285,6 +500,7 @@ public class GelfAppender2 extends AbstractAppender {
 
 	public void setOriginHost(String originHost) {
 		this.originHost = originHost;
+		staticFields = null;
 	}
 
 	public boolean isExtractStacktrace() {
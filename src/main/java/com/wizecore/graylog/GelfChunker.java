@@ -0,0 +1,78 @@
+package com.wizecore.graylog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Writes GELF UDP datagrams, splitting large messages to chunks.
+ * <p>
+ * Message is copied once to pooled direct buffer, every chunk is sent with gathering write of
+ * 12 byte chunk header and slice of that buffer. Not thread safe, use one instance per thread.
+ *
+ * @see <a href="http://docs.graylog.org/en/latest/pages/gelf.html#chunking">GELF chunking</a>
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfChunker {
+	/**
+	 * Magic bytes, message id (8 bytes), sequence number and sequence count.
+	 */
+	public static final int HEADER_SIZE = 12;
+
+	/**
+	 * Maximum number of chunks per message, per GELF specification.
+	 */
+	public static final int MAX_CHUNKS = 128;
+
+	private static final int INITIAL_SIZE = 8 * 1024;
+
+	private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+	private ByteBuffer payload = ByteBuffer.allocateDirect(INITIAL_SIZE);
+	private final ByteBuffer[] chunk = new ByteBuffer[] { header, payload };
+
+	/**
+	 * Sends message as single datagram, or as chunks if it is larger than chunkSize.
+	 *
+	 * @param messageId unique id, used only if message is chunked
+	 * @throws IOException if message needs more than {@link #MAX_CHUNKS} chunks, or on network error
+	 */
+	public void send(DatagramChannel channel, long messageId, byte[] message, int len, int chunkSize) throws IOException {
+		int num = (len + chunkSize - 1) / chunkSize;
+		if (num > MAX_CHUNKS) {
+			throw new IOException("Message too large for UDP: " + len + " bytes, " + num + " chunks, max " + MAX_CHUNKS);
+		}
+
+		if (payload.capacity() < len) {
+			int size = payload.capacity() * 2;
+			while (size < len) {
+				size *= 2;
+			}
+			payload = ByteBuffer.allocateDirect(size);
+			chunk[1] = payload;
+		}
+
+		payload.clear();
+		payload.put(message, 0, len);
+		payload.flip();
+
+		if (num <= 1) {
+			channel.write(payload);
+			return;
+		}
+
+		for (int idx = 0; idx < num; idx++) {
+			header.clear();
+			header.put(GelfSender.GELF_UDP_CHUNKED_ID);
+			header.putLong(messageId);
+			header.put((byte) idx);
+			header.put((byte) num);
+			header.flip();
+
+			int from = idx * chunkSize;
+			int to = Math.min(from + chunkSize, len);
+			payload.limit(to);
+			payload.position(from);
+			channel.write(chunk);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package com.wizecore.graylog;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses GELF messages for UDP, reusing single {@link Deflater} and output buffer.
+ * <p>
+ * Not thread safe, use one instance per thread.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfCompressor {
+	/**
+	 * Compression supported by GELF UDP inputs.
+	 */
+	enum Codec {
+		NONE,
+		GZIP,
+		ZLIB;
+
+		public static Codec parse(String s) {
+			if (s == null) {
+				return GZIP;
+			}
+			String n = s.trim().toUpperCase();
+			for (Codec c: values()) {
+				if (c.name().equals(n)) {
+					return c;
+				}
+			}
+			throw new IllegalArgumentException("Unknown compression: " + s);
+		}
+	};
+
+	/**
+	 * Fixed GZIP header, as written by {@link java.util.zip.GZIPOutputStream}.
+	 */
+	private static final byte[] GZIP_HEADER = new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	/**
+	 * GZIP trailer, CRC32 and uncompressed size.
+	 */
+	private static final int GZIP_TRAILER_SIZE = 8;
+
+	private final Codec codec;
+	private final int threshold;
+	private final Deflater deflater;
+	private final CRC32 crc;
+	private byte[] buf = new byte[GelfEncoder.INITIAL_SIZE];
+	private byte[] out;
+	private int count;
+
+	/**
+	 * @param codec compression to use
+	 * @param level compression level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}
+	 * @param threshold messages smaller than this number of bytes are not compressed
+	 */
+	public GelfCompressor(Codec codec, int level, int threshold) {
+		this.codec = codec;
+		this.threshold = threshold;
+		if (codec != Codec.NONE) {
+			deflater = new Deflater(level, codec == Codec.GZIP);
+		} else {
+			deflater = null;
+		}
+		crc = codec == Codec.GZIP ? new CRC32() : null;
+	}
+
+	/**
+	 * Compresses message. Result is available via {@link #getBuffer()} and {@link #size()},
+	 * and is the input array itself if message was not compressed.
+	 */
+	public void compress(byte[] message, int len) {
+		if (deflater == null || len < threshold) {
+			out = message;
+			count = len;
+			return;
+		}
+
+		count = 0;
+		if (codec == Codec.GZIP) {
+			ensureCapacity(GZIP_HEADER.length);
+			System.arraycopy(GZIP_HEADER, 0, buf, 0, GZIP_HEADER.length);
+			count = GZIP_HEADER.length;
+		}
+
+		deflater.reset();
+		deflater.setInput(message, 0, len);
+		deflater.finish();
+		while (!deflater.finished()) {
+			ensureCapacity(256);
+			count += deflater.deflate(buf, count, buf.length - count);
+		}
+
+		if (codec == Codec.GZIP) {
+			crc.reset();
+			crc.update(message, 0, len);
+			ensureCapacity(GZIP_TRAILER_SIZE);
+			writeIntLE((int) crc.getValue());
+			writeIntLE(len);
+		}
+
+		out = buf;
+		if (buf.length > GelfEncoder.MAX_RETAINED_SIZE) {
+			// Don`t keep huge buffer after this message
+			buf = new byte[GelfEncoder.INITIAL_SIZE];
+		}
+	}
+
+	/**
+	 * Result of last {@link #compress(byte[], int)}, valid bytes are from 0 to {@link #size()}.
+	 */
+	public byte[] getBuffer() {
+		return out;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Releases native resources.
+	 */
+	public void close() {
+		if (deflater != null) {
+			deflater.end();
+		}
+	}
+
+	private void writeIntLE(int v) {
+		buf[count++] = (byte) v;
+		buf[count++] = (byte) (v >> 8);
+		buf[count++] = (byte) (v >> 16);
+		buf[count++] = (byte) (v >> 24);
+	}
+
+	private void ensureCapacity(int n) {
+		if (count + n > buf.length) {
+			int size = buf.length * 2;
+			if (size < count + n) {
+				size = count + n;
+			}
+			byte[] b = new byte[size];
+			System.arraycopy(buf, 0, b, 0, count);
+			buf = b;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.wizecore.graylog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Whitelist of context (MDC, ThreadContext) keys to add to message, with optional renames.
+ * <p>
+ * Configured as comma separated list of <code>key</code> or <code>key=field</code>, so only listed
+ * keys are looked up, instead of copying whole context map for every message.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfContextKeys {
+	private final String[] keys;
+	private final String[] names;
+
+	public GelfContextKeys(String spec) {
+		List<String> k = new ArrayList<String>();
+		List<String> n = new ArrayList<String>();
+		if (spec != null) {
+			for (StringTokenizer en = new StringTokenizer(spec, ",; \r\n\t"); en.hasMoreElements();) {
+				String v = en.nextToken();
+				int eqi = v.indexOf("=");
+				String key = eqi >= 0 ? v.substring(0, eqi) : v;
+				String name = eqi >= 0 ? v.substring(eqi + 1) : v;
+				if (key.length() > 0 && name.length() > 0) {
+					k.add(key);
+					n.add(name);
+				}
+			}
+		}
+		keys = k.toArray(new String[k.size()]);
+		names = n.toArray(new String[n.size()]);
+	}
+
+	/**
+	 * Parses whitelist, or returns null if nothing is specified.
+	 */
+	public static GelfContextKeys parse(String spec) {
+		GelfContextKeys keys = new GelfContextKeys(spec);
+		return keys.size() > 0 ? keys : null;
+	}
+
+	public int size() {
+		return keys.length;
+	}
+
+	/**
+	 * Context key to look up.
+	 */
+	public String getKey(int i) {
+		return keys[i];
+	}
+
+	/**
+	 * Name of the additional field for the key.
+	 */
+	public String getName(int i) {
+		return names[i];
+	}
+
+	/**
+	 * Adds whitelisted entries of context map to message.
+	 */
+	public void addFields(Map<String, ?> context, GelfMessage m) {
+		if (context == null || context.isEmpty()) {
+			return;
+		}
+		for (int i = 0; i < keys.length; i++) {
+			Object v = context.get(keys[i]);
+			if (v != null) {
+				m.addField(names[i], v);
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.wizecore.graylog;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counter striped by thread, so concurrent logging threads don`t contend on the same cache line.
+ * Reading sums all stripes and is slower than updating.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfCounter {
+	/**
+	 * Number of stripes, power of two.
+	 */
+	static final int STRIPES = stripes();
+
+	/**
+	 * Distance between stripes in longs, one cache line.
+	 */
+	private static final int PAD = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+	private static int stripes() {
+		int n = 1;
+		while (n < Runtime.getRuntime().availableProcessors() * 2 && n < 64) {
+			n <<= 1;
+		}
+		return n;
+	}
+
+	/**
+	 * Stripe of current thread.
+	 */
+	static int stripe() {
+		long id = GelfPlatform.currentThreadId();
+		return (int) ((id * 0x9E3779B97F4A7C15L) >>> 58) & (STRIPES - 1);
+	}
+
+	public void add(long n) {
+		cells.getAndAdd(stripe() * PAD, n);
+	}
+
+	public void increment() {
+		add(1);
+	}
+
+	public long get() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PAD);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,328 @@
+package com.wizecore.graylog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collapses bursts of identical messages, checked before message is built.
+ * <p>
+ * Message is identified by fingerprint of logger, level, message template, exception class and top stack frame.
+ * First message is sent as usual and opens window, repeats within the window are only counted.
+ * When window closes, copy of first message is sent with repeat_count, first_timestamp and last_timestamp
+ * (epoch milliseconds) fields. Table of open windows is bounded, messages above the limit are not deduplicated.
+ * <p>
+ * Windows are kept in striped primitive-keyed tables, so repeats are counted without allocation.
+ * Message which opens window is kept out of the pool, and copied only when window closes with repeats.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfDeduplicator {
+	/**
+	 * Default maximum number of open windows.
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+	/**
+	 * Number of independently locked tables, power of two.
+	 */
+	private static final int STRIPES = 16;
+
+	/**
+	 * Open windows with fingerprints of one stripe, in open addressing table with linear probing.
+	 * Window fields are kept in parallel primitive arrays, so fingerprint is never boxed and repeats don`t allocate.
+	 */
+	private static class Table {
+		final int maxSize;
+		long[] keys;
+		boolean[] used;
+		long[] first;
+		long[] last;
+		long[] closesAt;
+		long[] repeats;
+		GelfMessage[] messages;
+		int size;
+
+		Table(int maxSize) {
+			this.maxSize = maxSize;
+			allocate(16);
+		}
+
+		private void allocate(int capacity) {
+			keys = new long[capacity];
+			used = new boolean[capacity];
+			first = new long[capacity];
+			last = new long[capacity];
+			closesAt = new long[capacity];
+			repeats = new long[capacity];
+			messages = new GelfMessage[capacity];
+		}
+
+		private int slot(long key) {
+			return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (keys.length - 1);
+		}
+
+		/**
+		 * @return index of window, or -1 if there is none
+		 */
+		int find(long key) {
+			int mask = keys.length - 1;
+			for (int i = slot(key); used[i]; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Opens window, must not be already open.
+		 *
+		 * @return false if table is full
+		 */
+		boolean open(long key, long now, long window) {
+			if (size >= maxSize) {
+				return false;
+			}
+			if ((size + 1) * 4 > keys.length * 3) {
+				grow();
+			}
+
+			int mask = keys.length - 1;
+			int i = slot(key);
+			while (used[i]) {
+				i = (i + 1) & mask;
+			}
+			put(i, key, now, now, now + window, 0, null);
+			size++;
+			return true;
+		}
+
+		private void put(int i, long key, long first, long last, long closesAt, long repeats, GelfMessage m) {
+			this.used[i] = true;
+			this.keys[i] = key;
+			this.first[i] = first;
+			this.last[i] = last;
+			this.closesAt[i] = closesAt;
+			this.repeats[i] = repeats;
+			this.messages[i] = m;
+		}
+
+		private void grow() {
+			long[] k = keys;
+			boolean[] u = used;
+			long[] f = first;
+			long[] l = last;
+			long[] c = closesAt;
+			long[] r = repeats;
+			GelfMessage[] m = messages;
+			allocate(k.length * 2);
+			int mask = keys.length - 1;
+			for (int j = 0; j < k.length; j++) {
+				if (u[j]) {
+					int i = slot(k[j]);
+					while (used[i]) {
+						i = (i + 1) & mask;
+					}
+					put(i, k[j], f[j], l[j], c[j], r[j], m[j]);
+				}
+			}
+		}
+
+		/**
+		 * Removes window, shifting following entries of the same probe sequence back.
+		 *
+		 * @return message with repeat summary to send, or null if there were no repeats
+		 */
+		GelfMessage close(int i) {
+			GelfMessage m = messages[i];
+			if (m != null && repeats[i] > 0) {
+				// Original can still be queued in sender
+				m = m.copy();
+				m.setTimestamp(last[i]);
+				m.addField("repeat_count", repeats[i]);
+				m.addField("first_timestamp", first[i]);
+				m.addField("last_timestamp", last[i]);
+			} else {
+				m = null;
+			}
+
+			int mask = keys.length - 1;
+			int j = i;
+			while (true) {
+				used[i] = false;
+				messages[i] = null;
+				int k;
+				do {
+					j = (j + 1) & mask;
+					if (!used[j]) {
+						size--;
+						return m;
+					}
+					k = slot(keys[j]);
+					// Entry stays if its home slot is cyclically in (i, j]
+				} while (i <= j ? i < k && k <= j : i < k || k <= j);
+				put(i, keys[j], first[j], last[j], closesAt[j], repeats[j], messages[j]);
+				i = j;
+			}
+		}
+	}
+
+	private final long window;
+	private final Table[] tables = new Table[STRIPES];
+	private volatile GelfSender sender;
+	private volatile ScheduledFuture<?> sweeper;
+
+	/**
+	 * @param window window length in milliseconds
+	 */
+	public GelfDeduplicator(long window, int maxEntries) {
+		this.window = window;
+		int max = Math.max(1, (maxEntries + STRIPES - 1) / STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			tables[i] = new Table(max);
+		}
+	}
+
+	private Table table(long fingerprint) {
+		return tables[(int) (fingerprint ^ (fingerprint >>> 32)) & (STRIPES - 1)];
+	}
+
+	/**
+	 * Cheap 64-bit fingerprint of logging event.
+	 *
+	 * @param template message before parameters are substituted, if logging framework has it
+	 */
+	public static long fingerprint(String logger, int level, String template, Throwable t) {
+		long h = level;
+		h = h * 0x9E3779B97F4A7C15L + (logger != null ? logger.hashCode() : 0);
+		h = h * 0x9E3779B97F4A7C15L + (template != null ? template.hashCode() : 0);
+		if (t != null) {
+			h = h * 0x9E3779B97F4A7C15L + t.getClass().getName().hashCode();
+			StackTraceElement[] trace = t.getStackTrace();
+			if (trace.length > 0) {
+				StackTraceElement e = trace[0];
+				h = h * 0x9E3779B97F4A7C15L + e.getClassName().hashCode();
+				h = h * 0x9E3779B97F4A7C15L + e.getMethodName().hashCode();
+				h = h * 0x9E3779B97F4A7C15L + e.getLineNumber();
+			}
+		}
+		h ^= h >>> 31;
+		return h;
+	}
+
+	/**
+	 * Decides if message should be built and sent.
+	 *
+	 * @return false if message is a repeat within open window, and was only counted
+	 */
+	public boolean admit(long fingerprint) {
+		long now = System.currentTimeMillis();
+		Table t = table(fingerprint);
+		GelfMessage summary = null;
+		synchronized (t) {
+			int i = t.find(fingerprint);
+			if (i >= 0) {
+				if (now < t.closesAt[i]) {
+					t.repeats[i]++;
+					t.last[i] = now;
+					return false;
+				}
+				summary = t.close(i);
+			}
+			// Above the limit message is not deduplicated
+			t.open(fingerprint, now, window);
+		}
+		send(summary);
+		return true;
+	}
+
+	/**
+	 * Remembers message which opened the window, to send it with repeat count.
+	 * Must be called before message is sent.
+	 */
+	public void sent(long fingerprint, GelfMessage m) {
+		Table t = table(fingerprint);
+		synchronized (t) {
+			int i = t.find(fingerprint);
+			if (i >= 0 && t.messages[i] == null) {
+				// Pooled message would be reused after it is sent
+				m.detach();
+				t.messages[i] = m;
+			}
+		}
+	}
+
+	/**
+	 * Starts closing windows in background, sending repeat summaries through specified sender.
+	 */
+	public void start(GelfSender sender) {
+		stop();
+		this.sender = sender;
+		long period = Math.max(window / 4, 10);
+		sweeper = GelfScheduler.get().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sweep(System.currentTimeMillis());
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops background task, sending summaries of all open windows.
+	 */
+	public void stop() {
+		ScheduledFuture<?> s = sweeper;
+		if (s != null) {
+			s.cancel(false);
+			sweeper = null;
+			sweep(Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Closes windows which are expired at specified time.
+	 */
+	void sweep(long now) {
+		List<GelfMessage> summaries = null;
+		for (Table t: tables) {
+			synchronized (t) {
+				for (int i = 0; i < t.keys.length; i++) {
+					// Closing shifts next entry into this slot, so check it again
+					while (t.used[i] && now >= t.closesAt[i]) {
+						GelfMessage m = t.close(i);
+						if (m != null) {
+							if (summaries == null) {
+								summaries = new ArrayList<GelfMessage>();
+							}
+							summaries.add(m);
+						}
+					}
+				}
+			}
+		}
+
+		if (summaries != null) {
+			for (GelfMessage m: summaries) {
+				send(m);
+			}
+		}
+	}
+
+	private void send(GelfMessage m) {
+		GelfSender s = sender;
+		if (m == null || s == null) {
+			return;
+		}
+
+		try {
+			s.sendMessage(m);
+		} catch (IOException ex) {
+			System.err.println("Failed to send to graylog: " + ex);
+		} catch (RuntimeException ex) {
+			System.err.println("Failed to send to graylog: " + ex);
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package com.wizecore.graylog;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * All resolved addresses of comma separated list of Graylog hosts, with load balancing and failover.
+ * <p>
+ * Endpoint which failed is taken out of rotation for backoff period, doubled on every subsequent failure.
+ * For TCP, endpoint is returned to rotation only after health probe (successful connect) by {@link GelfTcpTransport}.
+ * For UDP, failures are not reliably reported, so endpoint is returned optimistically when backoff expires.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfDestinations {
+	/**
+	 * How to choose endpoint for next message.
+	 */
+	enum Balance {
+		/**
+		 * Endpoints are used in turn.
+		 */
+		ROUND_ROBIN,
+
+		/**
+		 * Endpoint with least bytes waiting to be written, TCP only. Same as ROUND_ROBIN for UDP.
+		 */
+		LEAST_OUTSTANDING,
+
+		/**
+		 * First available endpoint in the list, others are used only if it fails.
+		 */
+		FAILOVER;
+
+		/**
+		 * Parses name, accepts both round-robin and ROUND_ROBIN.
+		 */
+		public static Balance parse(String s) {
+			if (s == null) {
+				return ROUND_ROBIN;
+			}
+			String n = s.trim().toUpperCase().replace('-', '_');
+			for (Balance b: values()) {
+				if (b.name().equals(n)) {
+					return b;
+				}
+			}
+			throw new IllegalArgumentException("Unknown balance: " + s);
+		}
+	};
+
+	/**
+	 * Backoff after first failure.
+	 */
+	public static final long MIN_BACKOFF = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * Maximum backoff.
+	 */
+	public static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(30);
+
+	/**
+	 * Single resolved address.
+	 */
+	public static class Endpoint {
+		private final InetSocketAddress address;
+		private volatile boolean healthy = true;
+		private volatile long failedUntil;
+		private volatile long outstanding;
+		private int failures;
+
+		/**
+		 * Connected UDP channels, striped by thread and managed by {@link GelfSender}.
+		 */
+		final AtomicReferenceArray<DatagramChannel> udpChannels = new AtomicReferenceArray<DatagramChannel>(GelfSender.UDP_CHANNELS);
+
+		public Endpoint(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		public InetSocketAddress getAddress() {
+			return address;
+		}
+
+		public boolean isHealthy() {
+			return healthy;
+		}
+
+		/**
+		 * Value of {@link System#nanoTime()} when backoff expires.
+		 */
+		public long getFailedUntil() {
+			return failedUntil;
+		}
+
+		/**
+		 * Bytes waiting to be written to this endpoint.
+		 */
+		public long getOutstanding() {
+			return outstanding;
+		}
+
+		public void setOutstanding(long outstanding) {
+			this.outstanding = outstanding;
+		}
+
+		/**
+		 * Takes endpoint out of rotation for backoff period.
+		 */
+		public synchronized void failed(long now) {
+			failures++;
+			long backoff = MIN_BACKOFF << Math.min(failures - 1, 20);
+			failedUntil = now + Math.min(backoff, MAX_BACKOFF);
+			healthy = false;
+		}
+
+		/**
+		 * Returns endpoint to rotation.
+		 */
+		public synchronized void succeeded() {
+			failures = 0;
+			failedUntil = 0;
+			healthy = true;
+		}
+
+		@Override
+		public String toString() {
+			return address.toString();
+		}
+	}
+
+	private static final Endpoint[] EMPTY = new Endpoint[0];
+
+	private final AtomicInteger next = new AtomicInteger();
+	private volatile Endpoint[] endpoints = EMPTY;
+	private volatile int version;
+	private Balance balance = Balance.ROUND_ROBIN;
+
+	/**
+	 * Resolves all addresses of comma separated list of hosts.
+	 */
+	public static List<InetAddress> resolve(String host) throws UnknownHostException {
+		List<InetAddress> all = new ArrayList<InetAddress>();
+		if (host.indexOf(",") > 0) {
+			String[] l = host.split("\\,");
+			for (String h: l) {
+				all.addAll(Arrays.asList(InetAddress.getAllByName(h.trim())));
+			}
+		} else {
+			all.addAll(Arrays.asList(InetAddress.getAllByName(host.trim())));
+		}
+		return all;
+	}
+
+	/**
+	 * Replaces list of endpoints, keeping state of addresses which are still present.
+	 *
+	 * @return true if list of addresses has changed
+	 */
+	public synchronized boolean update(List<InetAddress> addresses, int port) {
+		Endpoint[] current = endpoints;
+		List<Endpoint> l = new ArrayList<Endpoint>(addresses.size());
+		boolean added = false;
+		for (InetAddress a: addresses) {
+			if (find(l.toArray(EMPTY), a, port) != null) {
+				// Duplicate
+				continue;
+			}
+			Endpoint e = find(current, a, port);
+			if (e == null) {
+				e = new Endpoint(new InetSocketAddress(a, port));
+				added = true;
+			}
+			l.add(e);
+		}
+		boolean changed = added || l.size() != current.length;
+		endpoints = l.toArray(new Endpoint[l.size()]);
+		if (changed) {
+			version++;
+		}
+		return changed;
+	}
+
+	private static Endpoint find(Endpoint[] l, InetAddress a, int port) {
+		for (Endpoint e: l) {
+			if (e.getAddress().getAddress().equals(a) && e.getAddress().getPort() == port) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * True if endpoint is in current list.
+	 */
+	public boolean contains(Endpoint e) {
+		for (Endpoint c: endpoints) {
+			if (c == e) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Incremented every time list of endpoints changes.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	public boolean isEmpty() {
+		return endpoints.length == 0;
+	}
+
+	/**
+	 * Current endpoints, array must not be modified.
+	 */
+	public Endpoint[] getEndpoints() {
+		return endpoints;
+	}
+
+	/**
+	 * Chooses endpoint for next message. If all endpoints are failed, returns one which will be retried first.
+	 *
+	 * @param now current {@link System#nanoTime()}
+	 * @param optimistic if true, endpoints with expired backoff are considered healthy without probe
+	 * @return null if there are no endpoints
+	 */
+	public Endpoint select(long now, boolean optimistic) {
+		Endpoint[] l = endpoints;
+		int n = l.length;
+		if (n == 0) {
+			return null;
+		}
+
+		if (n == 1) {
+			return l[0];
+		}
+
+		Endpoint found = null;
+		if (balance == Balance.FAILOVER) {
+			for (int i = 0; i < n; i++) {
+				if (isAvailable(l[i], now, optimistic)) {
+					found = l[i];
+					break;
+				}
+			}
+		} else
+		if (balance == Balance.LEAST_OUTSTANDING && !optimistic) {
+			int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+			for (int i = 0; i < n; i++) {
+				Endpoint e = l[(start + i) % n];
+				if (isAvailable(e, now, optimistic) && (found == null || e.getOutstanding() < found.getOutstanding())) {
+					found = e;
+				}
+			}
+		} else {
+			int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+			for (int i = 0; i < n; i++) {
+				Endpoint e = l[(start + i) % n];
+				if (isAvailable(e, now, optimistic)) {
+					found = e;
+					break;
+				}
+			}
+		}
+
+		if (found == null) {
+			// Everything is down, use the one which will be retried first
+			found = l[0];
+			for (int i = 1; i < n; i++) {
+				if (l[i].getFailedUntil() - found.getFailedUntil() < 0) {
+					found = l[i];
+				}
+			}
+		}
+		return found;
+	}
+
+	private static boolean isAvailable(Endpoint e, long now, boolean optimistic) {
+		return e.isHealthy() || (optimistic && now - e.getFailedUntil() >= 0);
+	}
+
+	public Balance getBalance() {
+		return balance;
+	}
+
+	public void setBalance(Balance balance) {
+		this.balance = balance;
+	}
+}
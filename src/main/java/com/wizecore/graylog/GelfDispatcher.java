@@ -0,0 +1,217 @@
+package com.wizecore.graylog;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.wizecore.graylog.GelfSender.OverflowPolicy;
+import com.wizecore.graylog.GelfSender.Protocol;
+
+/**
+ * Asynchronous delivery for {@link GelfSender}.
+ * <p>
+ * Logging threads only put message to the {@link GelfRingBuffer}, single dedicated I/O thread
+ * takes them out, formats and sends to the network.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfDispatcher implements Runnable {
+	/**
+	 * How long I/O thread sleeps when there is nothing to send. Producers wake it up earlier.
+	 * Also used as maximum wait while network is not ready.
+	 */
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * How long blocked producer waits before checking the queue again.
+	 */
+	private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final GelfSender sender;
+	private final GelfRingBuffer<GelfMessage> queue;
+	private final OverflowPolicy overflowPolicy;
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread thread;
+	private volatile boolean running = true;
+	private volatile boolean aborted;
+	private volatile boolean idle;
+
+	public GelfDispatcher(GelfSender sender, int queueSize, OverflowPolicy overflowPolicy) {
+		this.sender = sender;
+		this.queue = new GelfRingBuffer<GelfMessage>(queueSize);
+		this.overflowPolicy = overflowPolicy;
+		// TCP I/O thread waits in selector, UDP one only writes to channels and parks
+		thread = GelfPlatform.newIoThread(this, "GelfSender " + sender.getHost() + ":" + sender.getPort(), sender.getProtocol() == Protocol.UDP);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Enqueues message for delivery. If queue is full, message is spilled to disk if sender has spill buffer,
+	 * otherwise overflow policy is applied.
+	 *
+	 * @return false if message was dropped
+	 */
+	public boolean dispatch(GelfMessage m) {
+		if (!queue.offer(m)) {
+			if (overflowPolicy != OverflowPolicy.BLOCK && sender.spill(m)) {
+				m.release();
+				return true;
+			}
+			
+			switch (overflowPolicy) {
+			case BLOCK:
+				while (!queue.offer(m)) {
+					if (!running) {
+						drop(m);
+						return false;
+					}
+					sender.wakeup(thread);
+					LockSupport.parkNanos(BLOCK_PARK_NANOS);
+				}
+				break;
+			case DROP_OLDEST:
+				while (!queue.offer(m)) {
+					GelfMessage oldest = queue.poll();
+					if (oldest != null) {
+						drop(oldest);
+					}
+				}
+				break;
+			default:
+				drop(m);
+				return false;
+			}
+		}
+
+		if (idle) {
+			sender.wakeup(thread);
+		}
+		return true;
+	}
+
+	private void drop(GelfMessage m) {
+		dropped.incrementAndGet();
+		sender.getMetrics().dropped(sender, 1);
+		m.release();
+	}
+
+	@Override
+	public void run() {
+		long linger = TimeUnit.MILLISECONDS.toNanos(sender.getBatchLinger());
+		long serviceAt = System.nanoTime() + linger;
+		while (!aborted && (running || !queue.isEmpty())) {
+			boolean backedUp = sender.isBackedUp();
+			GelfMessage m = backedUp ? null : queue.poll();
+			if (m == null) {
+				if (backedUp || queue.isEmpty()) {
+					long wait = flushPending();
+					if (backedUp) {
+						// Wait until network is ready, producers don`t need to wake us up
+						sender.await(this, wait > 0 && wait < IDLE_PARK_NANOS ? wait : IDLE_PARK_NANOS);
+					} else {
+						idle = true;
+						// Check again, producer might have added message before it noticed we are idle
+						if (queue.isEmpty() && running) {
+							sender.await(this, wait > 0 && wait < IDLE_PARK_NANOS ? wait : IDLE_PARK_NANOS);
+						}
+						idle = false;
+					}
+				}
+				continue;
+			}
+
+			try {
+				sender.deliver(m);
+			} catch (IOException e) {
+				// Don`t care, but don`t printStackTrace to avoid loops
+				System.err.println("Failed to send to graylog: " + e);
+			} catch (RuntimeException e) {
+				System.err.println("Failed to send to graylog: " + e);
+			} finally {
+				m.release();
+			}
+			
+			long now = System.nanoTime();
+			if (now - serviceAt >= 0) {
+				// Queue might never get empty under steady load, don`t let network I/O wait for that
+				servicePending(now);
+				serviceAt = now + linger;
+			}
+		}
+		
+		try {
+			if (!aborted) {
+				sender.flushBatch();
+			}
+		} catch (IOException e) {
+			System.err.println("Failed to send to graylog: " + e);
+		}
+		// Connections are used only by this thread, so it closes them even if close() gave up waiting
+		sender.closeTransport(this, !aborted);
+	}
+	
+	private void servicePending(long now) {
+		try {
+			sender.servicePending(now);
+		} catch (IOException e) {
+			System.err.println("Failed to send to graylog: " + e);
+		} catch (RuntimeException e) {
+			System.err.println("Failed to send to graylog: " + e);
+		}
+	}
+	
+	private long flushPending() {
+		try {
+			return sender.flushPending(System.nanoTime());
+		} catch (IOException e) {
+			System.err.println("Failed to send to graylog: " + e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Stops I/O thread, waiting at most specified time for queued messages to be sent.
+	 * If I/O thread doesn`t stop in time, it is told to give up and closes connections on its own.
+	 *
+	 * @return false if I/O thread did not stop in time
+	 */
+	public boolean close(long timeoutMillis) {
+		running = false;
+		sender.wakeup(thread);
+		try {
+			thread.join(timeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		if (thread.isAlive()) {
+			// Give up on remaining messages
+			aborted = true;
+			sender.wakeup(thread);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Number of messages dropped because queue was full.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Number of messages waiting to be sent.
+	 */
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+}
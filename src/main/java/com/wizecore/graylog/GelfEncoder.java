@@ -0,0 +1,504 @@
+package com.wizecore.graylog;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Streaming GELF JSON encoder, writes {@link GelfMessage} directly to reusable UTF-8 byte buffer.
+ * <p>
+ * Produces the same output as {@link GelfMessage#formatMessage(GelfMessage)} without intermediate map,
+ * string copies or per-field allocations. Not thread safe, use one instance per thread.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfEncoder {
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Initial buffer size.
+	 */
+	public static final int INITIAL_SIZE = 1024;
+
+	/**
+	 * Buffers grown above this size (or twice the initial size) are released on {@link #reset()}, to not hold memory after one huge message.
+	 */
+	public static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+	private static final byte[] NULL = ascii("null");
+	private static final byte[] TRUE = ascii("true");
+	private static final byte[] FALSE = ascii("false");
+	private static final byte[] DIGITS = ascii("0123456789");
+	private static final byte[] HEX = ascii("0123456789abcdef");
+
+	/**
+	 * Escape char for every ASCII char, 'u' for \\uXXXX, or 0 if char is written as is.
+	 */
+	private static final byte[] ESCAPES = new byte[0x80];
+	static {
+		for (int i = 0; i < 0x20; i++) {
+			ESCAPES[i] = 'u';
+		}
+		ESCAPES['"'] = '"';
+		ESCAPES['\\'] = '\\';
+		ESCAPES['\n'] = 'n';
+		ESCAPES['\r'] = 'r';
+		ESCAPES['\t'] = 't';
+		ESCAPES['\b'] = 'b';
+		ESCAPES['\f'] = 'f';
+	}
+
+	private final int initialSize;
+	private final int maxRetainedSize;
+	private byte[] buf;
+	private int count;
+	private boolean first;
+
+	public GelfEncoder() {
+		this(INITIAL_SIZE);
+	}
+
+	public GelfEncoder(int initialSize) {
+		this.initialSize = initialSize;
+		this.maxRetainedSize = Math.max(MAX_RETAINED_SIZE, initialSize * 2);
+		buf = new byte[initialSize];
+	}
+
+	/**
+	 * Discards encoded data, keeping buffer for reuse.
+	 */
+	public void reset() {
+		count = 0;
+		if (buf.length > maxRetainedSize) {
+			buf = new byte[initialSize];
+		}
+	}
+
+	/**
+	 * Internal buffer, valid bytes are from 0 to {@link #size()}.
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Removes first n bytes, moving the rest to the start of the buffer.
+	 */
+	public void discard(int n) {
+		System.arraycopy(buf, n, buf, 0, count - n);
+		count -= n;
+	}
+
+	public byte[] toByteArray() {
+		byte[] b = new byte[count];
+		System.arraycopy(buf, 0, b, 0, count);
+		return b;
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, 0, count, UTF8);
+	}
+
+	/**
+	 * Appends message as JSON object.
+	 */
+	public void encode(GelfMessage m) {
+		writeByte('{');
+		writeByte(' ');
+		first = true;
+
+		GelfStaticFields sf = m.getStaticFields();
+		if (sf != null && m.getVersion() == sf.getVersion() && m.getHost() == sf.getHost() && m.getFacility() == sf.getFacility()) {
+			byte[] b = sf.getEncoded();
+			write(b, 0, b.length);
+			first = false;
+		} else {
+			name("version");
+			quoted(m.getVersion());
+			name("host");
+			quoted(m.getHost());
+			name("facility");
+			quoted(m.getFacility());
+			if (sf != null) {
+				fields(sf.getFields());
+			}
+		}
+
+		name("short_message");
+		quoted(m.shortMessageChars(), m.shortMessageEnd());
+		name("full_message");
+		if (m.getStackTrace() != null) {
+			fullMessage(m.fullMessageChars(), m.getStackTrace());
+		} else {
+			quoted(m.fullMessageChars());
+		}
+		name("timestamp");
+		timestamp(m.getTimestamp());
+		name("level");
+		writeLong(m.getLevel());
+
+		if (m.getFile() != null) {
+			name("file");
+			quoted(m.getFile());
+		}
+
+		if (m.getLine() > 0) {
+			name("line");
+			writeLong(m.getLine());
+		}
+
+		for (int i = 0; i < m.getFieldCount(); i++) {
+			String key = m.getFieldKey(i);
+			if (!GelfMessage.ID_NAME.equals(key)) {
+				additionalName(key);
+				switch (m.getFieldType(i)) {
+				case GelfMessage.FIELD_LONG:
+					writeLong(m.getFieldLong(i));
+					break;
+				case GelfMessage.FIELD_DOUBLE:
+					writeDouble(m.getFieldDouble(i));
+					break;
+				case GelfMessage.FIELD_BOOLEAN:
+					writeBoolean(m.getFieldBoolean(i));
+					break;
+				default:
+					value(m.getFieldValue(i));
+				}
+			}
+		}
+
+		writeByte(' ');
+		writeByte('}');
+	}
+
+	/**
+	 * Writes static fields as JSON object members, see {@link GelfStaticFields#getEncoded()}.
+	 */
+	void encodeStatic(GelfStaticFields sf) {
+		first = true;
+		name("version");
+		quoted(sf.getVersion());
+		name("host");
+		quoted(sf.getHost());
+		name("facility");
+		quoted(sf.getFacility());
+		fields(sf.getFields());
+	}
+
+	private void fields(Map<String, Object> fields) {
+		for (Map.Entry<String, Object> e : fields.entrySet()) {
+			String key = e.getKey();
+			if (!GelfMessage.ID_NAME.equals(key)) {
+				additionalName(key);
+				value(e.getValue());
+			}
+		}
+	}
+
+	public void writeByte(int b) {
+		if (count == buf.length) {
+			grow(1);
+		}
+		buf[count++] = (byte) b;
+	}
+
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	private void name(String name) {
+		if (first) {
+			first = false;
+		} else {
+			writeByte(',');
+			writeByte(' ');
+		}
+		writeByte('"');
+		writeEscaped(name, 0, name.length());
+		writeByte('"');
+		writeByte(':');
+		writeByte(' ');
+	}
+
+	private void additionalName(String key) {
+		if (first) {
+			first = false;
+		} else {
+			writeByte(',');
+			writeByte(' ');
+		}
+		writeByte('"');
+		writeByte('_');
+		writeEscaped(key, 0, key.length());
+		writeByte('"');
+		writeByte(':');
+		writeByte(' ');
+	}
+
+	private void value(Object value) {
+		if (value == null) {
+			write(NULL, 0, NULL.length);
+		} else
+		if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			writeLong(((Number) value).longValue());
+		} else
+		if (value instanceof Double || value instanceof Float) {
+			writeDouble(((Number) value).doubleValue());
+		} else
+		if (value instanceof Boolean) {
+			writeBoolean(((Boolean) value).booleanValue());
+		} else
+		if (value instanceof CharSequence) {
+			quoted((CharSequence) value);
+		} else {
+			quoted(value.toString());
+		}
+	}
+
+	/**
+	 * Writes number, or quoted string for NaN and infinity which are not valid JSON numbers.
+	 */
+	public void writeDouble(double v) {
+		String s = String.valueOf(v);
+		if (Double.isNaN(v) || Double.isInfinite(v)) {
+			quoted(s);
+		} else {
+			writeEscaped(s, 0, s.length());
+		}
+	}
+
+	public void writeBoolean(boolean v) {
+		if (v) {
+			write(TRUE, 0, TRUE.length);
+		} else {
+			write(FALSE, 0, FALSE.length);
+		}
+	}
+
+	/**
+	 * Writes seconds with milliseconds fraction as quoted string, i.e. "1450000000.042"
+	 */
+	private void timestamp(long ms) {
+		long sec = ms / 1000;
+		int frac = (int) (ms % 1000);
+		if (frac < 0) {
+			sec--;
+			frac += 1000;
+		}
+		writeByte('"');
+		writeLong(sec);
+		writeByte('.');
+		writeByte(DIGITS[frac / 100]);
+		writeByte(DIGITS[frac / 10 % 10]);
+		writeByte(DIGITS[frac % 10]);
+		writeByte('"');
+	}
+
+	/**
+	 * Writes trimmed and escaped string in quotes, or null.
+	 */
+	private void quoted(CharSequence s) {
+		quoted(s, s != null ? s.length() : 0);
+	}
+
+	/**
+	 * Writes trimmed and escaped chars from 0 to end in quotes, or null.
+	 */
+	private void quoted(CharSequence s, int end) {
+		if (s == null) {
+			write(NULL, 0, NULL.length);
+			return;
+		}
+
+		int start = 0;
+		while (start < end && s.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && s.charAt(end - 1) <= ' ') {
+			end--;
+		}
+
+		writeByte('"');
+		writeEscaped(s, start, end);
+		writeByte('"');
+	}
+
+	/**
+	 * Writes message and stack trace separated by new line, in quotes.
+	 */
+	private void fullMessage(CharSequence s, GelfStackTraceRenderer.StackTrace stackTrace) {
+		writeByte('"');
+		if (s != null) {
+			int start = 0;
+			while (start < s.length() && s.charAt(start) <= ' ') {
+				start++;
+			}
+			writeEscaped(s, start, s.length());
+			writeByte('\\');
+			writeByte('n');
+		}
+		stackTrace.writeTo(this);
+		writeByte('"');
+	}
+
+	/**
+	 * Writes decimal representation of number.
+	 */
+	public void writeLong(long v) {
+		if (v == Long.MIN_VALUE) {
+			String s = String.valueOf(v);
+			writeEscaped(s, 0, s.length());
+			return;
+		}
+
+		if (v < 0) {
+			writeByte('-');
+			v = -v;
+		}
+
+		int len = 1;
+		for (long t = v; t >= 10; t /= 10) {
+			len++;
+		}
+
+		ensureCapacity(len);
+		int pos = count + len;
+		do {
+			buf[--pos] = DIGITS[(int) (v % 10)];
+			v /= 10;
+		} while (v != 0);
+		count += len;
+	}
+
+	/**
+	 * Writes chars from start (inclusive) to end (exclusive) as JSON escaped UTF-8.
+	 * <p>
+	 * Runs of ASCII chars which don`t need escaping are copied in tight loop, control chars
+	 * are escaped as \\uXXXX (or short form), surrogate pairs are encoded as 4-byte UTF-8.
+	 */
+	public void writeEscaped(CharSequence s, int start, int end) {
+		// Worst case is 3 bytes per char, control chars take more and are checked separately
+		ensureCapacity((end - start) * 3);
+		byte[] b = buf;
+		int pos = count;
+		int i = start;
+		while (i < end) {
+			char c = s.charAt(i);
+
+			// ASCII fast path
+			while (c < 0x80 && ESCAPES[c] == 0) {
+				b[pos++] = (byte) c;
+				if (++i == end) {
+					count = pos;
+					return;
+				}
+				c = s.charAt(i);
+			}
+
+			if (c < 0x80) {
+				byte e = ESCAPES[c];
+				if (e == 'u') {
+					if (b.length - pos < 6 + (end - i - 1) * 3) {
+						count = pos;
+						grow(6 + (end - i - 1) * 3);
+						b = buf;
+					}
+					b[pos++] = '\\';
+					b[pos++] = 'u';
+					b[pos++] = '0';
+					b[pos++] = '0';
+					b[pos++] = HEX[c >> 4];
+					b[pos++] = HEX[c & 0xf];
+				} else {
+					b[pos++] = '\\';
+					b[pos++] = e;
+				}
+			} else
+			if (c < 0x800) {
+				b[pos++] = (byte) (0xc0 | (c >> 6));
+				b[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else
+			if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				b[pos++] = (byte) (0xf0 | (cp >> 18));
+				b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				b[pos++] = (byte) (0x80 | (cp & 0x3f));
+			} else
+			if (Character.isSurrogate(c)) {
+				// Unpaired surrogate, same as String.getBytes()
+				b[pos++] = '?';
+			} else {
+				b[pos++] = (byte) (0xe0 | (c >> 12));
+				b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				b[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+			i++;
+		}
+		count = pos;
+	}
+
+	/**
+	 * Escapes chars from start (inclusive) to end (exclusive) for JSON string, in one pass.
+	 * Returns the same string if nothing needs escaping.
+	 */
+	public static String escape(String s, int start, int end) {
+		int i = start;
+		while (i < end && !needsEscape(s.charAt(i))) {
+			i++;
+		}
+		if (i == end) {
+			return s.substring(start, end);
+		}
+
+		StringBuilder sb = new StringBuilder(end - start + 16);
+		sb.append(s, start, i);
+		int run = i;
+		for (; i < end; i++) {
+			char c = s.charAt(i);
+			if (needsEscape(c)) {
+				sb.append(s, run, i);
+				run = i + 1;
+				byte e = ESCAPES[c];
+				sb.append('\\');
+				if (e == 'u') {
+					sb.append("u00").append((char) HEX[c >> 4]).append((char) HEX[c & 0xf]);
+				} else {
+					sb.append((char) e);
+				}
+			}
+		}
+		sb.append(s, run, end);
+		return sb.toString();
+	}
+
+	private static boolean needsEscape(char c) {
+		return c < 0x80 && ESCAPES[c] != 0;
+	}
+
+	private void ensureCapacity(int n) {
+		if (count + n > buf.length) {
+			grow(n);
+		}
+	}
+
+	private void grow(int n) {
+		int size = buf.length * 2;
+		if (size < count + n) {
+			size = count + n;
+		}
+		byte[] b = new byte[size];
+		System.arraycopy(buf, 0, b, 0, count);
+		buf = b;
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(UTF8);
+	}
+}
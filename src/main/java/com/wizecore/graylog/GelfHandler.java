@@ -11,7 +11,11 @@ import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.LogRecord;
+import java.util.zip.Deflater;
 
+import com.wizecore.graylog.GelfCompressor.Codec;
+import com.wizecore.graylog.GelfDestinations.Balance;
+import com.wizecore.graylog.GelfSender.OverflowPolicy;
 import com.wizecore.graylog.GelfSender.Protocol;
 
 /**
@@ -26,7 +30,7 @@ import com.wizecore.graylog.GelfSender.Protocol;
 public class GelfHandler extends Handler {
 
 	protected LogManager manager = LogManager.getLogManager();
-    protected GelfSender sender;
+    protected volatile GelfSender sender;
     protected String originHost;
     protected String facility = "gelf-logger";
     protected boolean extractStacktrace = true;
@@ -34,6 +38,11 @@ public class GelfHandler extends Handler {
     protected Map<String, String> preparedFields;
     protected String updater;
     protected GelfMessageUpdater updaterInstance;
+    protected GelfRateLimiter rateLimiter;
+    protected GelfDeduplicator deduplicator;
+    protected GelfStackTraceRenderer stackTraceRenderer = new GelfStackTraceRenderer();
+    protected volatile GelfStaticFields staticFields;
+    protected final GelfMessagePool messagePool = new GelfMessagePool();
 
     protected String getLocalHostName() {
         try {
@@ -53,8 +62,9 @@ public class GelfHandler extends Handler {
         return facility;
     }
 
-    public void setFacility(String facility) {
+    public synchronized void setFacility(String facility) {
         this.facility = facility;
+        staticFields = null;
     }
 
     public boolean isExtractStacktrace() {
@@ -69,8 +79,9 @@ public class GelfHandler extends Handler {
         return originHost;
     }
 
-    public void setOriginHost(String originHost) {
+    public synchronized void setOriginHost(String originHost) {
         this.originHost = originHost;
+        staticFields = null;
     }
 
     public boolean isAddExtendedInformation() {
@@ -81,20 +92,62 @@ public class GelfHandler extends Handler {
         this.addExtendedInformation = addExtendedInformation;
     }
     
-    public Map<String, String> getPreparedFields() {
+    /**
+     * Mutable prepared fields. Use {@link #setPreparedField(String, String)} to change them while logging,
+     * otherwise change can be missed by messages until next change.
+     */
+    public synchronized Map<String, String> getPreparedFields() {
         if (preparedFields == null) {
             preparedFields = new HashMap<String, String>();
         }
+        staticFields = null;
         return preparedFields;
     }
+    
+    /**
+     * Sets prepared field, change is picked up by next message.
+     */
+    public synchronized void setPreparedField(String name, String value) {
+        if (preparedFields == null) {
+            preparedFields = new HashMap<String, String>();
+        }
+        preparedFields.put(name, value);
+        staticFields = null;
+    }
+
+    /**
+     * Version, host, facility and prepared fields, encoded once until one of them is changed.
+     */
+    protected GelfStaticFields getStaticFields() {
+    	GelfStaticFields sf = staticFields;
+    	if (sf == null) {
+    		synchronized (this) {
+    			// Built under the same lock as changes, so change can`t be lost between invalidation and caching
+    			sf = staticFields;
+    			if (sf == null) {
+    				sf = new GelfStaticFields(GelfMessage.GELF_VERSION, getOriginHost(), getFacility(), preparedFields);
+    				staticFields = sf;
+    			}
+    		}
+    	}
+    	return sf;
+    }
 
     public GelfSender getSender() {
         return sender;
     }
 
-    public void close() {
+    public synchronized void close() {
+    	if (deduplicator != null) {
+    		deduplicator.stop();
+    		deduplicator = null;
+    	}
+    	if (rateLimiter != null) {
+    		rateLimiter.stop();
+    		rateLimiter = null;
+    	}
     	if (sender != null) {
-    		sender.close();
+    		GelfSenderRegistry.release(sender);
     		sender = null;
     	} 
     }
@@ -105,18 +158,40 @@ public class GelfHandler extends Handler {
             return;
         }
 
+		GelfSender sender = this.sender;
 		if (sender == null) {
-    		try {
-    			configure();
-    		} catch (IOException e) {
-	        	// Don`t care, but don`t printStackTrace to avoid loops
-	        	System.err.println("Failed to configure sender: " + e);
-    		}
-    	}
+			// Only one of concurrent first publishing threads configures handler
+			synchronized (this) {
+				if (this.sender == null) {
+					try {
+						configure();
+					} catch (IOException e) {
+						// Don`t care, but don`t printStackTrace to avoid loops
+						System.err.println("Failed to configure sender: " + e);
+					}
+				}
+			}
+			sender = this.sender;
+		}
     	
     	if (sender != null) {
+    		long fingerprint = 0;
+    		if (deduplicator != null) {
+    			fingerprint = GelfDeduplicator.fingerprint(record.getLoggerName(), record.getLevel().intValue(), record.getMessage(), record.getThrown());
+    			if (!deduplicator.admit(fingerprint)) {
+    				return;
+    			}
+    		}
+    		
+    		if (rateLimiter != null && !rateLimiter.admit(record.getLoggerName(), getAdmissionLevel(record.getLevel()))) {
+    			return;
+    		}
+    		
 			GelfMessage m = makeMessage(record);
 			if (m != null) {
+				if (deduplicator != null) {
+					deduplicator.sent(fingerprint, m);
+				}
 		        try {
 		        	sender.sendMessage(m);
 		        } catch (IOException e) {
@@ -162,6 +237,26 @@ public class GelfHandler extends Handler {
 			}
 		}
 		
+		// Whitelisted SLF4J MDC keys, looked up without copying MDC
+		String contextKeys = getStringProperty(cname + ".contextKeys", null);
+		if (contextKeys != null) {
+			if (updaterInstance instanceof MDCGelfUpdater) {
+				((MDCGelfUpdater) updaterInstance).setKeys(contextKeys);
+			} else
+			if (updaterInstance == null) {
+				updaterInstance = new MDCGelfUpdater(contextKeys);
+			} else {
+				System.err.println("GelfHandler: contextKeys ignored, updater " + updater + " is used");
+			}
+		}
+		
+		stackTraceRenderer = new GelfStackTraceRenderer(
+			Integer.parseInt(getStringProperty(cname + ".stacktraceDepth", "0")),
+			Integer.parseInt(getStringProperty(cname + ".stacktraceCauses", "0")),
+			getStringProperty(cname + ".stacktraceFold", null),
+			Integer.parseInt(getStringProperty(cname + ".stacktraceCacheSize", String.valueOf(GelfStackTraceRenderer.DEFAULT_CACHE_SIZE)))
+		);
+		
 		String fields = getStringProperty(cname + ".fields", null);
 		if (fields != null) {
 			for (StringTokenizer en = new StringTokenizer(fields, ",; \r\n\t"); en.hasMoreElements();) {
@@ -172,20 +267,67 @@ public class GelfHandler extends Handler {
 					if (eqi >= 0) {
 						v = v.substring(eqi + 1);
 						n = n.substring(0, eqi);
-						getPreparedFields().put(n, v);
+						setPreparedField(n, v);
 					}
 				}
 			}
 		}
 		
+		staticFields = null;
+		getStaticFields();
+		
 		GelfSender s = new GelfSender(
 			proto,
 			getStringProperty(cname + ".host", "localhost"), 
 			Integer.parseInt(getStringProperty(cname + ".port", String.valueOf(GelfSender.DEFAULT_PORT)))
 		);	
+		s.setAsync("true".equalsIgnoreCase(getStringProperty(cname + ".async", "false")));
+		s.setQueueSize(Integer.parseInt(getStringProperty(cname + ".queueSize", String.valueOf(GelfSender.DEFAULT_QUEUE_SIZE))));
+		s.setOverflowPolicy(OverflowPolicy.parse(getStringProperty(cname + ".overflowPolicy", null)));
+		s.setCompression(Codec.parse(getStringProperty(cname + ".compression", null)));
+		s.setCompressionLevel(Integer.parseInt(getStringProperty(cname + ".compressionLevel", String.valueOf(Deflater.DEFAULT_COMPRESSION))));
+		s.setCompressionThreshold(Integer.parseInt(getStringProperty(cname + ".compressionThreshold", "0")));
+		s.setBatchSize(Integer.parseInt(getStringProperty(cname + ".batchSize", "0")));
+		s.setBatchLinger(Long.parseLong(getStringProperty(cname + ".batchLinger", String.valueOf(GelfSender.DEFAULT_BATCH_LINGER))));
+		s.setConnectTimeout(Long.parseLong(getStringProperty(cname + ".connectTimeout", String.valueOf(GelfSender.DEFAULT_CONNECT_TIMEOUT))));
+		s.setBalance(Balance.parse(getStringProperty(cname + ".balance", null)));
+		s.setDnsTtl(Long.parseLong(getStringProperty(cname + ".dnsTtl", String.valueOf(GelfSender.DEFAULT_DNS_TTL))));
+		s.setSpillDir(getStringProperty(cname + ".spillDir", null));
+		s.setSpillMaxSize(Long.parseLong(getStringProperty(cname + ".spillMaxSize", String.valueOf(GelfSpillBuffer.DEFAULT_MAX_SIZE))));
+		s.setJmx("true".equalsIgnoreCase(getStringProperty(cname + ".jmx", "true")));
+		String metricsListener = getStringProperty(cname + ".metricsListener", null);
+		if (metricsListener != null) {
+			try {
+				s.setMetricsListener((GelfMetricsListener) Class.forName(metricsListener).newInstance());
+			} catch (Exception e) {
+				System.err.println("GelfHandler: failed to create " + metricsListener + " instance: " + e);
+			}
+		}
 	
+		if ("true".equalsIgnoreCase(getStringProperty(cname + ".sharedSender", "true"))) {
+			s = GelfSenderRegistry.acquire(s);
+		}
+		
+		GelfRateLimiter limiter = new GelfRateLimiter(
+			Double.parseDouble(getStringProperty(cname + ".rateLimit", "0")),
+			Integer.parseInt(getStringProperty(cname + ".rateBurst", "0")),
+			Double.parseDouble(getStringProperty(cname + ".sampleDebug", "1")),
+			Double.parseDouble(getStringProperty(cname + ".sampleInfo", "1"))
+		);
+		if (limiter.isEnabled()) {
+			limiter.start(s, originHost, facility, Long.parseLong(getStringProperty(cname + ".rateSummaryInterval", String.valueOf(GelfRateLimiter.DEFAULT_SUMMARY_INTERVAL))));
+			rateLimiter = limiter;
+		}
+		
+		long dedupWindow = Long.parseLong(getStringProperty(cname + ".dedupWindow", "0"));
+		if (dedupWindow > 0) {
+			deduplicator = new GelfDeduplicator(dedupWindow, Integer.parseInt(getStringProperty(cname + ".dedupMaxEntries", String.valueOf(GelfDeduplicator.DEFAULT_MAX_ENTRIES))));
+			deduplicator.start(s);
+		}
+		
+		// Published last, so other threads see fully configured handler
 		sender = s;
-		System.err.println("Started GELF java logging handler: " + proto.name().toLowerCase() + "://" + sender.getHost() + ":" + sender.getPort() + 
+		System.err.println("Started GELF java logging handler: " + proto.name().toLowerCase() + "://" + s.getHost() + ":" + s.getPort() + 
 						", min level " + getLevel() + 
 						", facility " + getFacility() + ", originHost " + originHost);
 	}
@@ -207,32 +349,26 @@ public class GelfHandler extends Handler {
             shortMessage = renderedMessage;
         }
 
+        GelfMessage gelfMessage = messagePool.obtain();
+        gelfMessage.setShortMessage(shortMessage);
+        gelfMessage.setFullMessage(renderedMessage);
+        gelfMessage.setTimestamp(timeStamp);
+        gelfMessage.setLevel(getSyslogEquivalent(level));
+        int length = renderedMessage.length();
+
         // Receive stack trace and file:line
-        GelfMessage m = null;
         Throwable t = event.getThrown();
         if (isExtractStacktrace() && t != null) {
-        	m = new GelfMessage();
-        	renderedMessage += "\n" + GelfMessage.extractStacktrace(t, m, 0);
-        }
-        
-        GelfMessage gelfMessage = new GelfMessage(shortMessage, renderedMessage, timeStamp, getSyslogEquivalent(level), null, 0);
-        if (m != null) {
-        	gelfMessage.setFile(m.getFile());
-        	gelfMessage.setLine(m.getLine());
-        }
-
-        if (getOriginHost() != null) {
-            gelfMessage.setHost(getOriginHost());
+        	GelfStackTraceRenderer.StackTrace st = stackTraceRenderer.render(t);
+        	gelfMessage.setStackTrace(st);
+        	length += 1 + st.length();
+        	if (st.getTop() != null) {
+        		gelfMessage.setFile(st.getTop().getFileName());
+        		gelfMessage.setLine(st.getTop().getLineNumber());
+        	}
         }
 
-        if (getFacility() != null) {
-            gelfMessage.setFacility(getFacility());
-        }
-
-        Map<String, String> fields = getPreparedFields();
-        for (Map.Entry<String, String> entry : fields.entrySet()) {
-            gelfMessage.addField(entry.getKey(), entry.getValue());
-        }
+        gelfMessage.setStaticFields(getStaticFields());
 
         if (addExtendedInformation) {
             if (t != null) {
@@ -243,7 +379,7 @@ public class GelfHandler extends Handler {
             }
             gelfMessage.addField("thread_name", Thread.currentThread().getName());
             gelfMessage.addField("original_level", level.getName());
-            gelfMessage.addField("char_length", renderedMessage.length());
+            gelfMessage.addField("char_length", length);
             
             if (event.getSourceClassName() != null) {
             	if (event.getSourceMethodName() != null) {
@@ -282,6 +418,13 @@ public class GelfHandler extends Handler {
 		}
 		return lev;
 	}
+    
+    /**
+     * Syslog level for {@link GelfRateLimiter}, which also distinguishes DEBUG.
+     */
+    protected static int getAdmissionLevel(Level level) {
+    	return level.intValue() < Level.INFO.intValue() ? GelfMessage.SYSLOG_DEBUG : getSyslogEquivalent(level);
+    }
 
     
     public void flush() {
@@ -0,0 +1,77 @@
+package com.wizecore.graylog;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with fixed power of two buckets, striped by thread like {@link GelfCounter}.
+ * Bucket N counts values from 2^(N-1) to 2^N - 1 nanoseconds, percentiles are reported as bucket upper bound.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfHistogram {
+	/**
+	 * Number of buckets, last one holds everything above ~4.5 minutes.
+	 */
+	public static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(GelfCounter.STRIPES * BUCKETS);
+	private final GelfCounter sum = new GelfCounter();
+
+	public void record(long nanos) {
+		int b = nanos > 0 ? Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1) : 0;
+		buckets.getAndIncrement(GelfCounter.stripe() * BUCKETS + b);
+		sum.add(nanos);
+	}
+
+	/**
+	 * Count of values in each bucket.
+	 */
+	public long[] getBuckets() {
+		long[] l = new long[BUCKETS];
+		for (int s = 0; s < GelfCounter.STRIPES; s++) {
+			for (int b = 0; b < BUCKETS; b++) {
+				l[b] += buckets.get(s * BUCKETS + b);
+			}
+		}
+		return l;
+	}
+
+	public long getCount() {
+		long n = 0;
+		for (long c: getBuckets()) {
+			n += c;
+		}
+		return n;
+	}
+
+	public long getMean() {
+		long n = getCount();
+		return n > 0 ? sum.get() / n : 0;
+	}
+
+	/**
+	 * Upper bound in nanoseconds of the bucket holding specified percentile.
+	 *
+	 * @param p percentile, from 0 to 100
+	 */
+	public long getPercentile(double p) {
+		long[] l = getBuckets();
+		long n = 0;
+		for (long c: l) {
+			n += c;
+		}
+		if (n == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(n * p / 100);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += l[b];
+			if (seen >= rank && l[b] > 0) {
+				return (1L << b) - 1;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+}
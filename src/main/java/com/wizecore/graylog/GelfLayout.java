@@ -0,0 +1,323 @@
+package com.wizecore.graylog;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.zip.Deflater;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginConfiguration;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.layout.AbstractLayout;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.message.Message;
+
+import com.wizecore.graylog.GelfCompressor.Codec;
+
+/**
+ * Log4j v2. layout which encodes events as GELF, to be used with any appender (Socket, Kafka, Http, etc.).
+ * <p>
+ * Requires log4j 2.7 or later. Events are encoded into thread local buffer and written directly
+ * into appender {@link ByteBufferDestination}, without creating byte array for every event.
+ * Messages can be terminated with null byte (GELF TCP framing) and compressed with gzip or zlib.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+@Plugin(name="GelfLayout", category="Core", elementType="layout", printObject=true)
+public class GelfLayout extends AbstractLayout<byte[]> {
+
+	private static final long serialVersionUID = 1L;
+
+	protected boolean addExtendedInformation = true;
+	protected Map<String,String> preparedFields;
+	protected String facility;
+	protected String originHost;
+	protected boolean extractStacktrace = true;
+	protected boolean addContextData;
+	protected transient GelfContextKeys contextKeys;
+	protected boolean includeNullDelimiter;
+	protected Codec compression = Codec.NONE;
+	protected int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	protected transient GelfMessageUpdater updaterInstance;
+	protected transient GelfStackTraceRenderer stackTraceRenderer = new GelfStackTraceRenderer();
+	protected transient GelfStaticFields staticFields;
+	protected final transient GelfMessagePool messagePool = new GelfMessagePool();
+
+	private final transient ThreadLocal<GelfEncoder> encoder = new ThreadLocal<GelfEncoder>() {
+		@Override
+		protected GelfEncoder initialValue() {
+			return new GelfEncoder();
+		}
+	};
+
+	private final transient ThreadLocal<GelfCompressor> compressor = new ThreadLocal<GelfCompressor>() {
+		@Override
+		protected GelfCompressor initialValue() {
+			return new GelfCompressor(compression, compressionLevel, 0);
+		}
+	};
+
+	protected GelfLayout(Configuration config, String fields, String facility, String originHost,
+			boolean addExtendedInformation, boolean extractStackTrace, boolean addContextData,
+			boolean includeNullDelimiter, Codec compression, int compressionLevel, String updater) {
+		super(config, null, null);
+
+		this.facility = facility;
+		this.originHost = originHost;
+		this.addExtendedInformation = addExtendedInformation;
+		this.extractStacktrace = extractStackTrace;
+		this.addContextData = addContextData;
+		this.includeNullDelimiter = includeNullDelimiter;
+		this.compression = compression;
+		this.compressionLevel = compressionLevel;
+
+		if (updater != null) {
+			try {
+				updaterInstance = (GelfMessageUpdater) Class.forName(updater).newInstance();
+			} catch (Exception e) {
+				System.err.println("GelfLayout: failed to create " + updater + " instance: " + e);
+			}
+		}
+
+		if (fields != null) {
+			Map<String,String> preparedFields = new HashMap<String, String>();
+			for (StringTokenizer en = new StringTokenizer(fields, ",; \r\n\t"); en.hasMoreElements();) {
+				String v = en.nextToken();
+				if (v != null && !v.trim().equals("=")) {
+					String n = v;
+					int eqi = v.indexOf("=");
+					if (eqi >= 0) {
+						v = v.substring(eqi + 1);
+						n = n.substring(0, eqi);
+						preparedFields.put(n, v);
+					}
+				}
+			}
+			this.preparedFields = preparedFields;
+		}
+
+		staticFields = new GelfStaticFields(GelfMessage.GELF_VERSION, originHost, facility, preparedFields);
+	}
+
+	protected GelfMessage makeMessage(LogEvent event) {
+		Level level = event.getLevel();
+		Message message = event.getMessage();
+		if (message == null) {
+			return null;
+		}
+
+		GelfMessage gelfMessage = messagePool.obtain();
+		StringBuilder text = gelfMessage.getMessageBuffer();
+		GelfLog4j2Support.formatTo(message, text);
+		if (text.length() == 0) {
+			gelfMessage.release();
+			return null;
+		}
+
+		gelfMessage.setMessageFromBuffer();
+		gelfMessage.setTimestamp(event.getTimeMillis());
+		gelfMessage.setLevel(GelfAppender2.getSyslogEquivalent(level));
+		int length = text.length();
+
+		Throwable t = event.getThrown();
+		if (extractStacktrace && t != null) {
+			GelfStackTraceRenderer.StackTrace st = stackTraceRenderer.render(t);
+			gelfMessage.setStackTrace(st);
+			length += 1 + st.length();
+			if (st.getTop() != null) {
+				gelfMessage.setFile(st.getTop().getFileName());
+				gelfMessage.setLine(st.getTop().getLineNumber());
+			}
+		}
+
+		gelfMessage.setStaticFields(staticFields);
+
+		if (addExtendedInformation) {
+			if (t != null) {
+				gelfMessage.addField("exception", t.getClass().getName());
+			}
+			if (t != null && t.getMessage() != null) {
+				gelfMessage.addField("exception_message", t.getMessage());
+			}
+			gelfMessage.addField("thread_name", event.getThreadName());
+			gelfMessage.addField("original_level", level.toString());
+			gelfMessage.addField("char_length", length);
+			gelfMessage.addField("logger", event.getLoggerName());
+		}
+
+		if (addContextData) {
+			GelfLog4j2Support.addContextData(event, gelfMessage, contextKeys);
+		}
+
+		if (updaterInstance != null) {
+			updaterInstance.update(gelfMessage);
+		}
+
+		return gelfMessage;
+	}
+
+	/**
+	 * Encodes event into thread local encoder, and compresses it if configured.
+	 *
+	 * @return compressor with result, or null if event has no message
+	 */
+	private GelfCompressor encodeEvent(LogEvent event) {
+		GelfMessage m = makeMessage(event);
+		if (m == null) {
+			return null;
+		}
+
+		GelfEncoder e = encoder.get();
+		try {
+			e.reset();
+			e.encode(m);
+		} finally {
+			m.release();
+		}
+
+		GelfCompressor c = compressor.get();
+		c.compress(e.getBuffer(), e.size());
+		return c;
+	}
+
+	@Override
+	public void encode(LogEvent event, ByteBufferDestination destination) {
+		GelfCompressor c = encodeEvent(event);
+		if (c == null) {
+			return;
+		}
+
+		byte[] b = c.getBuffer();
+		int off = 0;
+		int len = c.size();
+		synchronized (destination) {
+			ByteBuffer buf = destination.getByteBuffer();
+			while (len > 0) {
+				if (!buf.hasRemaining()) {
+					buf = destination.drain(buf);
+					continue;
+				}
+				int n = Math.min(len, buf.remaining());
+				buf.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+			if (includeNullDelimiter) {
+				// Delimiter frames (possibly compressed) message, so it is written after it
+				if (!buf.hasRemaining()) {
+					buf = destination.drain(buf);
+				}
+				buf.put((byte) 0);
+			}
+		}
+	}
+
+	@Override
+	public byte[] toByteArray(LogEvent event) {
+		GelfCompressor c = encodeEvent(event);
+		if (c == null) {
+			return new byte[0];
+		}
+		byte[] b = new byte[c.size() + (includeNullDelimiter ? 1 : 0)];
+		System.arraycopy(c.getBuffer(), 0, b, 0, c.size());
+		return b;
+	}
+
+	@Override
+	public byte[] toSerializable(LogEvent event) {
+		return toByteArray(event);
+	}
+
+	@Override
+	public String getContentType() {
+		return "application/json";
+	}
+
+	@Override
+	public Map<String, String> getContentFormat() {
+		Map<String, String> m = new HashMap<String, String>();
+		m.put("version", GelfMessage.GELF_VERSION);
+		m.put("compression", compression.name().toLowerCase());
+		return m;
+	}
+
+	@PluginFactory
+	public static GelfLayout createLayout(
+			@PluginConfiguration Configuration config,
+			@PluginAttribute(value = "fields") String fields,
+			@PluginAttribute(value = "facility") String facility,
+			@PluginAttribute(value = "originHost") String originHost,
+			@PluginAttribute(value = "addExtendedInformation", defaultBoolean = true) Boolean addExtendedInformation,
+			@PluginAttribute(value = "extractStackTrace", defaultBoolean = true) Boolean extractStackTrace,
+			@PluginAttribute(value = "addContextData") Boolean addContextData,
+			@PluginAttribute(value = "contextKeys") String contextKeys,
+			@PluginAttribute(value = "includeNullDelimiter") Boolean includeNullDelimiter,
+			@PluginAttribute(value = "compression") String compression,
+			@PluginAttribute(value = "compressionLevel", defaultInt = Deflater.DEFAULT_COMPRESSION) Integer compressionLevel,
+			@PluginAttribute(value = "updater") String updater,
+			@PluginAttribute(value = "stacktraceDepth") Integer stacktraceDepth,
+			@PluginAttribute(value = "stacktraceCauses") Integer stacktraceCauses,
+			@PluginAttribute(value = "stacktraceFold") String stacktraceFold,
+			@PluginAttribute(value = "stacktraceCacheSize", defaultInt = GelfStackTraceRenderer.DEFAULT_CACHE_SIZE) Integer stacktraceCacheSize
+			) {
+		if (originHost == null) {
+			originHost = GelfSender.findLocalHostName();
+		}
+
+		if (facility == null) {
+			facility = System.getProperty("jvmRoute", "gelf-logger");
+		}
+
+		GelfContextKeys keys = GelfContextKeys.parse(contextKeys);
+
+		// Unlike UDP appender, layout output is not compressed by default
+		Codec codec = compression != null ? Codec.parse(compression) : Codec.NONE;
+
+		GelfLayout l = new GelfLayout(config, fields, facility, originHost,
+				addExtendedInformation == null || addExtendedInformation,
+				extractStackTrace == null || extractStackTrace,
+				(addContextData != null && addContextData) || keys != null,
+				includeNullDelimiter != null && includeNullDelimiter,
+				codec,
+				compressionLevel != null ? compressionLevel : Deflater.DEFAULT_COMPRESSION,
+				updater);
+
+		l.contextKeys = keys;
+		l.stackTraceRenderer = new GelfStackTraceRenderer(
+			stacktraceDepth != null ? stacktraceDepth : 0,
+			stacktraceCauses != null ? stacktraceCauses : 0,
+			stacktraceFold,
+			stacktraceCacheSize != null ? stacktraceCacheSize : GelfStackTraceRenderer.DEFAULT_CACHE_SIZE
+		);
+		return l;
+	}
+
+	public Map<String, String> getPreparedFields() {
+		return preparedFields;
+	}
+
+	public String getFacility() {
+		return facility;
+	}
+
+	public String getOriginHost() {
+		return originHost;
+	}
+
+	public boolean isExtractStacktrace() {
+		return extractStacktrace;
+	}
+
+	public boolean isAddExtendedInformation() {
+		return addExtendedInformation;
+	}
+
+	public boolean isIncludeNullDelimiter() {
+		return includeNullDelimiter;
+	}
+}
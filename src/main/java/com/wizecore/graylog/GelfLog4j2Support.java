@@ -0,0 +1,62 @@
+package com.wizecore.graylog;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.apache.logging.log4j.util.TriConsumer;
+
+/**
+ * Garbage-free log4j 2.7+ APIs. Loaded only if {@link GelfAppender2#GARBAGE_FREE}, so appender still works with older log4j versions.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+final class GelfLog4j2Support {
+	private static final TriConsumer<String, Object, GelfMessage> ADD_FIELD = new TriConsumer<String, Object, GelfMessage>() {
+		@Override
+		public void accept(String key, Object value, GelfMessage m) {
+			m.addField(key, value);
+		}
+	};
+
+	private GelfLog4j2Support() {
+	}
+
+	/**
+	 * Renders message into buffer, without creating formatted String if message supports it.
+	 */
+	static void formatTo(Message message, StringBuilder buffer) {
+		if (message instanceof StringBuilderFormattable) {
+			((StringBuilderFormattable) message).formatTo(buffer);
+		} else {
+			String s = message.getFormattedMessage();
+			if (s != null) {
+				buffer.append(s);
+			}
+		}
+	}
+
+	/**
+	 * Adds event context data (ThreadContext map) as additional fields, iterating without copy.
+	 *
+	 * @param keys whitelisted keys, or null to add all
+	 */
+	static void addContextData(LogEvent event, GelfMessage m, GelfContextKeys keys) {
+		ReadOnlyStringMap data = event.getContextData();
+		if (data == null || data.isEmpty()) {
+			return;
+		}
+
+		if (keys == null) {
+			data.forEach(ADD_FIELD, m);
+			return;
+		}
+
+		for (int i = 0; i < keys.size(); i++) {
+			Object v = data.getValue(keys.getKey(i));
+			if (v != null) {
+				m.addField(keys.getName(i), v);
+			}
+		}
+	}
+}
@@ -2,14 +2,21 @@ package com.wizecore.graylog;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * Abstract self-contained GELF message representation, able to be converted to JSON string.
+ * <p>
+ * Additional fields are kept in parallel key and value arrays, {@link #getAdditonalFields()} is a live view of them.
+ * Messages obtained from {@link GelfMessagePool} are reset and returned to the pool by {@link GelfSender}
+ * when message is sent, so they must not be used after {@link GelfSender#sendMessage(GelfMessage)}.
  * 
  * @author Ruslan Gainutdinov <huksley@wizecore.com>
  * @author Anton Yakimov
@@ -28,6 +35,27 @@ public class GelfMessage {
     public final static int SYSLOG_WARN = 4;
     public final static int SYSLOG_ERROR = 3;
     public final static int SYSLOG_INFO = 6;
+    public final static int SYSLOG_DEBUG = 7;
+    
+    /**
+     * Types of additional field values, see {@link #getFieldType(int)}.
+     */
+    public static final byte FIELD_OBJECT = 0;
+    public static final byte FIELD_LONG = 1;
+    public static final byte FIELD_DOUBLE = 2;
+    public static final byte FIELD_BOOLEAN = 3;
+    
+    private static final int INITIAL_FIELDS = 16;
+    
+    /**
+     * Field arrays grown above this size are released on {@link #reset()}.
+     */
+    private static final int MAX_RETAINED_FIELDS = 256;
+    
+    /**
+     * Message buffer grown above this size is released on {@link #reset()}.
+     */
+    private static final int MAX_RETAINED_TEXT = 64 * 1024;
 
     private String version = GELF_VERSION;
     private String host;
@@ -38,7 +66,19 @@ public class GelfMessage {
     private String facility;
     private int line;
     private String file;
-    private Map<String, Object> additonalFields = new HashMap<String, Object>();
+    private String[] keys = new String[INITIAL_FIELDS];
+    private Object[] values = new Object[INITIAL_FIELDS];
+    private long[] numbers = new long[INITIAL_FIELDS];
+    private byte[] types = new byte[INITIAL_FIELDS];
+    private int fieldCount;
+    private Map<String, Object> fieldsView;
+    private GelfMessagePool pool;
+    private int home;
+    private boolean released;
+    private GelfStackTraceRenderer.StackTrace stackTrace;
+    private GelfStaticFields staticFields;
+    private StringBuilder text;
+    private boolean textMessage;
 
     public GelfMessage() {
     }
@@ -78,6 +118,9 @@ public class GelfMessage {
     }
 
     public String getShortMessage() {
+        if (shortMessage == null && textMessage) {
+            shortMessage = text.substring(0, shortMessageEnd());
+        }
         return shortMessage;
     }
 
@@ -86,8 +129,56 @@ public class GelfMessage {
     }
 
     public String getFullMessage() {
+        if (fullMessage == null && textMessage) {
+            fullMessage = text.toString();
+        }
         return fullMessage;
     }
+    
+    /**
+     * Reusable buffer to render message text into, see {@link #setMessageFromBuffer()}.
+     */
+    public StringBuilder getMessageBuffer() {
+        if (text == null) {
+            text = new StringBuilder(256);
+        }
+        return text;
+    }
+    
+    /**
+     * Uses message buffer as full message, and its start as short message. 
+     * Buffer is encoded directly, strings are created only if {@link #getShortMessage()} or {@link #getFullMessage()} is called.
+     */
+    public void setMessageFromBuffer() {
+        shortMessage = null;
+        fullMessage = null;
+        textMessage = true;
+    }
+    
+    /**
+     * Short message chars from 0 to {@link #shortMessageEnd()}, for encoder.
+     */
+    CharSequence shortMessageChars() {
+        return shortMessage != null || !textMessage ? shortMessage : text;
+    }
+    
+    int shortMessageEnd() {
+        if (shortMessage != null || !textMessage) {
+            return shortMessage != null ? shortMessage.length() : 0;
+        }
+        int n = text.length();
+        return n > MAX_MESSAGE_LENGTH ? MAX_MESSAGE_LENGTH - 1 : n;
+    }
+    
+    /**
+     * Full message chars for encoder, short message if there is no full message.
+     */
+    CharSequence fullMessageChars() {
+        if (fullMessage != null) {
+            return fullMessage;
+        }
+        return textMessage ? text : shortMessage;
+    }
 
     public void setFullMessage(String fullMessage) {
         this.fullMessage = fullMessage;
@@ -133,21 +224,381 @@ public class GelfMessage {
         this.file = file;
     }
 
+    /**
+     * Stack trace appended to full message when encoded.
+     */
+    public GelfStackTraceRenderer.StackTrace getStackTrace() {
+        return stackTrace;
+    }
+
+    public void setStackTrace(GelfStackTraceRenderer.StackTrace stackTrace) {
+        this.stackTrace = stackTrace;
+    }
+
+    public GelfStaticFields getStaticFields() {
+        return staticFields;
+    }
+
+    /**
+     * Sets version, host and facility from static fields, which are then encoded as one precompiled block.
+     */
+    public void setStaticFields(GelfStaticFields staticFields) {
+        this.staticFields = staticFields;
+        if (staticFields != null) {
+            version = staticFields.getVersion();
+            host = staticFields.getHost();
+            facility = staticFields.getFacility();
+        }
+    }
+
+    /**
+     * Adds field or replaces value of field with the same name.
+     */
     public GelfMessage addField(String key, Object value) {
-        getAdditonalFields().put(key, value);
+        int i = slot(key);
+        types[i] = FIELD_OBJECT;
+        values[i] = value;
         return this;
     }
+    
+    /**
+     * Adds numeric field, without boxing.
+     */
+    public GelfMessage addField(String key, long value) {
+        int i = slot(key);
+        types[i] = FIELD_LONG;
+        values[i] = null;
+        numbers[i] = value;
+        return this;
+    }
+    
+    /**
+     * Adds numeric field, without boxing.
+     */
+    public GelfMessage addField(String key, double value) {
+        int i = slot(key);
+        types[i] = FIELD_DOUBLE;
+        values[i] = null;
+        numbers[i] = Double.doubleToRawLongBits(value);
+        return this;
+    }
+    
+    /**
+     * Adds boolean field, without boxing.
+     */
+    public GelfMessage addField(String key, boolean value) {
+        int i = slot(key);
+        types[i] = FIELD_BOOLEAN;
+        values[i] = null;
+        numbers[i] = value ? 1 : 0;
+        return this;
+    }
+    
+    /**
+     * Index of existing field, or of new field added to the end.
+     */
+    private int slot(String key) {
+        int i = indexOf(key);
+        if (i >= 0) {
+            return i;
+        }
+        
+        if (fieldCount == keys.length) {
+            keys = Arrays.copyOf(keys, fieldCount * 2);
+            values = Arrays.copyOf(values, fieldCount * 2);
+            numbers = Arrays.copyOf(numbers, fieldCount * 2);
+            types = Arrays.copyOf(types, fieldCount * 2);
+        }
+        keys[fieldCount] = key;
+        return fieldCount++;
+    }
+    
+    private int indexOf(Object key) {
+        for (int i = 0; i < fieldCount; i++) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        if (key != null) {
+            for (int i = 0; i < fieldCount; i++) {
+                if (key.equals(keys[i])) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+    
+    private void removeField(int i) {
+        fieldCount--;
+        System.arraycopy(keys, i + 1, keys, i, fieldCount - i);
+        System.arraycopy(values, i + 1, values, i, fieldCount - i);
+        System.arraycopy(numbers, i + 1, numbers, i, fieldCount - i);
+        System.arraycopy(types, i + 1, types, i, fieldCount - i);
+        keys[fieldCount] = null;
+        values[fieldCount] = null;
+    }
+    
+    private void clearFields() {
+        Arrays.fill(keys, 0, fieldCount, null);
+        Arrays.fill(values, 0, fieldCount, null);
+        fieldCount = 0;
+    }
+    
+    public int getFieldCount() {
+        return fieldCount;
+    }
+    
+    public String getFieldKey(int i) {
+        return keys[i];
+    }
+    
+    /**
+     * Value of field, boxed if field was added as primitive.
+     */
+    public Object getFieldValue(int i) {
+        switch (types[i]) {
+        case FIELD_LONG:
+            return numbers[i];
+        case FIELD_DOUBLE:
+            return Double.longBitsToDouble(numbers[i]);
+        case FIELD_BOOLEAN:
+            return numbers[i] != 0;
+        default:
+            return values[i];
+        }
+    }
+    
+    /**
+     * One of {@link #FIELD_OBJECT}, {@link #FIELD_LONG}, {@link #FIELD_DOUBLE}, {@link #FIELD_BOOLEAN}.
+     */
+    public byte getFieldType(int i) {
+        return types[i];
+    }
+    
+    public long getFieldLong(int i) {
+        return numbers[i];
+    }
+    
+    public double getFieldDouble(int i) {
+        return Double.longBitsToDouble(numbers[i]);
+    }
+    
+    public boolean getFieldBoolean(int i) {
+        return numbers[i] != 0;
+    }
 
+    /**
+     * Live map view of additional fields, changes are written through to the message.
+     */
     public Map<String, Object> getAdditonalFields() {
-        return additonalFields;
+        if (fieldsView == null) {
+            fieldsView = new FieldsView();
+        }
+        return fieldsView;
     }
 
     public void setAdditonalFields(Map<String, Object> additonalFields) {
-        this.additonalFields = additonalFields;
+        clearFields();
+        for (Map.Entry<String, Object> e: additonalFields.entrySet()) {
+            addField(e.getKey(), e.getValue());
+        }
+    }
+    
+    /**
+     * Clears message for reuse, keeping field arrays.
+     */
+    public void reset() {
+        version = GELF_VERSION;
+        host = null;
+        shortMessage = null;
+        fullMessage = null;
+        timestamp = 0;
+        level = 0;
+        facility = null;
+        line = 0;
+        file = null;
+        stackTrace = null;
+        staticFields = null;
+        textMessage = false;
+        if (text != null) {
+            if (text.capacity() > MAX_RETAINED_TEXT) {
+                text = null;
+            } else {
+                text.setLength(0);
+            }
+        }
+        if (keys.length > MAX_RETAINED_FIELDS) {
+            keys = new String[INITIAL_FIELDS];
+            values = new Object[INITIAL_FIELDS];
+            numbers = new long[INITIAL_FIELDS];
+            types = new byte[INITIAL_FIELDS];
+            fieldCount = 0;
+        } else {
+            clearFields();
+        }
+    }
+    
+    /**
+     * Returns message to the pool it was obtained from, does nothing for messages created with constructor.
+     */
+    public void release() {
+        GelfMessagePool p = pool;
+        if (p != null && !released) {
+            released = true;
+            reset();
+            p.release(this, home);
+        }
+    }
+    
+    /**
+     * Called by {@link GelfMessagePool} when message is taken from it.
+     */
+    void obtained(GelfMessagePool pool, int home) {
+        this.pool = pool;
+        this.home = home;
+        released = false;
+    }
+    
+    /**
+     * Keeps message out of the pool, so it can be referenced after it is sent.
+     */
+    public void detach() {
+        pool = null;
+    }
+    
+    /**
+     * Copy which is not pooled, to keep message after it is sent.
+     */
+    public GelfMessage copy() {
+        GelfMessage m = new GelfMessage(getShortMessage(), getFullMessage(), timestamp, level, file, line);
+        m.version = version;
+        m.host = host;
+        m.facility = facility;
+        m.stackTrace = stackTrace;
+        m.staticFields = staticFields;
+        m.keys = Arrays.copyOf(keys, keys.length);
+        m.values = Arrays.copyOf(values, values.length);
+        m.numbers = Arrays.copyOf(numbers, numbers.length);
+        m.types = Arrays.copyOf(types, types.length);
+        m.fieldCount = fieldCount;
+        return m;
+    }
+    
+    private class FieldsView extends AbstractMap<String, Object> {
+        private final Set<Map.Entry<String, Object>> entries = new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new Iterator<Map.Entry<String, Object>>() {
+                    int next;
+                    int last = -1;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < fieldCount;
+                    }
+
+                    @Override
+                    public Map.Entry<String, Object> next() {
+                        if (next >= fieldCount) {
+                            throw new NoSuchElementException();
+                        }
+                        last = next++;
+                        final int i = last;
+                        return new SimpleEntry<String, Object>(keys[i], getFieldValue(i)) {
+                            private static final long serialVersionUID = 1L;
+
+                            @Override
+                            public Object setValue(Object value) {
+                                types[i] = FIELD_OBJECT;
+                                values[i] = value;
+                                return super.setValue(value);
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last < 0) {
+                            throw new IllegalStateException();
+                        }
+                        removeField(last);
+                        next = last;
+                        last = -1;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return fieldCount;
+            }
+
+            @Override
+            public void clear() {
+                clearFields();
+            }
+        };
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return entries;
+        }
+
+        @Override
+        public int size() {
+            return fieldCount;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return indexOf(key) >= 0;
+        }
+
+        @Override
+        public Object get(Object key) {
+            int i = indexOf(key);
+            return i >= 0 ? getFieldValue(i) : null;
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            int i = indexOf(key);
+            Object old = i >= 0 ? getFieldValue(i) : null;
+            addField(key, value);
+            return old;
+        }
+
+        @Override
+        public Object remove(Object key) {
+            int i = indexOf(key);
+            if (i < 0) {
+                return null;
+            }
+            Object old = getFieldValue(i);
+            removeField(i);
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            clearFields();
+        }
     }
 
     public boolean isValid() {
-        return !isEmpty(version) && !isEmpty(host) && !isEmpty(shortMessage) && !isEmpty(facility);
+        return !isEmpty(version) && !isEmpty(host) && !isBlank(shortMessageChars(), shortMessageEnd()) && !isEmpty(facility);
+    }
+    
+    private static boolean isBlank(CharSequence s, int end) {
+        if (s != null) {
+            for (int i = 0; i < end; i++) {
+                if (s.charAt(i) > ' ') {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     public boolean isEmpty(String str) {
@@ -168,86 +619,31 @@ public class GelfMessage {
         return sw.toString();
     }
 	
+	/**
+	 * Formats message as JSON string.
+	 * 
+	 * @see GelfEncoder
+	 */
 	public static String formatMessage(GelfMessage m) {
-        Map<String, Object> map = new HashMap<String, Object>();
-
-        map.put("version", m.getVersion());
-        map.put("host", m.getHost());
-		map.put("short_message", m.getShortMessage());
-		if (m.getFullMessage() == null) {
-			map.put("full_message", m.getShortMessage());
-		} else {
-			map.put("full_message", m.getFullMessage());
-		}
-        long ms = m.getTimestamp();
-        map.put("timestamp", ((long) Math.floor(ms / 1000.0)) + "." + (ms % 1000));
-
-        map.put("level", m.getLevel());
-        map.put("facility", m.getFacility());
-        
-        if (m.getFile() != null) {
-        	map.put("file", m.getFile());
-        }
-        
-        if (m.getLine() > 0) {
-        	map.put("line", m.getLine());
-        }
-
-        for (Map.Entry<String, Object> additionalField : m.getAdditonalFields().entrySet()) {
-            if (!ID_NAME.equals(additionalField.getKey())) {
-                map.put("_" + additionalField.getKey(), additionalField.getValue());
-            }
-        }
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("{ ");
-        boolean start = true;
-        for (Iterator<Entry<String, Object>> it = map.entrySet().iterator(); it.hasNext(); ) { 
-        	Entry<String, Object> e = it.next();
-        	String name = e.getKey();
-        	Object value = e.getValue();
-    		
-        	if (start) {
-        		start = false;
-    		} else {
-    			sb.append(", ");
-    		}
-    		sb.append("\"");
-    		sb.append(name);
-    		sb.append("\": ");
-    		
-        	if (value != null) {
-        		if (value instanceof Double) {
-            		sb.append(((Number) value).doubleValue());
-        		} else
-        		if (value instanceof Integer) {
-            		sb.append(((Number) value).intValue());
-        		} else
-        		if (value instanceof Long) {
-            		sb.append(((Number) value).longValue());
-        		} else {
-            		String s = escapeJson(value);
-            		sb.append("\"");
-            		sb.append(s);
-            		sb.append("\"");
-        		}
-        	} else {
-        		sb.append("null");
-        	}
-        }
-        sb.append(" }");
-        // System.out.println("GelfMessage: " + sb);
-        return sb.toString();
+		GelfEncoder encoder = new GelfEncoder();
+		encoder.encode(m);
+        return encoder.toString();
     }
 
+	/**
+	 * Trims and escapes value for JSON string, in one pass.
+	 */
 	public static String escapeJson(Object value) {
-		String s = value.toString().trim();
-		s = s.replace("\\", "\\\\");
-		s = s.replace("\"", "\\\"");		
-		s = s.replace("\n", "\\n");
-		s = s.replace("\r", "\\r");
-		s = s.replace("\t", "\\t");
-		return s;
+		String s = value.toString();
+		int start = 0;
+		int end = s.length();
+		while (start < end && s.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && s.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return GelfEncoder.escape(s, start, end);
 	}
 
 }
@@ -0,0 +1,68 @@
+package com.wizecore.graylog;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free pool of reusable {@link GelfMessage} instances.
+ * <p>
+ * Slots are striped by thread, and message returns to the stripe of thread which obtained it, even if
+ * it is released by I/O thread. If no free message is found, new one is created; if stripe is full
+ * on release, message is left to garbage collector.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfMessagePool {
+	/**
+	 * Default number of pooled messages.
+	 */
+	public static final int DEFAULT_SIZE = 256;
+
+	/**
+	 * Slots checked on obtain and release.
+	 */
+	private static final int PROBES = 8;
+
+	private final AtomicReferenceArray<GelfMessage> slots;
+	private final int mask;
+
+	public GelfMessagePool() {
+		this(DEFAULT_SIZE);
+	}
+
+	public GelfMessagePool(int size) {
+		int n = PROBES;
+		while (n < size) {
+			n <<= 1;
+		}
+		slots = new AtomicReferenceArray<GelfMessage>(n);
+		mask = n - 1;
+	}
+
+	/**
+	 * Returns empty message, which is returned to the pool by {@link GelfMessage#release()}.
+	 */
+	public GelfMessage obtain() {
+		int home = (GelfCounter.stripe() * PROBES) & mask;
+		for (int i = 0; i < PROBES; i++) {
+			int idx = (home + i) & mask;
+			GelfMessage m = slots.get(idx);
+			if (m != null && slots.compareAndSet(idx, m, null)) {
+				m.obtained(this, home);
+				return m;
+			}
+		}
+
+		GelfMessage m = new GelfMessage();
+		m.obtained(this, home);
+		return m;
+	}
+
+	void release(GelfMessage m, int home) {
+		for (int i = 0; i < PROBES; i++) {
+			int idx = (home + i) & mask;
+			if (slots.get(idx) == null && slots.compareAndSet(idx, null, m)) {
+				return;
+			}
+		}
+	}
+}
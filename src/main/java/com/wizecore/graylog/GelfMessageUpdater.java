@@ -9,6 +9,7 @@ public interface GelfMessageUpdater {
 
 	/**
 	 * Provide additional information in message.
+	 * Message can be pooled and reused, so reference to it must not be kept after this method returns.
 	 */
 	void update(GelfMessage m);
 }
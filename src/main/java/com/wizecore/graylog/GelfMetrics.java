@@ -0,0 +1,240 @@
+package com.wizecore.graylog;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.wizecore.graylog.GelfDestinations.Endpoint;
+
+/**
+ * Delivery metrics of single {@link GelfSender}, registered as MBean com.wizecore.graylog:type=GelfSender.
+ * <p>
+ * Recording is lock-free and uses {@link GelfCounter} and {@link GelfHistogram}, so it is always on.
+ * Every event is also passed to optional {@link GelfMetricsListener}.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfMetrics implements GelfMetricsMBean, GelfMetricsListener {
+	private static final AtomicInteger ids = new AtomicInteger();
+
+	private final GelfSender sender;
+	private final GelfCounter messagesSent = new GelfCounter();
+	private final GelfCounter bytesSent = new GelfCounter();
+	private final GelfCounter messagesDropped = new GelfCounter();
+	private final GelfCounter uncompressedBytes = new GelfCounter();
+	private final GelfCounter compressedBytes = new GelfCounter();
+	private final GelfCounter reconnects = new GelfCounter();
+	private final GelfHistogram serialize = new GelfHistogram();
+	private final GelfHistogram compress = new GelfHistogram();
+	private final GelfHistogram write = new GelfHistogram();
+	private volatile GelfMetricsListener listener;
+	private ObjectName name;
+
+	public GelfMetrics(GelfSender sender) {
+		this.sender = sender;
+	}
+
+	/**
+	 * Registers MBean in platform MBean server.
+	 */
+	public synchronized void register() {
+		if (name != null) {
+			return;
+		}
+
+		try {
+			ObjectName n = new ObjectName("com.wizecore.graylog:type=GelfSender,name=" + ObjectName.quote(getProtocol().toLowerCase() + "://" + getDestination()) + ",id=" + ids.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+			name = n;
+		} catch (JMException e) {
+			System.err.println("Failed to register GELF metrics MBean: " + e);
+		}
+	}
+
+	public synchronized void unregister() {
+		if (name != null) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			try {
+				server.unregisterMBean(name);
+			} catch (JMException e) {
+				// Don`t care
+			}
+			name = null;
+		}
+	}
+
+	public GelfMetricsListener getListener() {
+		return listener;
+	}
+
+	public void setListener(GelfMetricsListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public void sent(GelfSender sender, int bytes) {
+		messagesSent.increment();
+		bytesSent.add(bytes);
+		GelfMetricsListener l = listener;
+		if (l != null) {
+			l.sent(sender, bytes);
+		}
+	}
+
+	@Override
+	public void dropped(GelfSender sender, int count) {
+		messagesDropped.add(count);
+		GelfMetricsListener l = listener;
+		if (l != null) {
+			l.dropped(sender, count);
+		}
+	}
+
+	@Override
+	public void serialized(GelfSender sender, long nanos, int bytes) {
+		serialize.record(nanos);
+		GelfMetricsListener l = listener;
+		if (l != null) {
+			l.serialized(sender, nanos, bytes);
+		}
+	}
+
+	@Override
+	public void compressed(GelfSender sender, long nanos, int bytes, int compressedBytes) {
+		compress.record(nanos);
+		uncompressedBytes.add(bytes);
+		this.compressedBytes.add(compressedBytes);
+		GelfMetricsListener l = listener;
+		if (l != null) {
+			l.compressed(sender, nanos, bytes, compressedBytes);
+		}
+	}
+
+	@Override
+	public void written(GelfSender sender, long nanos, int bytes) {
+		write.record(nanos);
+		GelfMetricsListener l = listener;
+		if (l != null) {
+			l.written(sender, nanos, bytes);
+		}
+	}
+
+	@Override
+	public void reconnected(GelfSender sender, String endpoint) {
+		reconnects.increment();
+		GelfMetricsListener l = listener;
+		if (l != null) {
+			l.reconnected(sender, endpoint);
+		}
+	}
+
+	@Override
+	public String getProtocol() {
+		return sender.getProtocol().name();
+	}
+
+	@Override
+	public String getDestination() {
+		return sender.getHost() + ":" + sender.getPort();
+	}
+
+	@Override
+	public long getMessagesSent() {
+		return messagesSent.get();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	@Override
+	public long getMessagesDropped() {
+		return messagesDropped.get() + sender.getSpillDroppedCount();
+	}
+
+	@Override
+	public double getCompressionRatio() {
+		long u = uncompressedBytes.get();
+		return u > 0 ? (double) compressedBytes.get() / u : 1;
+	}
+
+	@Override
+	public long getReconnects() {
+		return reconnects.get();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return sender.getQueueDepth();
+	}
+
+	@Override
+	public long getOutstandingBytes() {
+		long n = 0;
+		for (Endpoint ep: sender.getEndpoints()) {
+			n += ep.getOutstanding();
+		}
+		return n;
+	}
+
+	public GelfHistogram getSerializeHistogram() {
+		return serialize;
+	}
+
+	public GelfHistogram getCompressHistogram() {
+		return compress;
+	}
+
+	public GelfHistogram getWriteHistogram() {
+		return write;
+	}
+
+	@Override
+	public long getSerializeMeanNanos() {
+		return serialize.getMean();
+	}
+
+	@Override
+	public long getSerializeP50Nanos() {
+		return serialize.getPercentile(50);
+	}
+
+	@Override
+	public long getSerializeP99Nanos() {
+		return serialize.getPercentile(99);
+	}
+
+	@Override
+	public long getCompressMeanNanos() {
+		return compress.getMean();
+	}
+
+	@Override
+	public long getCompressP50Nanos() {
+		return compress.getPercentile(50);
+	}
+
+	@Override
+	public long getCompressP99Nanos() {
+		return compress.getPercentile(99);
+	}
+
+	@Override
+	public long getWriteMeanNanos() {
+		return write.getMean();
+	}
+
+	@Override
+	public long getWriteP50Nanos() {
+		return write.getPercentile(50);
+	}
+
+	@Override
+	public long getWriteP99Nanos() {
+		return write.getPercentile(99);
+	}
+}
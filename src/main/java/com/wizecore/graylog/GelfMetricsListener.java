@@ -0,0 +1,42 @@
+package com.wizecore.graylog;
+
+/**
+ * Receives delivery metrics of {@link GelfSender}, to feed them to application metrics system.
+ * Called on logging and I/O threads on every message, so it must be fast, thread-safe and must not log.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public interface GelfMetricsListener {
+
+	/**
+	 * Message was sent, for TCP when its last byte was written to the socket.
+	 *
+	 * @param bytes size on the wire, compressed for UDP
+	 */
+	void sent(GelfSender sender, int bytes);
+
+	/**
+	 * Messages were lost because queue was full or destination was unavailable.
+	 */
+	void dropped(GelfSender sender, int count);
+
+	/**
+	 * Message was serialized to JSON.
+	 */
+	void serialized(GelfSender sender, long nanos, int bytes);
+
+	/**
+	 * UDP message was compressed.
+	 */
+	void compressed(GelfSender sender, long nanos, int bytes, int compressedBytes);
+
+	/**
+	 * Data was written to the socket.
+	 */
+	void written(GelfSender sender, long nanos, int bytes);
+
+	/**
+	 * TCP connection to the endpoint was opened again after it was closed or failed.
+	 */
+	void reconnected(GelfSender sender, String endpoint);
+}
@@ -0,0 +1,66 @@
+package com.wizecore.graylog;
+
+/**
+ * JMX view of {@link GelfSender} delivery metrics, see {@link GelfMetrics}.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public interface GelfMetricsMBean {
+
+	String getProtocol();
+
+	/**
+	 * Host list and port.
+	 */
+	String getDestination();
+
+	/**
+	 * Messages sent, for TCP counted when the last byte is written to the socket.
+	 */
+	long getMessagesSent();
+
+	/**
+	 * Bytes sent, compressed for UDP.
+	 */
+	long getBytesSent();
+
+	/**
+	 * Messages lost because queue was full, destination was unavailable or disk spill was full.
+	 */
+	long getMessagesDropped();
+
+	/**
+	 * Compressed size divided by original size of UDP messages.
+	 */
+	double getCompressionRatio();
+
+	long getReconnects();
+
+	/**
+	 * Messages waiting in asynchronous queue.
+	 */
+	int getQueueDepth();
+
+	/**
+	 * TCP bytes waiting to be written.
+	 */
+	long getOutstandingBytes();
+
+	long getSerializeMeanNanos();
+
+	long getSerializeP50Nanos();
+
+	long getSerializeP99Nanos();
+
+	long getCompressMeanNanos();
+
+	long getCompressP50Nanos();
+
+	long getCompressP99Nanos();
+
+	long getWriteMeanNanos();
+
+	long getWriteP50Nanos();
+
+	long getWriteP99Nanos();
+}
@@ -0,0 +1,31 @@
+package com.wizecore.graylog;
+
+/**
+ * JVM version specific operations.
+ * <p>
+ * Multi-release jar has Java 21 version of this class, which runs sender I/O thread as virtual thread.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+final class GelfPlatform {
+	private GelfPlatform() {
+	}
+
+	/**
+	 * Creates daemon I/O thread of sender, not started.
+	 *
+	 * @param virtual true if thread only does blocking I/O and parks, so it can be virtual thread where supported
+	 */
+	static Thread newIoThread(Runnable r, String name, boolean virtual) {
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	}
+
+	/**
+	 * Identifier of current thread.
+	 */
+	static long currentThreadId() {
+		return Thread.currentThread().getId();
+	}
+}
@@ -0,0 +1,216 @@
+package com.wizecore.graylog;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Admission stage which runs before message is built, to survive log storms.
+ * <p>
+ * Every logger and level has token bucket with specified rate and burst, implemented lock-free as
+ * generic cell rate algorithm (single theoretical arrival time per bucket). DEBUG and INFO messages
+ * can be additionally sampled with specified probability. ERROR and more severe messages are always kept.
+ * Number of rejected messages is periodically sent as summary message.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfRateLimiter {
+	/**
+	 * Default interval in milliseconds between summary messages.
+	 */
+	public static final long DEFAULT_SUMMARY_INTERVAL = 60000;
+
+	/**
+	 * Maximum number of loggers with own buckets, the rest share one bucket.
+	 */
+	public static final int MAX_LOGGERS = 10000;
+
+	private static final String OTHER_LOGGERS = "*";
+	private static final String[] LEVELS = { "EMERGENCY", "ALERT", "CRITICAL", "ERROR", "WARNING", "NOTICE", "INFO", "DEBUG" };
+
+	/**
+	 * Buckets of single logger, indexed by syslog level.
+	 */
+	private static class Buckets {
+		final AtomicLongArray arrival = new AtomicLongArray(LEVELS.length);
+		final AtomicLongArray limited = new AtomicLongArray(LEVELS.length);
+		final AtomicLongArray sampled = new AtomicLongArray(LEVELS.length);
+
+		Buckets(long now) {
+			for (int i = 0; i < LEVELS.length; i++) {
+				arrival.set(i, now);
+			}
+		}
+	}
+
+	private final double rate;
+	private final double sampleDebug;
+	private final double sampleInfo;
+	private final long interval;
+	private final long tolerance;
+	private final ConcurrentMap<String, Buckets> buckets = new ConcurrentHashMap<String, Buckets>();
+	private volatile ScheduledFuture<?> summary;
+
+	/**
+	 * @param rate messages per second for each logger and level, 0 disables rate limiting
+	 * @param burst messages which can be sent at once above the rate, 0 means one second worth of messages
+	 * @param sampleDebug probability of DEBUG message to be kept, 1 disables sampling
+	 * @param sampleInfo probability of INFO message to be kept, 1 disables sampling
+	 */
+	public GelfRateLimiter(double rate, int burst, double sampleDebug, double sampleInfo) {
+		this.rate = rate;
+		this.sampleDebug = sampleDebug;
+		this.sampleInfo = sampleInfo;
+		if (rate > 0) {
+			if (burst <= 0) {
+				burst = (int) Math.max(1, Math.ceil(rate));
+			}
+			interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+			tolerance = interval * (burst - 1);
+		} else {
+			interval = 0;
+			tolerance = 0;
+		}
+	}
+
+	/**
+	 * True if limiter rejects anything at all.
+	 */
+	public boolean isEnabled() {
+		return rate > 0 || sampleDebug < 1 || sampleInfo < 1;
+	}
+
+	/**
+	 * Decides if message should be built and sent.
+	 *
+	 * @param level syslog level, see {@link GelfMessage#SYSLOG_INFO}
+	 */
+	public boolean admit(String logger, int level) {
+		if (level <= GelfMessage.SYSLOG_ERROR) {
+			return true;
+		}
+		level = Math.min(level, LEVELS.length - 1);
+
+		double sample = level >= GelfMessage.SYSLOG_DEBUG ? sampleDebug : level >= GelfMessage.SYSLOG_INFO ? sampleInfo : 1;
+		if (sample < 1 && ThreadLocalRandom.current().nextDouble() >= sample) {
+			buckets(logger).sampled.incrementAndGet(level);
+			return false;
+		}
+
+		if (rate <= 0) {
+			return true;
+		}
+
+		Buckets b = buckets(logger);
+		long now = System.nanoTime();
+		while (true) {
+			long arrival = b.arrival.get(level);
+			long start = arrival - now > 0 ? arrival : now;
+			if (start - now > tolerance) {
+				b.limited.incrementAndGet(level);
+				return false;
+			}
+			if (b.arrival.compareAndSet(level, arrival, start + interval)) {
+				return true;
+			}
+		}
+	}
+
+	private Buckets buckets(String logger) {
+		if (logger == null) {
+			logger = "";
+		}
+		Buckets b = buckets.get(logger);
+		if (b == null) {
+			if (buckets.size() >= MAX_LOGGERS) {
+				logger = OTHER_LOGGERS;
+				// Shared bucket exists after the first overflow, don`t allocate on every call
+				b = buckets.get(logger);
+			}
+			if (b == null) {
+				b = new Buckets(System.nanoTime());
+				Buckets existing = buckets.putIfAbsent(logger, b);
+				if (existing != null) {
+					b = existing;
+				}
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Builds summary of messages rejected since last call.
+	 *
+	 * @return null if nothing was rejected
+	 */
+	public GelfMessage summary(long intervalMillis) {
+		long limited = 0;
+		long sampled = 0;
+		StringBuilder full = new StringBuilder();
+		for (Map.Entry<String, Buckets> e: buckets.entrySet()) {
+			Buckets b = e.getValue();
+			for (int i = 0; i < LEVELS.length; i++) {
+				long l = b.limited.getAndSet(i, 0);
+				long s = b.sampled.getAndSet(i, 0);
+				if (l > 0 || s > 0) {
+					full.append("\n").append(e.getKey()).append(" ").append(LEVELS[i]).append(": ");
+					full.append(l).append(" rate limited, ").append(s).append(" sampled out");
+					limited += l;
+					sampled += s;
+				}
+			}
+		}
+
+		if (limited == 0 && sampled == 0) {
+			return null;
+		}
+
+		String shortMessage = "Rejected " + (limited + sampled) + " log messages in last " + (intervalMillis / 1000) + " s";
+		GelfMessage m = new GelfMessage(shortMessage, shortMessage + full, System.currentTimeMillis(), GelfMessage.SYSLOG_WARN, null, 0);
+		m.addField("rate_limited", limited);
+		m.addField("sampled_out", sampled);
+		m.addField("logger", GelfRateLimiter.class.getName());
+		return m;
+	}
+
+	/**
+	 * Starts sending summary messages through specified sender.
+	 */
+	public void start(final GelfSender sender, final String host, final String facility, final long intervalMillis) {
+		stop();
+		if (intervalMillis <= 0) {
+			return;
+		}
+
+		summary = GelfScheduler.get().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				GelfMessage m = summary(intervalMillis);
+				if (m != null) {
+					m.setHost(host);
+					m.setFacility(facility);
+					try {
+						sender.sendMessage(m);
+					} catch (IOException e) {
+						System.err.println("Failed to send to graylog: " + e);
+					} catch (RuntimeException e) {
+						System.err.println("Failed to send to graylog: " + e);
+					}
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void stop() {
+		ScheduledFuture<?> s = summary;
+		if (s != null) {
+			s.cancel(false);
+			summary = null;
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.wizecore.graylog;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue used to pass messages from logging threads to sender I/O thread.
+ * <p>
+ * Based on Dmitry Vyukov bounded MPMC queue: every slot carries a sequence number,
+ * producers and consumers claim slots with a single CAS and never block each other.
+ * Capacity is rounded up to the nearest power of two.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfRingBuffer<E> {
+	private final int mask;
+	private final AtomicReferenceArray<E> items;
+	private final AtomicLongArray sequences;
+
+	/**
+	 * Next position to write (producers).
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Next position to read (consumers).
+	 */
+	private final AtomicLong head = new AtomicLong();
+
+	public GelfRingBuffer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		mask = size - 1;
+		items = new AtomicReferenceArray<E>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds element to the queue.
+	 *
+	 * @return false if queue is full
+	 */
+	public boolean offer(E e) {
+		long pos = tail.get();
+		for (;;) {
+			int idx = (int) pos & mask;
+			long dif = sequences.get(idx) - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					items.lazySet(idx, e);
+					sequences.lazySet(idx, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			} else
+			if (dif < 0) {
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Removes element from the queue.
+	 *
+	 * @return null if queue is empty
+	 */
+	public E poll() {
+		long pos = head.get();
+		for (;;) {
+			int idx = (int) pos & mask;
+			long dif = sequences.get(idx) - (pos + 1);
+			if (dif == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					E e = items.get(idx);
+					items.lazySet(idx, null);
+					sequences.lazySet(idx, pos + mask + 1);
+					return e;
+				}
+				pos = head.get();
+			} else
+			if (dif < 0) {
+				return null;
+			} else {
+				pos = head.get();
+			}
+		}
+	}
+
+	/**
+	 * True if no element was claimed by producers.
+	 * Element might be claimed but not yet published, so {@link #poll()} can still return null for short time.
+	 */
+	public boolean isEmpty() {
+		return tail.get() == head.get();
+	}
+
+	/**
+	 * Approximate number of queued elements.
+	 */
+	public int size() {
+		long size = tail.get() - head.get();
+		if (size < 0) {
+			return 0;
+		}
+		return size > capacity() ? capacity() : (int) size;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+}
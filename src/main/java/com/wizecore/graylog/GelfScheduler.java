@@ -0,0 +1,92 @@
+package com.wizecore.graylog;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single daemon thread for periodic background tasks, shared by all senders and appenders.
+ * <p>
+ * Tasks must be short and must not block for long, use separate thread for anything else,
+ * see {@link #scheduleBlocking(Runnable, long, long, TimeUnit)}.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfScheduler {
+	private static ScheduledThreadPoolExecutor executor;
+	private static ThreadPoolExecutor background;
+
+	private GelfScheduler() {
+	}
+
+	public static synchronized ScheduledExecutorService get() {
+		if (executor == null) {
+			executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "GelfScheduler");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			executor.setRemoveOnCancelPolicy(true);
+		}
+		return executor;
+	}
+
+	/**
+	 * Daemon threads for blocking background work, like DNS resolution or disk replay.
+	 * Started on demand and stopped when idle.
+	 */
+	public static synchronized ExecutorService background() {
+		if (background == null) {
+			background = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "GelfBackground");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return background;
+	}
+
+	/**
+	 * Periodically runs blocking task on {@link #background()} thread, so it does not hold up scheduler thread.
+	 * Run is skipped if previous one has not finished yet.
+	 */
+	public static ScheduledFuture<?> scheduleBlocking(final Runnable task, long delay, long period, TimeUnit unit) {
+		final AtomicBoolean running = new AtomicBoolean();
+		final Runnable run = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					running.set(false);
+				}
+			}
+		};
+
+		return get().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if (running.compareAndSet(false, true)) {
+					try {
+						background().execute(run);
+					} catch (RejectedExecutionException e) {
+						running.set(false);
+					}
+				}
+			}
+		}, delay, period, unit);
+	}
+}
@@ -1,28 +1,35 @@
 package com.wizecore.graylog;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
+import java.net.PortUnreachableException;
 import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.util.ArrayList;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
 import java.util.Random;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+
+import com.wizecore.graylog.GelfCompressor.Codec;
+import com.wizecore.graylog.GelfDestinations.Balance;
+import com.wizecore.graylog.GelfDestinations.Endpoint;
 
 /**
  * Sends GELF messages via TCP or UDP.
  * 
  * Based on https://github.com/Graylog2/gelfj/blob/master/src/main/java/org/graylog2/GelfSender.java
  * Heavily reworked to be independent and self contained. All datagram and message serialization methods moved here.
+ * <p>
+ * Safe for concurrent use once configured. UDP messages are sent by logging threads through small set of
+ * connected channels per endpoint, striped by thread. TCP messages are framed and written only by I/O thread,
+ * so frames are never interleaved.
  */
 public class GelfSender {
     public static final int DEFAULT_PORT = 12201;       
@@ -31,25 +38,164 @@ public class GelfSender {
     
     /**
      * Start for UDP port binding.
+     * 
+     * @deprecated UDP channels are bound to ephemeral ports assigned by OS
      */
+    @Deprecated
     public static final int PORT_MIN = 9000;
     
     /**
      * End of UDP port binding.
+     * 
+     * @deprecated UDP channels are bound to ephemeral ports assigned by OS
      */
+    @Deprecated
     public static final int PORT_MAX = 9888;
     
+    /**
+     * Number of UDP channels per endpoint, power of two. Logging threads are spread between them by thread,
+     * so they don`t contend on the channel write lock.
+     */
+    public static final int UDP_CHANNELS = Math.min(4, GelfCounter.STRIPES);
+    
+    /**
+     * Default size of asynchronous queue, see {@link #setAsync(boolean)}.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 4096;
+    
+    /**
+     * How long {@link #close()} waits for asynchronous queue to be sent.
+     */
+    public static final long CLOSE_TIMEOUT = 5000;
+    
+    /**
+     * Default time TCP batch waits for more messages, see {@link #setBatchLinger(long)}.
+     */
+    public static final long DEFAULT_BATCH_LINGER = 5;
+    
+    /**
+     * Default TCP connect timeout in milliseconds.
+     */
+    public static final long DEFAULT_CONNECT_TIMEOUT = 5000;
+    
+    /**
+     * Default interval in milliseconds between background DNS refreshes.
+     */
+    public static final long DEFAULT_DNS_TTL = 60000;
+    
+    /**
+     * Minimum interval in milliseconds between attempts to resolve hosts which were never resolved.
+     */
+    public static final long RESOLVE_RETRY = 5000;
+    
+    /**
+     * Maximum number of spilled messages replayed at once, see {@link #setSpillDir(String)}.
+     */
+    public static final int SPILL_REPLAY_BATCH = 1000;
+    
+    /**
+     * Maximum number of spilled TCP messages replayed between queued messages, while queue doesn`t get empty.
+     */
+    public static final int SPILL_INTERLEAVE_BATCH = 100;
+    
+    /**
+     * Interval in milliseconds between attempts to replay spilled UDP messages.
+     */
+    public static final long SPILL_REPLAY_INTERVAL = 1000;
+    
     enum Protocol {
     	UDP,
     	TCP
     };
+    
+    /**
+     * What to do when asynchronous queue is full.
+     */
+    enum OverflowPolicy {
+    	/**
+    	 * Wait in logging thread until there is space in queue.
+    	 */
+    	BLOCK,
+    	
+    	/**
+    	 * Drop message being logged.
+    	 */
+    	DROP_NEWEST,
+    	
+    	/**
+    	 * Drop oldest message in queue to make space for new one.
+    	 */
+    	DROP_OLDEST;
+    	
+    	/**
+    	 * Parses policy name, accepts both drop-newest and DROP_NEWEST.
+    	 */
+    	public static OverflowPolicy parse(String s) {
+    		if (s == null) {
+    			return DROP_NEWEST;
+    		}
+    		String n = s.trim().toUpperCase().replace('-', '_');
+    		for (OverflowPolicy p: values()) {
+    			if (p.name().equals(n)) {
+    				return p;
+    			}
+    		}
+    		throw new IllegalArgumentException("Unknown overflow policy: " + s);
+    	}
+    };
 
     private Protocol proto = Protocol.UDP;
     private String host = null;
     private int port;
-    private DatagramSocket udpSocket;   
-    private SocketChannel tcpChannel;    
-    private InetAddress destination;
+    private volatile GelfTcpTransport tcpTransport;
+    private final GelfDestinations destinations = new GelfDestinations();
+    private long dnsTtl = DEFAULT_DNS_TTL;
+    private volatile ScheduledFuture<?> dnsRefresh;
+    private UnknownHostException resolveFailed;
+    private long resolveRetryAt;
+    private boolean async;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private volatile GelfDispatcher dispatcher;
+    private Codec compression = Codec.GZIP;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int compressionThreshold = 0;
+    private int batchSize;
+    private long batchLinger = DEFAULT_BATCH_LINGER;
+    private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private String spillDir;
+    private long spillMaxSize = GelfSpillBuffer.DEFAULT_MAX_SIZE;
+    private volatile boolean initialized;
+    private volatile GelfSpillBuffer spill;
+    private volatile ScheduledFuture<?> spillReplay;
+    private boolean jmx = true;
+    private final GelfMetrics metrics = new GelfMetrics(this);
+    
+    private final ThreadLocal<GelfEncoder> encoder = new ThreadLocal<GelfEncoder>() {
+    	@Override
+    	protected GelfEncoder initialValue() {
+    		return new GelfEncoder();
+    	}
+    };
+    
+    /**
+     * Source of chunked message ids, starts from random value so ids from different senders don`t collide.
+     */
+    private final AtomicLong messageIds = new AtomicLong(new Random().nextLong());
+    
+    private final ThreadLocal<GelfChunker> chunker = new ThreadLocal<GelfChunker>() {
+    	@Override
+    	protected GelfChunker initialValue() {
+    		return new GelfChunker();
+    	}
+    };
+    
+    private final ThreadLocal<GelfCompressor> compressor = new ThreadLocal<GelfCompressor>() {
+    	@Override
+    	protected GelfCompressor initialValue() {
+    		return new GelfCompressor(compression, compressionLevel, compressionThreshold);
+    	}
+    };
 
     public GelfSender(String host) {
         this(host, DEFAULT_PORT);
@@ -66,51 +212,111 @@ public class GelfSender {
         this.port = port;
     }
 
-    protected void initiateSocket() throws IOException {
-    	if (proto == Protocol.UDP) {
-            int port = PORT_MIN;
-            DatagramSocket resultingSocket = null;
-            boolean binded = false;
-            while (!binded) {
-                try {
-                    resultingSocket = new DatagramSocket(port);
-                    binded = true;
-                } catch (SocketException e) {
-                    port++;
-                    if (port > PORT_MAX) {
-                        throw e;
-                    }
-                }
-            }                  
-            udpSocket = resultingSocket;
-    	} else
-    	if (proto == Protocol.TCP) {
-            // Will do upon log
+    /**
+     * Opens UDP channel connected to the endpoint, bound to ephemeral port.
+     */
+    protected DatagramChannel initiateSocket(InetSocketAddress address) throws IOException {
+    	DatagramChannel channel = DatagramChannel.open();
+    	try {
+    		channel.bind(null);
+    		channel.connect(address);
+    	} catch (IOException e) {
+    		channel.close();
+    		throw e;
     	}
+    	return channel;
     }
 
     /**
-     * Randomly choose destination
+     * Resolves all addresses of all hosts, see {@link GelfDestinations}.
+     * Called once synchronously, then periodically in background, see {@link #setDnsTtl(long)}.
      * 
      * @throws UnknownHostException
      */
 	protected void findDestination() throws UnknownHostException {
-		List<InetAddress> all = new ArrayList<InetAddress>();
-    	if (host.indexOf(",") > 0) {
-    		String[] l = host.split("\\,");
-    		for (String h: l) {
-    			all.addAll(Arrays.asList(InetAddress.getAllByName(h.trim())));
-    		}
-    	} else {
-    		all.addAll(Arrays.asList(InetAddress.getAllByName(host.trim())));
-    	}
-    	
-    	if (all.size() == 1) {
-    		destination = all.get(0);
-    	} else {
-    		// Choose one random
-    		destination = all.get(new Random(System.currentTimeMillis()).nextInt(all.size()));
-    	}
+		updateDestination(GelfDestinations.resolve(host));
+	}
+	
+	/**
+	 * Replaces destination addresses, closing channels of addresses which are gone.
+	 */
+	protected void updateDestination(List<InetAddress> addresses) {
+		Endpoint[] old = destinations.getEndpoints();
+		if (destinations.update(addresses, port) && old.length > 0) {
+			System.err.println("GELF destinations for " + host + " changed: " + Arrays.toString(destinations.getEndpoints()));
+			for (Endpoint ep: old) {
+				if (!destinations.contains(ep)) {
+					closeUdpChannel(ep);
+				}
+			}
+			GelfTcpTransport t = tcpTransport;
+			if (t != null) {
+				t.wakeup();
+			}
+		}
+	}
+	
+	/**
+	 * Makes sure destination addresses are resolved, without going to DNS on hot path.
+	 * If initial resolution fails, it is retried no more often than once per {@link #RESOLVE_RETRY} ms.
+	 */
+	protected void ensureDestination() throws UnknownHostException {
+		if (destinations.isEmpty()) {
+			synchronized (destinations) {
+				if (destinations.isEmpty()) {
+					long now = System.nanoTime();
+					if (resolveFailed != null && now - resolveRetryAt < 0) {
+						throw resolveFailed;
+					}
+					
+					try {
+						findDestination();
+						resolveFailed = null;
+					} catch (UnknownHostException e) {
+						resolveFailed = e;
+						resolveRetryAt = now + TimeUnit.MILLISECONDS.toNanos(RESOLVE_RETRY);
+						throw e;
+					}
+					
+					if (dnsTtl > 0 && dnsRefresh == null) {
+						// Resolver can block for long, so resolve on background thread and only swap endpoints on scheduler
+						dnsRefresh = GelfScheduler.scheduleBlocking(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									final List<InetAddress> addresses = GelfDestinations.resolve(host);
+									GelfScheduler.get().execute(new Runnable() {
+										@Override
+										public void run() {
+											if (dnsRefresh != null) {
+												updateDestination(addresses);
+											}
+										}
+									});
+								} catch (UnknownHostException e) {
+									System.err.println("GELF failed to resolve " + host + ", keeping " + Arrays.toString(destinations.getEndpoints()) + ": " + e);
+								} catch (RuntimeException e) {
+									System.err.println("GELF failed to resolve " + host + ": " + e);
+								}
+							}
+						}, dnsTtl, dnsTtl, TimeUnit.MILLISECONDS);
+					}
+				}
+			}
+		}
+	}
+	
+	private void closeUdpChannel(Endpoint ep) {
+		for (int i = 0; i < ep.udpChannels.length(); i++) {
+			DatagramChannel channel = ep.udpChannels.getAndSet(i, null);
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					System.err.println("Failed to close UDP channel: " + e);
+				}
+			}
+		}
 	}
 	
 	public Protocol getProtocol() {
@@ -121,131 +327,392 @@ public class GelfSender {
 		this.proto = proto;
 	}
 
+    /**
+     * Sends message, or puts it to the queue if {@link #isAsync()}.
+     * TCP messages are always queued, and sent by I/O thread.
+     * Pooled message is released when it is sent or dropped.
+     */
     public void sendMessage(GelfMessage m) throws IOException {
+    	if (!initialized) {
+    		init();
+    	}
+    	
+    	if (async || proto == Protocol.TCP) {
+    		getDispatcher().dispatch(m);
+    	} else {
+    		try {
+    			deliver(m);
+    		} finally {
+    			m.release();
+    		}
+    	}
+    }
+    
+    private GelfDispatcher getDispatcher() throws IOException {
+    	GelfDispatcher d = dispatcher;
+    	if (d == null) {
+    		synchronized (this) {
+    			d = dispatcher;
+    			if (d == null) {
+    				if (proto == Protocol.TCP && tcpTransport == null) {
+    					tcpTransport = new GelfTcpTransport(this, destinations);
+    				}
+    				d = new GelfDispatcher(this, queueSize, overflowPolicy);
+    				d.start();
+    				dispatcher = d;
+    			}
+    		}
+    	}
+    	return d;
+    }
+
+    /**
+     * Formats and sends message to the network in current thread.
+     * For TCP, called only by I/O thread and puts message to the write buffer.
+     */
+    protected void deliver(GelfMessage m) throws IOException {
         if (m.isValid()) {
         	if (proto == Protocol.TCP) {
-        		String json = GelfMessage.formatMessage(m);
-        		json += '\0';
-				sendPacket(json.getBytes("UTF-8"));
-        	} else {
-        		sendDatagrams(toDatagrams(m));
+        		tcpTransport.append(m);
+        		return;
+        	}
+        	
+        	GelfEncoder e = encoder.get();
+        	e.reset();
+        	long start = System.nanoTime();
+        	e.encode(m);
+        	metrics.serialized(this, System.nanoTime() - start, e.size());
+        	if (!sendEncoded(e.getBuffer(), e.size()) && !spill(e.getBuffer(), 0, e.size())) {
+        		metrics.dropped(this, 1);
         	}
         }
     }
-
-	private void sendPacket(byte[] bytes) throws IOException {
-		try {
-    		if (tcpChannel == null || !tcpChannel.isConnected()) {
-    			findDestination();
-    			initiateSocket();
-    			tcpChannel = SocketChannel.open();
-    			tcpChannel.configureBlocking(false);
-    			tcpChannel.connect(new InetSocketAddress(destination, port));
-    			while (!tcpChannel.finishConnect()) {
-    				Thread.yield();
+    
+    /**
+     * Registers metrics MBean and opens disk spill buffer, once before first message.
+     */
+    private synchronized void init() {
+    	if (initialized) {
+    		return;
+    	}
+    	initialized = true;
+    	
+    	if (jmx) {
+    		metrics.register();
+    	}
+    	
+    	if (spillDir != null) {
+    		openSpill();
+    	}
+    }
+    
+    /**
+     * Opens disk spill buffer. For UDP also schedules replay of spilled messages.
+     */
+    private void openSpill() {
+    	String name = getSpillName();
+    	try {
+    		spill = new GelfSpillBuffer(new File(spillDir), name, spillMaxSize);
+    	} catch (IOException e) {
+    		System.err.println("GELF disk spill disabled: " + e);
+    		return;
+    	}
+    	
+    	if (proto == Protocol.UDP) {
+    		// Replay reads disk and sends to network, keep it off the shared scheduler thread
+    		spillReplay = GelfScheduler.scheduleBlocking(new Runnable() {
+    			@Override
+    			public void run() {
+    				try {
+    					replaySpill(SPILL_REPLAY_BATCH);
+    				} catch (IOException e) {
+    					System.err.println("Failed to replay to graylog: " + e);
+    				} catch (RuntimeException e) {
+    					System.err.println("Failed to replay to graylog: " + e);
+    				}
     			}
-    		}   
+    		}, SPILL_REPLAY_INTERVAL, SPILL_REPLAY_INTERVAL, TimeUnit.MILLISECONDS);
+    	}
+    }
+    
+    /**
+     * Writes message to disk spill buffer, if configured.
+     * 
+     * @return false if spill buffer is not available, message must be dropped
+     */
+    protected boolean spill(GelfMessage m) {
+    	if (spill == null || !m.isValid()) {
+    		return false;
+    	}
+    	GelfEncoder e = encoder.get();
+    	e.reset();
+    	long start = System.nanoTime();
+    	e.encode(m);
+    	metrics.serialized(this, System.nanoTime() - start, e.size());
+    	return spill(e.getBuffer(), 0, e.size());
+    }
+    
+    /**
+     * Writes encoded message to disk spill buffer, if configured.
+     * 
+     * @return false if spill buffer is not available, message must be dropped
+     */
+    protected boolean spill(byte[] json, int off, int len) {
+    	GelfSpillBuffer s = spill;
+    	return s != null && s.append(json, off, len);
+    }
+    
+    /**
+     * True if messages are spilled to disk when destination is unavailable.
+     */
+    protected boolean hasSpill() {
+    	return spill != null;
+    }
+    
+    /**
+     * Sends spilled messages in order, stops when destination is unavailable or TCP transport is backed up.
+     * 
+     * @param max maximum number of messages to send
+     * @return true if some messages were sent and more are waiting
+     */
+    private boolean replaySpill(int max) throws IOException {
+    	GelfSpillBuffer s = spill;
+    	if (s == null) {
+    		return false;
+    	}
+    	
+    	GelfTcpTransport t = tcpTransport;
+    	for (int i = 0; i < max; i++) {
+    		if (t != null && t.isBackedUp()) {
+    			return i > 0;
+    		}
     		
-    		ByteBuffer buf = ByteBuffer.wrap(bytes);
-    		while (buf.hasRemaining()) {
-    			tcpChannel.write(buf);
-    			Thread.yield();
-            }
-		} catch (IOException e) {
-			destination = null;
-			try {
-				tcpChannel.close();
-			} catch (Exception ee) {
-				// Don`t care
-			}
-			tcpChannel = null;
-			System.err.println("GELF TCP Server (" + destination + ") unavailable: " + e);
-		}
-	}
-
-	private List<byte[]> toDatagrams(GelfMessage m) throws IOException {
-        byte[] messageBytes = gzipMessage(GelfMessage.formatMessage(m));
-        List<byte[]> datagrams = new ArrayList<byte[]>();
-        if (messageBytes.length > MAXIMUM_UDP_CHUNK_SIZE) {
-            sliceDatagrams(m, messageBytes, datagrams);
-        } else {
-            datagrams.add(messageBytes);
-        }
-        return datagrams;
+    		byte[] b = s.peek();
+    		if (b == null) {
+    			return false;
+    		}
+    		
+    		if (t != null ? !t.appendEncoded(b, b.length) : !sendEncoded(b, b.length)) {
+    			return i > 0;
+    		}
+    		s.remove();
+    	}
+    	return true;
     }
-
-    protected void sliceDatagrams(GelfMessage m, byte[] messageBytes, List<byte[]> datagrams) {
-        int messageLength = messageBytes.length;
-        byte[] messageId = Arrays.copyOf((new Date().getTime() + m.getHost()).getBytes(), 32);
-        int num = ((Double) Math.ceil((double) messageLength / MAXIMUM_UDP_CHUNK_SIZE)).intValue();
-        for (int idx = 0; idx < num; idx++) {
-            byte[] header = concatByteArray(GELF_UDP_CHUNKED_ID, concatByteArray(messageId, new byte[]{0x00, (byte) idx, 0x00, (byte) num}));
-            int from = idx * MAXIMUM_UDP_CHUNK_SIZE;
-            int to = from + MAXIMUM_UDP_CHUNK_SIZE;
-            if (to >= messageLength) {
-                to = messageLength;
-            }
-            byte[] datagram = concatByteArray(header, Arrays.copyOfRange(messageBytes, from, to));
-            datagrams.add(datagram);
-        }
+    
+    /**
+     * Called by I/O thread when queue is empty, performs pending network I/O.
+     * 
+     * @return nanoseconds until something needs to be done again, or -1 if there is nothing to wait for
+     */
+    protected long flushPending(long now) throws IOException {
+    	GelfTcpTransport t = tcpTransport;
+    	if (t == null) {
+    		return -1;
+    	}
+    	
+    	long wait = t.tick(now);
+    	if (spill != null && replaySpill(SPILL_REPLAY_BATCH)) {
+    		// Come back soon for the rest
+    		long soon = TimeUnit.MILLISECONDS.toNanos(1);
+    		return wait > 0 && wait < soon ? wait : soon;
+    	}
+    	return wait;
     }
-
-    protected byte[] concatByteArray(byte[] first, byte[] second) {
-        byte[] result = Arrays.copyOf(first, first.length + second.length);
-        System.arraycopy(second, 0, result, first.length, second.length);
-        return result;
+    
+    /**
+     * Called by I/O thread between messages once batch linger has elapsed, so connects complete,
+     * batches are written and spilled messages are replayed while the queue is never empty.
+     */
+    protected void servicePending(long now) throws IOException {
+    	GelfTcpTransport t = tcpTransport;
+    	if (t != null) {
+    		t.selectNow();
+    		t.tick(now);
+    		if (spill != null) {
+    			// Interleave with live messages, rest is sent on next call or when queue is empty
+    			replaySpill(SPILL_INTERLEAVE_BATCH);
+    		}
+    	}
     }
-
-    protected byte[] gzipMessage(String message) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        OutputStream stream = new GZIPOutputStream(bos);
-        try {
-            stream.write(message.getBytes("UTF-8"));
-        } finally {
-        	stream.close();
-        }
-        return bos.toByteArray();
+    
+    /**
+     * Called by I/O thread before it stops, tries to write all pending data.
+     */
+    protected void flushBatch() throws IOException {
+    	GelfTcpTransport t = tcpTransport;
+    	if (t != null) {
+    		t.flush(CLOSE_TIMEOUT);
+    	}
     }
-        
-    protected void sendDatagrams(List<byte[]> bytesList) throws IOException {
+    
+    /**
+     * Called by I/O thread when it stops, closes TCP connections.
+     * 
+     * @param keep true to spill frames which were not written, for the next run
+     */
+    protected void closeTransport(GelfDispatcher d, boolean keep) {
+    	GelfTcpTransport t;
+    	synchronized (this) {
+    		if (dispatcher != null && dispatcher != d) {
+    			// Sender was used again after I/O thread was aborted, new I/O thread took over connections
+    			return;
+    		}
+    		t = tcpTransport;
+    		tcpTransport = null;
+    	}
+    	
+    	if (t != null) {
+    		if (keep) {
+    			t.spillPending();
+    		}
+    		t.close();
+    	}
+    }
+    
+    /**
+     * True if I/O thread should not take more messages from queue until pending data is written.
+     */
+    protected boolean isBackedUp() {
+    	GelfTcpTransport t = tcpTransport;
+    	return t != null && t.isBackedUp();
+    }
+    
+    /**
+     * Waits in I/O thread for new messages or network readiness.
+     */
+    protected void await(Object blocker, long nanos) {
+    	GelfTcpTransport t = tcpTransport;
+    	if (t != null) {
+    		t.select(nanos);
+    	} else {
+    		LockSupport.parkNanos(blocker, nanos);
+    	}
+    }
+    
+    /**
+     * Wakes up I/O thread waiting in {@link #await(Object, long)}.
+     */
+    protected void wakeup(Thread thread) {
+    	GelfTcpTransport t = tcpTransport;
+    	if (t != null) {
+    		t.wakeup();
+    	} else {
+    		LockSupport.unpark(thread);
+    	}
+    }
+
+    /**
+     * Compresses and sends encoded message as UDP datagrams.
+     * 
+     * @return false if destination is unavailable and message was not sent
+     */
+    protected boolean sendEncoded(byte[] json, int len) throws IOException {
     	if (proto != Protocol.UDP) {
     		throw new IOException("Invalid protocol!");
     	}
     	
-    	if (udpSocket == null) {
-    		findDestination();
-    		initiateSocket();
+    	ensureDestination();
+    	long now = System.nanoTime();
+    	Endpoint ep = destinations.select(now, true);
+    	if (spill != null && !ep.isHealthy() && now - ep.getFailedUntil() < 0) {
+    		// Everything is down, keep message on disk until backoff expires
+    		return false;
     	}
     	
-    	// int c = 0;
-        for (byte[] bytes : bytesList) {
-            DatagramPacket datagramPacket = new DatagramPacket(bytes, bytes.length, destination, port);
-            try {
-                udpSocket.send(datagramPacket);
-                // c += bytes.length;
-            } catch (IOException e) {
-            	System.err.println("Failed to send to UDP packet: " + e);
-                break;
-            }
-        }
-        
-        // System.out.println("GelfSender: sent " + c + " bytes to " + destination + ":" + port);
+    	GelfCompressor c = compressor.get();
+    	long start = System.nanoTime();
+    	c.compress(json, len);
+    	metrics.compressed(this, System.nanoTime() - start, len, c.size());
+    	return sendDatagrams(ep, c.getBuffer(), c.size(), now);
+    }
+
+    /**
+     * Sends compressed message to the endpoint, chunked if needed.
+     * 
+     * @return false if endpoint is unavailable, message too large for UDP is reported and considered sent
+     */
+    protected boolean sendDatagrams(Endpoint ep, byte[] bytes, int len, long now) {
+    	if (len > GelfChunker.MAX_CHUNKS * MAXIMUM_UDP_CHUNK_SIZE) {
+    		System.err.println("Failed to send to UDP packet: message too large, " + len + " bytes");
+    		return true;
+    	}
+    	
+    	try {
+    		DatagramChannel channel = udpChannel(ep);
+    		
+    		long start = System.nanoTime();
+    		chunker.get().send(channel, messageIds.incrementAndGet(), bytes, len, MAXIMUM_UDP_CHUNK_SIZE);
+    		metrics.written(this, System.nanoTime() - start, len);
+    		metrics.sent(this, len);
+    		if (!ep.isHealthy()) {
+    			ep.succeeded();
+    		}
+    		return true;
+    	} catch (PortUnreachableException e) {
+    		// ICMP reply to one of the previous datagrams, nobody listens there
+    		ep.failed(now);
+    		System.err.println("GELF UDP Server (" + ep + ") unavailable: " + e);
+    		return false;
+    	} catch (IOException e) {
+    		ep.failed(now);
+    		System.err.println("Failed to send to UDP packet: " + e);
+    		return false;
+    	}
+    }
+
+    /**
+     * Channel of current thread stripe, opened on first use.
+     */
+    private DatagramChannel udpChannel(Endpoint ep) throws IOException {
+    	int i = GelfCounter.stripe() & (ep.udpChannels.length() - 1);
+    	DatagramChannel channel = ep.udpChannels.get(i);
+    	if (channel == null) {
+    		channel = initiateSocket(ep.getAddress());
+    		if (!ep.udpChannels.compareAndSet(i, null, channel)) {
+    			// Opened by another thread of the same stripe
+    			channel.close();
+    			channel = ep.udpChannels.get(i);
+    			if (channel == null) {
+    				throw new ClosedChannelException();
+    			}
+    		}
+    	}
+    	return channel;
     }
 
     public void close() {
-    	if (udpSocket != null) {
-    		udpSocket.close();
-    		udpSocket = null;
+    	GelfDispatcher d = dispatcher;
+    	if (d != null) {
+    		// I/O thread closes TCP connections when it stops
+    		d.close(CLOSE_TIMEOUT);
+    		dispatcher = null;
     	}
     	
-    	if (tcpChannel != null) {
-    		try {
-				tcpChannel.close();
-			} catch (IOException e) {
-				System.err.println("Failed to send to close TCP channel: " + e);
-			}
-    		tcpChannel = null;
+    	ScheduledFuture<?> r = dnsRefresh;
+    	if (r != null) {
+    		r.cancel(false);
+    		dnsRefresh = null;
+    	}
+    	
+    	r = spillReplay;
+    	if (r != null) {
+    		r.cancel(false);
+    		spillReplay = null;
+    	}
+    	
+    	for (Endpoint ep: destinations.getEndpoints()) {
+    		closeUdpChannel(ep);
     	}
+    	
+    	synchronized (this) {
+    		if (spill != null) {
+    			spill.close();
+    			spill = null;
+    		}
+    		initialized = false;
+    	}
+    	metrics.unregister();
     }
 
 	/**
@@ -276,6 +743,236 @@ public class GelfSender {
 		this.port = port;
 	}
 	
+	/**
+	 * If true, messages are sent by separate I/O thread, logging threads only put them to the queue.
+	 */
+	public boolean isAsync() {
+		return async;
+	}
+
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
+	/**
+	 * Capacity of asynchronous queue.
+	 */
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+	
+	/**
+	 * Number of messages dropped because asynchronous queue was full.
+	 */
+	public long getDroppedCount() {
+		GelfDispatcher d = dispatcher;
+		return d != null ? d.getDropped() : 0;
+	}
+	
+	/**
+	 * Number of messages waiting in asynchronous queue.
+	 */
+	public int getQueueDepth() {
+		GelfDispatcher d = dispatcher;
+		return d != null ? d.getQueueDepth() : 0;
+	}
+	
+	/**
+	 * Currently resolved destination addresses.
+	 */
+	public Endpoint[] getEndpoints() {
+		return destinations.getEndpoints();
+	}
+	
+	public GelfMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Receives delivery metrics in addition to MBean, see {@link GelfMetricsListener}.
+	 */
+	public GelfMetricsListener getMetricsListener() {
+		return metrics.getListener();
+	}
+
+	public void setMetricsListener(GelfMetricsListener metricsListener) {
+		metrics.setListener(metricsListener);
+	}
+	
+	/**
+	 * If true, metrics MBean is registered when first message is sent.
+	 */
+	public boolean isJmx() {
+		return jmx;
+	}
+
+	public void setJmx(boolean jmx) {
+		this.jmx = jmx;
+	}
+	
+	/**
+	 * Compression for UDP messages, must be set before first message is sent.
+	 */
+	public Codec getCompression() {
+		return compression;
+	}
+
+	public void setCompression(Codec compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Compression level, 0-9 or -1 for default.
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * UDP messages smaller than this number of bytes are sent uncompressed.
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+	
+	/**
+	 * TCP messages are joined until this number of bytes is pending, or until {@link #getBatchLinger()} expires.
+	 * 0 disables batching, then messages are written as soon as the queue is empty.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Maximum time in milliseconds message waits in TCP batch for more messages.
+	 */
+	public long getBatchLinger() {
+		return batchLinger;
+	}
+
+	public void setBatchLinger(long batchLinger) {
+		this.batchLinger = batchLinger;
+	}
+	
+	/**
+	 * TCP connect timeout in milliseconds.
+	 */
+	public long getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(long connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+	
+	/**
+	 * How messages are distributed between all addresses of all hosts.
+	 */
+	public Balance getBalance() {
+		return destinations.getBalance();
+	}
+
+	public void setBalance(Balance balance) {
+		destinations.setBalance(balance);
+	}
+	
+	/**
+	 * Interval in milliseconds between background re-resolutions of host names, 0 disables refresh.
+	 */
+	public long getDnsTtl() {
+		return dnsTtl;
+	}
+
+	public void setDnsTtl(long dnsTtl) {
+		this.dnsTtl = dnsTtl;
+	}
+	
+	/**
+	 * Directory where messages are kept while destination is unavailable or queue is full, null disables spilling.
+	 * Spilled messages survive restart and are replayed in order when destination recovers.
+	 */
+	public String getSpillDir() {
+		return spillDir;
+	}
+
+	public void setSpillDir(String spillDir) {
+		this.spillDir = spillDir;
+	}
+
+	/**
+	 * Maximum disk size of spilled messages in bytes, oldest messages are evicted above that.
+	 * Values below {@link GelfSpillBuffer#MIN_SIZE} are rounded up to it.
+	 */
+	public long getSpillMaxSize() {
+		return spillMaxSize;
+	}
+
+	public void setSpillMaxSize(long spillMaxSize) {
+		this.spillMaxSize = spillMaxSize;
+	}
+	
+	/**
+	 * Prefix of spill files in {@link #getSpillDir()}, made of protocol, destination and hash of {@link #getOptions()}.
+	 * Senders with the same destination but different options don`t share files, and spill files
+	 * are replayed after restart only if sender options are not changed.
+	 */
+	public String getSpillName() {
+		return proto.name().toLowerCase() + "-" + host.replaceAll("[^A-Za-z0-9.-]", "_") + "-" + port + "-" +
+			Integer.toHexString(getOptions().hashCode());
+	}
+	
+	/**
+	 * Sender options which are stable across restarts, as URL query string.
+	 */
+	String getOptions() {
+		return "?async=" + async +
+			"&queueSize=" + queueSize +
+			"&overflowPolicy=" + overflowPolicy +
+			"&compression=" + compression +
+			"&compressionLevel=" + compressionLevel +
+			"&compressionThreshold=" + compressionThreshold +
+			"&batchSize=" + batchSize +
+			"&batchLinger=" + batchLinger +
+			"&connectTimeout=" + connectTimeout +
+			"&balance=" + getBalance() +
+			"&dnsTtl=" + dnsTtl +
+			"&spillDir=" + spillDir +
+			"&spillMaxSize=" + spillMaxSize +
+			"&jmx=" + jmx;
+	}
+	
+	/**
+	 * Number of spilled messages lost because maximum disk size was reached.
+	 */
+	public long getSpillDroppedCount() {
+		GelfSpillBuffer s = spill;
+		return s != null ? s.getDropped() : 0;
+	}
+	
 	public static String findLocalHostName() {
         try {
         	return InetAddress.getLocalHost().getHostName();
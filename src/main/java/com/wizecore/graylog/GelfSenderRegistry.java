@@ -0,0 +1,94 @@
+package com.wizecore.graylog;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Process-wide registry of senders, so appenders sending to the same destination share one
+ * socket, queue and I/O thread.
+ * <p>
+ * Senders are keyed by protocol, host, port, options and metrics listener instance, and reference counted.
+ * Sender is closed when the last appender releases it. Appenders with different sender options get different
+ * senders, so i.e. reconfigured appender does not keep using sender of the one it replaces. Appenders with
+ * their own metrics listener instances get their own senders, so every listener gets metrics it expects.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfSenderRegistry {
+	private static class Entry {
+		final GelfSender sender;
+		int references;
+
+		Entry(GelfSender sender) {
+			this.sender = sender;
+		}
+	}
+
+	/**
+	 * Options and metrics listener, which is compared by identity.
+	 */
+	private static class Key {
+		final String options;
+		final GelfMetricsListener listener;
+
+		Key(GelfSender s) {
+			options = s.getProtocol().name().toLowerCase() + "://" + s.getHost() + ":" + s.getPort() + s.getOptions();
+			listener = s.getMetricsListener();
+		}
+
+		@Override
+		public int hashCode() {
+			return options.hashCode() * 31 + System.identityHashCode(listener);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && options.equals(((Key) o).options) && listener == ((Key) o).listener;
+		}
+	}
+
+	private static final Map<Key, Entry> senders = new HashMap<Key, Entry>();
+
+	private GelfSenderRegistry() {
+	}
+
+	/**
+	 * Returns shared sender for the destination of configured sender, registering it if there is none yet.
+	 * Until sender sends first message it only holds options, so if shared sender is returned it is just dropped.
+	 * Returned sender must be released with {@link #release(GelfSender)}, instead of closing it.
+	 */
+	public static GelfSender acquire(GelfSender s) {
+		Key key = new Key(s);
+		synchronized (senders) {
+			Entry e = senders.get(key);
+			if (e == null) {
+				e = new Entry(s);
+				senders.put(key, e);
+			}
+			e.references++;
+			return e.sender;
+		}
+	}
+
+	/**
+	 * Releases sender, closing it if it is not used anymore. Senders which are not registered are closed immediately.
+	 */
+	public static void release(GelfSender s) {
+		synchronized (senders) {
+			// Looked up by identity, options of sender could be changed after it was acquired
+			for (Iterator<Entry> it = senders.values().iterator(); it.hasNext();) {
+				Entry e = it.next();
+				if (e.sender == s) {
+					if (--e.references > 0) {
+						return;
+					}
+					it.remove();
+					break;
+				}
+			}
+		}
+		// Can wait for queue to be flushed, so not under lock
+		s.close();
+	}
+}
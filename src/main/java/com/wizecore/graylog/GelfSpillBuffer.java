@@ -0,0 +1,334 @@
+package com.wizecore.graylog;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Size-capped disk queue of encoded messages, used while Graylog is unreachable or queue is full.
+ * <p>
+ * Messages are stored in memory-mapped segment files in specified directory, as length prefixed records.
+ * Every segment starts with header holding read and write positions, so the queue survives JVM restarts.
+ * When maximum size is reached, the oldest segment is evicted. Directory is locked, so only one process can use it.
+ * Segments are unmapped before they are deleted, so files are not kept open until garbage collection.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfSpillBuffer {
+	/**
+	 * Default maximum disk size.
+	 */
+	public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * Minimum disk size, size of one segment. Smaller maximum size is rounded up to it.
+	 */
+	public static final long MIN_SIZE = 64 * 1024;
+
+	private static final int MAGIC = 0x47454c46;
+
+	/**
+	 * Magic, read position, write position.
+	 */
+	private static final int HEADER_SIZE = 12;
+	private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final String SUFFIX = ".spill";
+
+	/**
+	 * Unsafe.invokeCleaner(ByteBuffer) on Java 9+, null on older versions.
+	 */
+	private static final Method INVOKE_CLEANER;
+	private static final Object UNSAFE;
+
+	static {
+		Method m = null;
+		Object u = null;
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			m = c.getMethod("invokeCleaner", ByteBuffer.class);
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			u = f.get(null);
+		} catch (Exception e) {
+			m = null;
+		}
+		INVOKE_CLEANER = m;
+		UNSAFE = u;
+	}
+
+	private static class Segment {
+		final long id;
+		final File file;
+		final MappedByteBuffer buf;
+		int readPos;
+		int writePos;
+
+		Segment(long id, File file, MappedByteBuffer buf) {
+			this.id = id;
+			this.file = file;
+			this.buf = buf;
+		}
+	}
+
+	private final File dir;
+	private final String name;
+	private final long maxSize;
+	private final int segmentSize;
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private final RandomAccessFile lockFile;
+	private final FileLock lock;
+	private long nextId;
+	private long dropped;
+
+	/**
+	 * Opens spill buffer, reading segments left by previous run.
+	 *
+	 * @param name prefix of segment files, unique per destination
+	 * @param maxSize maximum disk size in bytes, at least {@link #MIN_SIZE}
+	 */
+	public GelfSpillBuffer(File dir, String name, long maxSize) throws IOException {
+		this.dir = dir;
+		this.name = name;
+		this.maxSize = Math.max(MIN_SIZE, maxSize);
+		this.segmentSize = (int) Math.max(MIN_SIZE, Math.min(MAX_SEGMENT_SIZE, this.maxSize / 4));
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can`t create spill directory " + dir);
+		}
+
+		lockFile = new RandomAccessFile(new File(dir, name + ".lock"), "rw");
+		FileLock l;
+		try {
+			l = lockFile.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			// Locked by another sender with the same destination in this JVM
+			lockFile.close();
+			throw new IOException("Spill " + name + " in " + dir + " is used by another sender");
+		} catch (IOException e) {
+			lockFile.close();
+			throw e;
+		}
+		if (l == null) {
+			lockFile.close();
+			throw new IOException("Spill directory " + dir + " is used by another process");
+		}
+		lock = l;
+
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File d, String n) {
+				return n.startsWith(GelfSpillBuffer.this.name + "-") && n.endsWith(SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+		for (File f: files) {
+			open(f);
+		}
+	}
+
+	private void open(File f) {
+		String n = f.getName();
+		Segment s = null;
+		try {
+			long id = Long.parseLong(n.substring(name.length() + 1, n.length() - SUFFIX.length()));
+			s = new Segment(id, f, map(f, (int) f.length()));
+			if (s.buf.getInt(0) != MAGIC) {
+				throw new IOException("Invalid header");
+			}
+			s.readPos = s.buf.getInt(4);
+			s.writePos = s.buf.getInt(8);
+			if (s.readPos < HEADER_SIZE || s.writePos > s.buf.capacity() || s.readPos > s.writePos) {
+				throw new IOException("Invalid positions");
+			}
+			nextId = Math.max(nextId, id + 1);
+			if (s.readPos == s.writePos) {
+				delete(s);
+			} else {
+				segments.add(s);
+			}
+		} catch (Exception e) {
+			System.err.println("GELF spill: ignoring broken segment " + f + ": " + e);
+			if (s != null) {
+				delete(s);
+			} else {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Unmaps and deletes segment, which must not be used after that.
+	 */
+	private static void delete(Segment s) {
+		unmap(s.buf);
+		s.file.delete();
+	}
+
+	/**
+	 * Releases mapping now instead of on garbage collection. Mapped file can`t be deleted on Windows otherwise.
+	 */
+	private static void unmap(MappedByteBuffer buf) {
+		try {
+			if (INVOKE_CLEANER != null) {
+				INVOKE_CLEANER.invoke(UNSAFE, buf);
+			} else {
+				// Java 7 and 8
+				Method cleaner = buf.getClass().getMethod("cleaner");
+				cleaner.setAccessible(true);
+				Object c = cleaner.invoke(buf);
+				if (c != null) {
+					c.getClass().getMethod("clean").invoke(c);
+				}
+			}
+		} catch (Exception e) {
+			// Don`t care, unmapped on garbage collection
+		}
+	}
+
+	private static MappedByteBuffer map(File f, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(size);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Appends record, evicting oldest segment if maximum size is reached.
+	 *
+	 * @return false if record is larger than segment and was dropped
+	 */
+	public synchronized boolean append(byte[] b, int off, int len) {
+		int need = 4 + len;
+		if (need > segmentSize - HEADER_SIZE) {
+			dropped++;
+			return false;
+		}
+
+		Segment s = segments.peekLast();
+		if (s == null || s.writePos + need > s.buf.capacity()) {
+			try {
+				s = roll();
+			} catch (IOException e) {
+				System.err.println("GELF spill: failed to create segment: " + e);
+				dropped++;
+				return false;
+			}
+		}
+
+		s.buf.putInt(s.writePos, len);
+		s.buf.position(s.writePos + 4);
+		s.buf.put(b, off, len);
+		s.writePos += need;
+		s.buf.putInt(8, s.writePos);
+		return true;
+	}
+
+	private Segment roll() throws IOException {
+		while (!segments.isEmpty() && (long) (segments.size() + 1) * segmentSize > maxSize) {
+			Segment old = segments.removeFirst();
+			dropped += count(old);
+			delete(old);
+		}
+
+		long id = nextId++;
+		File f = new File(dir, name + "-" + String.format("%016d", id) + SUFFIX);
+		Segment s = new Segment(id, f, map(f, segmentSize));
+		s.readPos = HEADER_SIZE;
+		s.writePos = HEADER_SIZE;
+		s.buf.putInt(0, MAGIC);
+		s.buf.putInt(4, s.readPos);
+		s.buf.putInt(8, s.writePos);
+		segments.add(s);
+		return s;
+	}
+
+	private static int count(Segment s) {
+		int n = 0;
+		for (int pos = s.readPos; pos < s.writePos; pos += 4 + s.buf.getInt(pos)) {
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Oldest record, or null if buffer is empty. Record stays in buffer until {@link #remove()}.
+	 */
+	public synchronized byte[] peek() {
+		Segment s = segments.peekFirst();
+		if (s == null || s.readPos == s.writePos) {
+			return null;
+		}
+
+		int len = s.buf.getInt(s.readPos);
+		byte[] b = new byte[len];
+		s.buf.position(s.readPos + 4);
+		s.buf.get(b);
+		return b;
+	}
+
+	/**
+	 * Removes oldest record.
+	 */
+	public synchronized void remove() {
+		Segment s = segments.peekFirst();
+		if (s == null || s.readPos == s.writePos) {
+			return;
+		}
+
+		s.readPos += 4 + s.buf.getInt(s.readPos);
+		if (s.readPos == s.writePos) {
+			if (segments.size() > 1) {
+				segments.removeFirst();
+				delete(s);
+				return;
+			}
+			// Reuse last segment from the start
+			s.readPos = HEADER_SIZE;
+			s.writePos = HEADER_SIZE;
+			s.buf.putInt(8, s.writePos);
+		}
+		s.buf.putInt(4, s.readPos);
+	}
+
+	public synchronized boolean isEmpty() {
+		Segment s = segments.peekFirst();
+		return s == null || s.readPos == s.writePos;
+	}
+
+	/**
+	 * Number of records lost because of eviction or size limit.
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Flushes segments to disk and releases directory lock. Segments are kept for the next run.
+	 */
+	public synchronized void close() {
+		for (Segment s: segments) {
+			s.buf.force();
+			unmap(s.buf);
+		}
+		segments.clear();
+		try {
+			lock.release();
+			lockFile.close();
+		} catch (IOException e) {
+			// Don`t care
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package com.wizecore.graylog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Renders exception stack traces in {@link Throwable#printStackTrace()} format, caching rendered frames.
+ * <p>
+ * Frames of every exception in the chain (causes and suppressed exceptions) are rendered once and kept in
+ * bounded cache as JSON escaped UTF-8 bytes, keyed by frame arrays and exception classes of the whole chain.
+ * Cache lookups don`t lock, entries not used since previous eviction pass are evicted when cache is full.
+ * Only header lines (exception class and message) are rendered on every event.
+ * {@link GelfEncoder} copies cached bytes directly to the output buffer.
+ * <p>
+ * Frames above max depth and causes above max cause depth are omitted, consecutive frames of classes
+ * starting with one of fold prefixes (except the top frame) are collapsed to single line.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfStackTraceRenderer {
+	/**
+	 * Default number of cached stack traces.
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 256;
+
+	/**
+	 * Rendered frames of the whole exception chain.
+	 */
+	private static class Frames {
+		final String[] text;
+		final byte[][] escaped;
+		/**
+		 * Set on use, cleared by eviction pass. New entry counts as used, so it gets second chance too.
+		 */
+		volatile boolean used = true;
+
+		Frames(String[] text) {
+			this.text = text;
+			escaped = new byte[text.length][];
+			GelfEncoder encoder = new GelfEncoder();
+			for (int i = 0; i < text.length; i++) {
+				encoder.reset();
+				encoder.writeEscaped(text[i], 0, text[i].length());
+				escaped[i] = encoder.toByteArray();
+			}
+		}
+	}
+
+	/**
+	 * Stack trace of single event, header lines and cached frames.
+	 */
+	public static class StackTrace {
+		private final String[] headers;
+		private final Frames frames;
+		private final StackTraceElement top;
+
+		StackTrace(String[] headers, Frames frames, StackTraceElement top) {
+			this.headers = headers;
+			this.frames = frames;
+			this.top = top;
+		}
+
+		/**
+		 * Top frame, to get file and line, or null.
+		 */
+		public StackTraceElement getTop() {
+			return top;
+		}
+
+		/**
+		 * Number of chars in rendered stack trace.
+		 */
+		public int length() {
+			int n = headers.length - 1;
+			for (int i = 0; i < headers.length; i++) {
+				n += headers[i].length() + frames.text[i].length();
+			}
+			return n;
+		}
+
+		/**
+		 * Writes JSON escaped stack trace, without quotes.
+		 */
+		public void writeTo(GelfEncoder encoder) {
+			for (int i = 0; i < headers.length; i++) {
+				if (i > 0) {
+					encoder.writeByte('\\');
+					encoder.writeByte('n');
+				}
+				encoder.writeEscaped(headers[i], 0, headers[i].length());
+				byte[] b = frames.escaped[i];
+				encoder.write(b, 0, b.length);
+			}
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder s = new StringBuilder(length());
+			for (int i = 0; i < headers.length; i++) {
+				if (i > 0) {
+					s.append('\n');
+				}
+				s.append(headers[i]).append(frames.text[i]);
+			}
+			return s.toString();
+		}
+	}
+
+	/**
+	 * Exception chain, flattened in printing order.
+	 */
+	private static class Chain {
+		final List<String> headers = new ArrayList<String>();
+		final List<Object> key = new ArrayList<Object>();
+		final List<StackTraceElement[]> frames = new ArrayList<StackTraceElement[]>();
+		final List<StackTraceElement[]> enclosing = new ArrayList<StackTraceElement[]>();
+		final List<String> indents = new ArrayList<String>();
+	}
+
+	private static class Key {
+		final Object[] parts;
+		final int hash;
+
+		Key(Object[] parts) {
+			this.parts = parts;
+			hash = Arrays.deepHashCode(parts);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && hash == ((Key) o).hash && Arrays.deepEquals(parts, ((Key) o).parts);
+		}
+	}
+
+	private static final StackTraceElement[] NO_FRAMES = new StackTraceElement[0];
+
+	private final int maxDepth;
+	private final int maxCauseDepth;
+	private final String[] fold;
+	private final int cacheSize;
+	private final ConcurrentMap<Key, Frames> cache = new ConcurrentHashMap<Key, Frames>();
+
+	/**
+	 * @param maxDepth frames printed for every exception, 0 is unlimited
+	 * @param maxCauseDepth nested causes printed, 0 is unlimited
+	 * @param fold comma separated class name prefixes of frames to fold, or null
+	 * @param cacheSize number of cached stack traces, 0 disables cache
+	 */
+	public GelfStackTraceRenderer(int maxDepth, int maxCauseDepth, String fold, int cacheSize) {
+		this.maxDepth = maxDepth;
+		this.maxCauseDepth = maxCauseDepth;
+		List<String> prefixes = new ArrayList<String>();
+		if (fold != null) {
+			for (StringTokenizer en = new StringTokenizer(fold, ",; \r\n\t"); en.hasMoreElements();) {
+				prefixes.add(en.nextToken());
+			}
+		}
+		this.fold = prefixes.toArray(new String[prefixes.size()]);
+		this.cacheSize = cacheSize;
+	}
+
+	public GelfStackTraceRenderer() {
+		this(0, 0, null, DEFAULT_CACHE_SIZE);
+	}
+
+	public StackTrace render(Throwable t) {
+		Chain c = new Chain();
+		walk(t, NO_FRAMES, "", "", 0, c, Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>()));
+		Key key = new Key(c.key.toArray());
+
+		Frames f = cache.get(key);
+		if (f != null) {
+			if (!f.used) {
+				// Avoid writing shared entry on every hit
+				f.used = true;
+			}
+		} else {
+			String[] text = new String[c.frames.size()];
+			for (int i = 0; i < text.length; i++) {
+				text[i] = frames(c.frames.get(i), c.enclosing.get(i), c.indents.get(i));
+			}
+			f = new Frames(text);
+			if (cacheSize > 0) {
+				if (cache.size() >= cacheSize) {
+					evict();
+				}
+				cache.put(key, f);
+			}
+		}
+
+		StackTraceElement[] st = c.frames.get(0);
+		return new StackTrace(c.headers.toArray(new String[c.headers.size()]), f, st.length > 0 ? st[0] : null);
+	}
+
+	/**
+	 * Removes entries which were not used since previous pass, until there is room for new one,
+	 * giving second chance to used ones.
+	 */
+	private void evict() {
+		synchronized (cache) {
+			for (int pass = 0; pass < 2 && cache.size() >= cacheSize; pass++) {
+				for (Iterator<Frames> it = cache.values().iterator(); it.hasNext() && cache.size() >= cacheSize;) {
+					Frames f = it.next();
+					if (f.used) {
+						f.used = false;
+					} else {
+						it.remove();
+					}
+				}
+			}
+		}
+	}
+
+	private void walk(Throwable t, StackTraceElement[] enclosing, String caption, String indent, int causeDepth, Chain c, Set<Throwable> seen) {
+		if (!seen.add(t)) {
+			add(c, caption + "[CIRCULAR REFERENCE: " + t + "]", "circular", NO_FRAMES, NO_FRAMES, indent);
+			return;
+		}
+
+		StackTraceElement[] st = t.getStackTrace();
+		add(c, caption + t, t.getClass().getName(), st, enclosing, indent);
+
+		for (Throwable s: t.getSuppressed()) {
+			walk(s, st, indent + "\tSuppressed: ", indent + "\t", causeDepth, c, seen);
+		}
+
+		Throwable cause = t.getCause();
+		if (cause != null) {
+			if (maxCauseDepth > 0 && causeDepth >= maxCauseDepth) {
+				int n = 0;
+				for (Throwable e = cause; e != null && n < 100; e = e.getCause()) {
+					n++;
+				}
+				add(c, indent + "Caused by: ... " + n + " more", "omitted", NO_FRAMES, NO_FRAMES, indent);
+			} else {
+				walk(cause, st, indent + "Caused by: ", indent, causeDepth + 1, c, seen);
+			}
+		}
+	}
+
+	private static void add(Chain c, String header, Object key, StackTraceElement[] frames, StackTraceElement[] enclosing, String indent) {
+		c.headers.add(header);
+		c.key.add(key);
+		c.key.add(frames);
+		// Common frames are printed as "... n more"
+		c.key.add(enclosing.length);
+		// Same frames are rendered differently for suppressed exceptions and causes
+		c.key.add(indent);
+		c.frames.add(frames);
+		c.enclosing.add(enclosing);
+		c.indents.add(indent);
+	}
+
+	private String frames(StackTraceElement[] st, StackTraceElement[] enclosing, String indent) {
+		int m = st.length - 1;
+		int n = enclosing.length - 1;
+		while (m >= 0 && n >= 0 && st[m].equals(enclosing[n])) {
+			m--;
+			n--;
+		}
+		int common = st.length - 1 - m;
+
+		StringBuilder s = new StringBuilder();
+		int lines = 0;
+		for (int i = 0; i <= m; i++) {
+			if (maxDepth > 0 && lines >= maxDepth) {
+				s.append('\n').append(indent).append("\t... ").append(m - i + 1).append(" frames omitted");
+				break;
+			}
+
+			int j = i;
+			if (i > 0) {
+				while (j <= m && folded(st[j])) {
+					j++;
+				}
+			}
+
+			if (j - i > 1) {
+				s.append('\n').append(indent).append("\t... ").append(j - i).append(" frames folded");
+				i = j - 1;
+			} else {
+				s.append('\n').append(indent).append("\tat ").append(st[i]);
+			}
+			lines++;
+		}
+
+		if (common != 0) {
+			s.append('\n').append(indent).append("\t... ").append(common).append(" more");
+		}
+		return s.toString();
+	}
+
+	private boolean folded(StackTraceElement e) {
+		String cl = e.getClassName();
+		for (int i = 0; i < fold.length; i++) {
+			if (cl.startsWith(fold[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,59 @@
+package com.wizecore.graylog;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fields which are the same for every message of appender: version, host, facility and prepared fields.
+ * <p>
+ * Encoded to JSON once, {@link GelfEncoder} copies encoded bytes to every message which still has the same
+ * version, host and facility (compared by reference). Fields added to message with the same name as
+ * prepared field are written after, and override it.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfStaticFields {
+	private final String version;
+	private final String host;
+	private final String facility;
+	private final Map<String, Object> fields;
+	private final byte[] encoded;
+
+	public GelfStaticFields(String version, String host, String facility, Map<String, ?> fields) {
+		this.version = version;
+		this.host = host;
+		this.facility = facility;
+		Map<String, Object> f = new LinkedHashMap<String, Object>();
+		if (fields != null) {
+			f.putAll(fields);
+		}
+		this.fields = Collections.unmodifiableMap(f);
+		GelfEncoder encoder = new GelfEncoder();
+		encoder.encodeStatic(this);
+		encoded = encoder.toByteArray();
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public String getFacility() {
+		return facility;
+	}
+
+	public Map<String, Object> getFields() {
+		return fields;
+	}
+
+	/**
+	 * JSON object members, without braces.
+	 */
+	public byte[] getEncoded() {
+		return encoded;
+	}
+}
@@ -0,0 +1,580 @@
+package com.wizecore.graylog;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.wizecore.graylog.GelfDestinations.Endpoint;
+
+/**
+ * Non-blocking TCP transport for {@link GelfSender}, driven by the sender I/O thread with a {@link Selector}.
+ * <p>
+ * Keeps one connection per destination endpoint. Messages are encoded as null terminated frames directly
+ * to the write buffer of connection chosen by {@link GelfDestinations}, which is written out when socket is ready.
+ * Connecting and writing never block or spin, logging threads never touch the socket.
+ * All methods except {@link #wakeup()} must be called from the I/O thread.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfTcpTransport {
+	/**
+	 * Maximum number of bytes waiting to be written, I/O thread stops taking messages from the queue above that.
+	 */
+	public static final int MAX_PENDING = 1024 * 1024;
+
+	/**
+	 * Without batching, write as soon as this number of bytes is pending, even if more messages are queued.
+	 */
+	private static final int WRITE_SIZE = 64 * 1024;
+
+	/**
+	 * Connection to single endpoint with its write buffer.
+	 */
+	private static class Connection {
+		final Endpoint endpoint;
+		final GelfEncoder output = new GelfEncoder(WRITE_SIZE);
+		ByteBuffer outputBuffer;
+		int written;
+		/**
+		 * Start of the first frame which is not completely written yet.
+		 */
+		int frameStart;
+		SocketChannel channel;
+		SelectionKey key;
+		boolean connected;
+		boolean opened;
+		long connectDeadline;
+		long batchStarted;
+
+		Connection(Endpoint endpoint) {
+			this.endpoint = endpoint;
+		}
+
+		int pending() {
+			return output.size() - written;
+		}
+	}
+
+	private final GelfSender sender;
+	private final GelfDestinations destinations;
+	private final Selector selector;
+	private final ByteBuffer scratch = ByteBuffer.allocate(256);
+	private final List<Connection> connections = new ArrayList<Connection>();
+	private int version;
+
+	public GelfTcpTransport(GelfSender sender, GelfDestinations destinations) throws IOException {
+		this.sender = sender;
+		this.destinations = destinations;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Encodes message to the write buffer of chosen endpoint, and writes buffer if enough data is pending.
+	 */
+	public void append(GelfMessage m) throws IOException {
+		sender.ensureDestination();
+		long now = System.nanoTime();
+		Endpoint ep = destinations.select(now, false);
+		if (!ep.isHealthy() && sender.spill(m)) {
+			// Everything is down, keep message on disk
+			return;
+		}
+
+		Connection c = connection(ep);
+		if (c.pending() == 0) {
+			c.batchStarted = now;
+		}
+
+		int size = c.output.size();
+		long start = System.nanoTime();
+		c.output.encode(m);
+		c.output.writeByte(0);
+		size = c.output.size() - size;
+		sender.getMetrics().serialized(sender, System.nanoTime() - start, size);
+		appended(c, now);
+	}
+
+	/**
+	 * Appends already encoded message, used to replay spilled messages.
+	 * Only appends to connected endpoint, starting connection if needed.
+	 *
+	 * @return false if no endpoint is connected yet
+	 */
+	public boolean appendEncoded(byte[] json, int len) {
+		long now = System.nanoTime();
+		Endpoint ep = destinations.select(now, false);
+		if (ep == null || !ep.isHealthy()) {
+			return false;
+		}
+
+		Connection c = connection(ep);
+		if (!c.connected) {
+			if (c.channel == null) {
+				connect(c, now);
+			}
+			return false;
+		}
+
+		if (c.pending() == 0) {
+			c.batchStarted = now;
+		}
+		c.output.write(json, 0, len);
+		c.output.writeByte(0);
+		appended(c, now);
+		return true;
+	}
+
+	private void appended(Connection c, long now) {
+		c.endpoint.setOutstanding(c.pending());
+		int batchSize = sender.getBatchSize();
+		if (c.pending() >= (batchSize > 0 ? batchSize : WRITE_SIZE)) {
+			write(c, now);
+		}
+	}
+
+	/**
+	 * True if too much data is waiting to be written and no more messages should be appended.
+	 */
+	public boolean isBackedUp() {
+		return pending() >= Math.max(MAX_PENDING, sender.getBatchSize() * 2);
+	}
+
+	/**
+	 * Number of bytes waiting to be written to all endpoints.
+	 */
+	public int pending() {
+		int n = 0;
+		for (int i = 0; i < connections.size(); i++) {
+			n += connections.get(i).pending();
+		}
+		return n;
+	}
+
+	/**
+	 * Called when message queue is empty, or once per batch linger while messages keep coming.
+	 * Connects, probes failed endpoints, writes pending data and handles timeouts.
+	 *
+	 * @return nanoseconds until next deadline, or -1 if there is nothing to wait for
+	 */
+	public long tick(long now) {
+		if (version != destinations.getVersion()) {
+			version = destinations.getVersion();
+			removeStale(now);
+		}
+
+		long next = -1;
+		for (int i = 0; i < connections.size(); i++) {
+			long wait = tick(connections.get(i), now);
+			if (wait > 0 && (next < 0 || wait < next)) {
+				next = wait;
+			}
+		}
+		return next;
+	}
+
+	private long tick(Connection c, long now) {
+		Endpoint ep = c.endpoint;
+		if (c.channel == null) {
+			if (ep.isHealthy()) {
+				if (c.pending() == 0) {
+					return -1;
+				}
+			} else
+			if (now - ep.getFailedUntil() < 0) {
+				return ep.getFailedUntil() - now;
+			}
+			// Connect to send data, or to probe failed endpoint
+			connect(c, now);
+			if (c.channel == null) {
+				return ep.getFailedUntil() - now;
+			}
+		}
+
+		if (!c.connected) {
+			if (now - c.connectDeadline >= 0) {
+				fail(c, new SocketTimeoutException("Connect timed out"), now);
+				return ep.getFailedUntil() - now;
+			}
+			return c.connectDeadline - now;
+		}
+
+		if (c.pending() == 0) {
+			return -1;
+		}
+
+		int batchSize = sender.getBatchSize();
+		if (batchSize > 0 && c.pending() < batchSize) {
+			long wait = c.batchStarted + TimeUnit.MILLISECONDS.toNanos(sender.getBatchLinger()) - now;
+			if (wait > 0) {
+				return wait;
+			}
+		}
+
+		write(c, now);
+		return -1;
+	}
+
+	/**
+	 * Waits for socket readiness, timeout or {@link #wakeup()}, and handles ready sockets.
+	 */
+	public void select(long nanos) {
+		try {
+			long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+			selector.select(ms > 0 ? ms : 1);
+			handleReady();
+		} catch (IOException e) {
+			System.err.println("GELF TCP selector failed: " + e);
+		} catch (ClosedSelectorException e) {
+			// Closed concurrently by GelfSender.close()
+		}
+	}
+
+	/**
+	 * Handles sockets which are ready without waiting, used while queue is never empty.
+	 */
+	public void selectNow() {
+		try {
+			if (selector.selectNow() > 0) {
+				handleReady();
+			}
+		} catch (IOException e) {
+			System.err.println("GELF TCP selector failed: " + e);
+		} catch (ClosedSelectorException e) {
+			// Closed concurrently by GelfSender.close()
+		}
+	}
+
+	private void handleReady() {
+		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			SelectionKey k = it.next();
+			it.remove();
+			Connection c = (Connection) k.attachment();
+			if (k.isValid() && k == c.key) {
+				ready(c, k);
+			}
+		}
+	}
+
+	/**
+	 * Interrupts {@link #select(long)}, can be called from any thread.
+	 */
+	public void wakeup() {
+		selector.wakeup();
+	}
+
+	/**
+	 * Tries to write all pending data during specified time.
+	 */
+	public void flush(long timeoutMillis) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		long now = System.nanoTime();
+		while (pending() > 0 && deadline - now > 0 && selector.isOpen()) {
+			tick(now);
+			for (int i = 0; i < connections.size(); i++) {
+				// Don`t wait for linger
+				write(connections.get(i), now);
+			}
+			if (pending() > 0) {
+				select(Math.min(deadline - now, TimeUnit.MILLISECONDS.toNanos(100)));
+			}
+			now = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Moves frames which were not written to the disk spill buffer of sender, if it has one.
+	 */
+	public void spillPending() {
+		for (int i = 0; i < connections.size(); i++) {
+			Connection c = connections.get(i);
+			dropPartialFrame(c);
+			spillFrames(c);
+			if (c.pending() > 0) {
+				// No spill buffer, frames are lost
+				sender.getMetrics().dropped(sender, frames(c));
+				reset(c);
+			}
+		}
+	}
+
+	public void close() {
+		for (int i = 0; i < connections.size(); i++) {
+			closeChannel(connections.get(i));
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Don`t care
+		}
+	}
+
+	/**
+	 * Closes connections to endpoints no longer present after DNS change, moving their pending frames elsewhere.
+	 */
+	private void removeStale(long now) {
+		for (int i = connections.size() - 1; i >= 0; i--) {
+			Connection c = connections.get(i);
+			if (!destinations.contains(c.endpoint)) {
+				closeChannel(c);
+				dropPartialFrame(c);
+				if (c.pending() > 0) {
+					Endpoint other = destinations.select(now, false);
+					if (other != null) {
+						moveFrames(c, connection(other));
+					} else {
+						sender.getMetrics().dropped(sender, frames(c));
+					}
+				}
+				connections.remove(i);
+			}
+		}
+	}
+
+	private void moveFrames(Connection from, Connection to) {
+		if (to.pending() == 0) {
+			to.batchStarted = from.batchStarted;
+		}
+		to.output.write(from.output.getBuffer(), from.written, from.pending());
+		to.endpoint.setOutstanding(to.pending());
+		reset(from);
+		updateInterest(to);
+	}
+
+	private Connection connection(Endpoint ep) {
+		for (int i = 0; i < connections.size(); i++) {
+			Connection c = connections.get(i);
+			if (c.endpoint == ep) {
+				return c;
+			}
+		}
+		Connection c = new Connection(ep);
+		connections.add(c);
+		return c;
+	}
+
+	private void ready(Connection c, SelectionKey k) {
+		long now = System.nanoTime();
+		if (k.isConnectable()) {
+			try {
+				if (c.channel.finishConnect()) {
+					c.connected = true;
+					c.endpoint.succeeded();
+					updateInterest(c);
+				}
+			} catch (IOException e) {
+				fail(c, e, now);
+				return;
+			}
+		}
+
+		if (c.connected && k.isReadable()) {
+			// Server never sends anything, only notice when it closes connection
+			try {
+				scratch.clear();
+				if (c.channel.read(scratch) < 0) {
+					closeChannel(c);
+					dropPartialFrame(c);
+					return;
+				}
+			} catch (IOException e) {
+				fail(c, e, now);
+				return;
+			}
+		}
+
+		if (c.connected && k.isWritable()) {
+			write(c, now);
+		}
+	}
+
+	private void connect(Connection c, long now) {
+		try {
+			if (c.opened) {
+				sender.getMetrics().reconnected(sender, c.endpoint.toString());
+			}
+			c.opened = true;
+			c.channel = SocketChannel.open();
+			c.channel.configureBlocking(false);
+			c.channel.socket().setTcpNoDelay(true);
+			c.connected = c.channel.connect(c.endpoint.getAddress());
+			c.key = c.channel.register(selector, 0, c);
+			if (c.connected) {
+				c.endpoint.succeeded();
+			} else {
+				c.connectDeadline = now + TimeUnit.MILLISECONDS.toNanos(sender.getConnectTimeout());
+			}
+			updateInterest(c);
+		} catch (IOException e) {
+			fail(c, e, now);
+		}
+	}
+
+	private void write(Connection c, long now) {
+		if (!c.connected || c.pending() == 0) {
+			return;
+		}
+
+		try {
+			byte[] b = c.output.getBuffer();
+			if (c.outputBuffer == null || c.outputBuffer.array() != b) {
+				c.outputBuffer = ByteBuffer.wrap(b);
+			}
+			c.outputBuffer.limit(c.output.size());
+			c.outputBuffer.position(c.written);
+			long start = System.nanoTime();
+			int n = c.channel.write(c.outputBuffer);
+			sender.getMetrics().written(sender, System.nanoTime() - start, n);
+			sent(c, c.written + n);
+			c.written += n;
+
+			if (c.written == c.output.size()) {
+				c.output.reset();
+				c.written = 0;
+				c.frameStart = 0;
+			} else
+			if (c.written >= WRITE_SIZE) {
+				c.output.discard(c.written);
+				c.frameStart -= c.written;
+				c.written = 0;
+			}
+			c.endpoint.setOutstanding(c.pending());
+			updateInterest(c);
+		} catch (IOException e) {
+			fail(c, e, now);
+		}
+	}
+
+	/**
+	 * Counts frames which were completely written to the socket, up to specified position.
+	 */
+	private void sent(Connection c, int end) {
+		byte[] b = c.output.getBuffer();
+		for (int i = c.written; i < end; i++) {
+			if (b[i] == 0) {
+				sender.getMetrics().sent(sender, i + 1 - c.frameStart);
+				c.frameStart = i + 1;
+			}
+		}
+	}
+
+	/**
+	 * Number of frames waiting to be written.
+	 */
+	private static int frames(Connection c) {
+		byte[] b = c.output.getBuffer();
+		int n = 0;
+		for (int i = c.written; i < c.output.size(); i++) {
+			if (b[i] == 0) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private static void reset(Connection c) {
+		c.output.reset();
+		c.written = 0;
+		c.frameStart = 0;
+		c.endpoint.setOutstanding(0);
+	}
+
+	private void updateInterest(Connection c) {
+		if (c.key != null && c.key.isValid()) {
+			int ops = c.connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+			if (c.connected && c.pending() > 0) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			c.key.interestOps(ops);
+		}
+	}
+
+	/**
+	 * Takes endpoint out of rotation and moves its pending frames to another endpoint, if there is one available.
+	 */
+	private void fail(Connection c, IOException e, long now) {
+		System.err.println("GELF TCP Server (" + c.endpoint + ") unavailable: " + e);
+		closeChannel(c);
+		dropPartialFrame(c);
+		c.endpoint.failed(now);
+
+		if (c.pending() > 0) {
+			Endpoint other = destinations.select(now, false);
+			if (other != null && other != c.endpoint && other.isHealthy()) {
+				moveFrames(c, connection(other));
+			} else {
+				spillFrames(c);
+			}
+		}
+		c.endpoint.setOutstanding(c.pending());
+	}
+
+	/**
+	 * Moves pending frames to the disk while no endpoint is available, if sender has spill buffer.
+	 */
+	private void spillFrames(Connection c) {
+		if (c.pending() == 0 || !sender.hasSpill()) {
+			return;
+		}
+
+		byte[] b = c.output.getBuffer();
+		int start = c.written;
+		int dropped = 0;
+		for (int i = start; i < c.output.size(); i++) {
+			if (b[i] == 0) {
+				if (!sender.spill(b, start, i - start)) {
+					dropped++;
+				}
+				start = i + 1;
+			}
+		}
+		if (dropped > 0) {
+			sender.getMetrics().dropped(sender, dropped);
+		}
+		reset(c);
+	}
+
+	/**
+	 * Remainder of partially written frame can`t be sent over new connection.
+	 */
+	private void dropPartialFrame(Connection c) {
+		if (c.written > 0) {
+			byte[] b = c.output.getBuffer();
+			int end = c.written;
+			if (b[end - 1] != 0) {
+				while (end < c.output.size() && b[end] != 0) {
+					end++;
+				}
+				end = Math.min(end + 1, c.output.size());
+				sender.getMetrics().dropped(sender, 1);
+			}
+			c.output.discard(end);
+			c.written = 0;
+			c.frameStart = 0;
+		}
+	}
+
+	private void closeChannel(Connection c) {
+		c.connected = false;
+		if (c.key != null) {
+			c.key.cancel();
+			c.key = null;
+		}
+		if (c.channel != null) {
+			try {
+				c.channel.close();
+			} catch (IOException e) {
+				// Don`t care
+			}
+			c.channel = null;
+		}
+	}
+}
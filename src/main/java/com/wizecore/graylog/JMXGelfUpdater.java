@@ -1,24 +1,150 @@
 package com.wizecore.graylog;
 
+import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.lang.management.RuntimeMXBean;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Uses JMX to obtain JVM process information and update message.
- * 
+ * <p>
+ * Process metadata (pid, JVM version, start time, main class) is read once. Heap, GC, threads and CPU load
+ * are sampled by {@link GelfScheduler} every {@link #SAMPLE_INTERVAL} milliseconds into immutable snapshot,
+ * shared by all instances, so each message only reads the latest snapshot.
+ *
  * @author Ruslan Gainutdinov <huksley@wizecore.com>
  */
 public class JMXGelfUpdater implements GelfMessageUpdater {
+	/**
+	 * Interval between samples of JVM stats, in milliseconds.
+	 */
+	public static final long SAMPLE_INTERVAL = 10000;
 
-	@Override
-	public void update(GelfMessage m) {
+	/**
+	 * JVM stats at the time of sample.
+	 */
+	private static class Snapshot {
+		final long heapUsed;
+		final long gcCount;
+		final long gcTime;
+		final int threads;
+		final double cpuLoad;
+
+		Snapshot(long heapUsed, long gcCount, long gcTime, int threads, double cpuLoad) {
+			this.heapUsed = heapUsed;
+			this.gcCount = gcCount;
+			this.gcTime = gcTime;
+			this.threads = threads;
+			this.cpuLoad = cpuLoad;
+		}
+	}
+
+	private static final String PID;
+	private static final String JVM_VERSION;
+	private static final long START_TIME;
+	private static final String MAIN_CLASS;
+	static {
 		RuntimeMXBean r = ManagementFactory.getRuntimeMXBean();
-		
+
 		// http://stackoverflow.com/questions/35842/how-can-a-java-program-get-its-own-process-id
 		String name = r.getName();
-		if (name != null && name.indexOf("@") > 0) {
-			String pid = name.substring(0, name.indexOf("@"));
-			m.getAdditonalFields().put("pid", pid);
+		PID = name != null && name.indexOf("@") > 0 ? name.substring(0, name.indexOf("@")) : null;
+		JVM_VERSION = System.getProperty("java.version");
+		START_TIME = r.getStartTime();
+
+		// Main class or jar, as it was passed to java launcher
+		String command = System.getProperty("sun.java.command");
+		if (command != null && command.trim().length() > 0) {
+			command = command.trim();
+			MAIN_CLASS = command.indexOf(' ') > 0 ? command.substring(0, command.indexOf(' ')) : command;
+		} else {
+			MAIN_CLASS = null;
+		}
+	}
+
+	private static volatile Snapshot snapshot;
+	private static boolean sampling;
+
+	public JMXGelfUpdater() {
+		startSampling();
+	}
+
+	@Override
+	public void update(GelfMessage m) {
+		if (PID != null) {
+			m.addField("pid", PID);
+		}
+		if (JVM_VERSION != null) {
+			m.addField("jvm_version", JVM_VERSION);
+		}
+		m.addField("jvm_start_time", START_TIME);
+		if (MAIN_CLASS != null) {
+			m.addField("main_class", MAIN_CLASS);
+		}
+
+		Snapshot s = snapshot;
+		if (s != null) {
+			m.addField("jvm_heap_used", s.heapUsed);
+			m.addField("jvm_gc_count", s.gcCount);
+			m.addField("jvm_gc_time", s.gcTime);
+			m.addField("jvm_threads", (long) s.threads);
+			if (s.cpuLoad >= 0) {
+				m.addField("jvm_cpu_load", s.cpuLoad);
+			}
+		}
+	}
+
+	/**
+	 * Takes first sample and schedules next ones, once for all instances.
+	 */
+	private static synchronized void startSampling() {
+		if (sampling) {
+			return;
+		}
+		sampling = true;
+		sample();
+		GelfScheduler.get().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sample();
+			}
+		}, SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	private static void sample() {
+		try {
+			long gcCount = 0;
+			long gcTime = 0;
+			for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans()) {
+				// -1 if not supported by collector
+				gcCount += Math.max(gc.getCollectionCount(), 0);
+				gcTime += Math.max(gc.getCollectionTime(), 0);
+			}
+			snapshot = new Snapshot(
+				ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(),
+				gcCount,
+				gcTime,
+				ManagementFactory.getThreadMXBean().getThreadCount(),
+				cpuLoad()
+			);
+		} catch (RuntimeException e) {
+			System.err.println("JMXGelfUpdater: failed to sample JVM stats: " + e);
+		}
+	}
+
+	/**
+	 * Recent CPU load of JVM process from 0 to 1, or negative if not available.
+	 */
+	private static double cpuLoad() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		try {
+			if (os instanceof com.sun.management.OperatingSystemMXBean) {
+				return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+			}
+		} catch (LinkageError e) {
+			// Don`t care, not HotSpot compatible JVM
 		}
+		return -1;
 	}
 }
@@ -1,21 +1,69 @@
 package com.wizecore.graylog;
 
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.MDC;
+import org.slf4j.helpers.BasicMDCAdapter;
+import org.slf4j.spi.MDCAdapter;
 
 /**
- * Updates from SLF4J MDC 
- * 
+ * Updates from SLF4J MDC
+ * <p>
+ * If keys are specified, only these keys are looked up in MDC, without copying context map.
+ *
  * @author Ruslan Gainutdinov
  */
 public class MDCGelfUpdater implements GelfMessageUpdater {
 
+	private volatile GelfContextKeys keys;
+
+	public MDCGelfUpdater() {
+	}
+
+	/**
+	 * @param keys comma separated list of key or key=field, see {@link GelfContextKeys}
+	 */
+	public MDCGelfUpdater(String keys) {
+		setKeys(keys);
+	}
+
 	@Override
 	public void update(GelfMessage m) {
+		if (isEmpty()) {
+			return;
+		}
+
+		GelfContextKeys k = keys;
+		if (k != null) {
+			for (int i = 0; i < k.size(); i++) {
+				String v = MDC.get(k.getKey(i));
+				if (v != null) {
+					m.addField(k.getName(i), v);
+				}
+			}
+			return;
+		}
+
 		Map<String, String> extra = MDC.getCopyOfContextMap();
-		if (extra != null) {
+		if (extra != null && !extra.isEmpty()) {
 			m.getAdditonalFields().putAll(extra);
 		}
 	}
+
+	/**
+	 * Checks if MDC of current thread is empty, if adapter allows to do it without copy.
+	 */
+	private static boolean isEmpty() {
+		MDCAdapter a = MDC.getMDCAdapter();
+		if (a instanceof BasicMDCAdapter) {
+			Set<String> keys = ((BasicMDCAdapter) a).getKeys();
+			return keys == null || keys.isEmpty();
+		}
+		return false;
+	}
+
+	public void setKeys(String keys) {
+		this.keys = GelfContextKeys.parse(keys);
+	}
 }
@@ -0,0 +1,36 @@
+package com.wizecore.graylog;
+
+/**
+ * JVM version specific operations, Java 21 version.
+ * <p>
+ * Sender I/O thread which does blocking UDP writes runs as virtual thread, so every async sender
+ * does not hold platform thread. TCP I/O thread waits in {@link java.nio.channels.Selector} and stays platform thread.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+final class GelfPlatform {
+	private GelfPlatform() {
+	}
+
+	/**
+	 * Creates daemon I/O thread of sender, not started.
+	 *
+	 * @param virtual true if thread only does blocking I/O and parks, so it can be virtual thread
+	 */
+	static Thread newIoThread(Runnable r, String name, boolean virtual) {
+		if (virtual) {
+			// Virtual threads are always daemon
+			return Thread.ofVirtual().name(name).unstarted(r);
+		}
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	}
+
+	/**
+	 * Identifier of current thread.
+	 */
+	static long currentThreadId() {
+		return Thread.currentThread().threadId();
+	}
+}
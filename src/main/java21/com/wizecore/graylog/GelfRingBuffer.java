@@ -0,0 +1,148 @@
+package com.wizecore.graylog;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Bounded lock-free queue used to pass messages from logging threads to sender I/O thread, Java 21 version.
+ * <p>
+ * Based on Dmitry Vyukov bounded MPMC queue: every slot carries a sequence number,
+ * producers and consumers claim slots with a single CAS and never block each other.
+ * Capacity is rounded up to the nearest power of two.
+ * <p>
+ * Slots are plain arrays accessed with {@link VarHandle}: sequence is read with acquire and written with release,
+ * element itself is ordered by its sequence and accessed without fences. Positions of producers and consumers
+ * are padded to separate cache lines.
+ *
+ * @author Ruslan Gainutdinov <huksley@wizecore.com>
+ */
+public class GelfRingBuffer<E> {
+	private static final VarHandle ITEMS = MethodHandles.arrayElementVarHandle(Object[].class);
+	private static final VarHandle SEQUENCES = MethodHandles.arrayElementVarHandle(long[].class);
+	private static final VarHandle TAIL;
+	private static final VarHandle HEAD;
+	static {
+		try {
+			MethodHandles.Lookup l = MethodHandles.lookup();
+			TAIL = l.findVarHandle(GelfRingBuffer.class, "tail", long.class);
+			HEAD = l.findVarHandle(GelfRingBuffer.class, "head", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final int mask;
+	private final Object[] items;
+	private final long[] sequences;
+
+	long p01, p02, p03, p04, p05, p06, p07;
+
+	/**
+	 * Next position to write (producers).
+	 */
+	private volatile long tail;
+
+	long p11, p12, p13, p14, p15, p16, p17;
+
+	/**
+	 * Next position to read (consumers).
+	 */
+	private volatile long head;
+
+	long p21, p22, p23, p24, p25, p26, p27;
+
+	public GelfRingBuffer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		mask = size - 1;
+		items = new Object[size];
+		sequences = new long[size];
+		for (int i = 0; i < size; i++) {
+			sequences[i] = i;
+		}
+		// Publishes initial sequences to threads which get this queue without synchronization
+		VarHandle.releaseFence();
+	}
+
+	/**
+	 * Adds element to the queue.
+	 *
+	 * @return false if queue is full
+	 */
+	public boolean offer(E e) {
+		long pos = tail;
+		for (;;) {
+			int idx = (int) pos & mask;
+			long dif = (long) SEQUENCES.getAcquire(sequences, idx) - pos;
+			if (dif == 0) {
+				if (TAIL.compareAndSet(this, pos, pos + 1)) {
+					ITEMS.set(items, idx, e);
+					SEQUENCES.setRelease(sequences, idx, pos + 1);
+					return true;
+				}
+				pos = tail;
+			} else
+			if (dif < 0) {
+				return false;
+			} else {
+				pos = tail;
+			}
+		}
+	}
+
+	/**
+	 * Removes element from the queue.
+	 *
+	 * @return null if queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long pos = head;
+		for (;;) {
+			int idx = (int) pos & mask;
+			long dif = (long) SEQUENCES.getAcquire(sequences, idx) - (pos + 1);
+			if (dif == 0) {
+				if (HEAD.compareAndSet(this, pos, pos + 1)) {
+					E e = (E) ITEMS.get(items, idx);
+					ITEMS.set(items, idx, null);
+					SEQUENCES.setRelease(sequences, idx, pos + mask + 1);
+					return e;
+				}
+				pos = head;
+			} else
+			if (dif < 0) {
+				return null;
+			} else {
+				pos = head;
+			}
+		}
+	}
+
+	/**
+	 * True if no element was claimed by producers.
+	 * Element might be claimed but not yet published, so {@link #poll()} can still return null for short time.
+	 */
+	public boolean isEmpty() {
+		return tail == head;
+	}
+
+	/**
+	 * Approximate number of queued elements.
+	 */
+	public int size() {
+		long size = tail - head;
+		if (size < 0) {
+			return 0;
+		}
+		return size > capacity() ? capacity() : (int) size;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+}
@@ -0,0 +1,95 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GelfChunkerTest {
+	private DatagramChannel server;
+	private DatagramChannel client;
+
+	@Before
+	public void open() throws IOException {
+		server = DatagramChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		server.socket().setSoTimeout(5000);
+		client = DatagramChannel.open();
+		client.connect(server.getLocalAddress());
+	}
+
+	@After
+	public void close() throws IOException {
+		client.close();
+		server.close();
+	}
+
+	private ByteBuffer receive() throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(65536);
+		server.receive(b);
+		b.flip();
+		return b;
+	}
+
+	private static byte[] message(int len) {
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++) {
+			b[i] = (byte) i;
+		}
+		return b;
+	}
+
+	@Test
+	public void sendsSmallMessageAsSingleDatagram() throws IOException {
+		byte[] m = message(100);
+		new GelfChunker().send(client, 1, m, m.length, 1420);
+
+		ByteBuffer b = receive();
+		byte[] r = new byte[b.remaining()];
+		b.get(r);
+		assertArrayEquals(m, r);
+	}
+
+	@Test
+	public void writesChunkHeaders() throws IOException {
+		byte[] m = message(3000);
+		long id = 0x0102030405060708L;
+		new GelfChunker().send(client, id, m, m.length, 1420);
+
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		for (int i = 0; i < 3; i++) {
+			ByteBuffer b = receive();
+			assertEquals(GelfSender.GELF_UDP_CHUNKED_ID[0], b.get());
+			assertEquals(GelfSender.GELF_UDP_CHUNKED_ID[1], b.get());
+			assertEquals(id, b.getLong());
+			assertEquals(i, b.get());
+			assertEquals(3, b.get());
+			assertEquals(i < 2 ? 1420 : 3000 - 2 * 1420, b.remaining());
+			while (b.hasRemaining()) {
+				payload.write(b.get());
+			}
+		}
+		assertArrayEquals(m, payload.toByteArray());
+	}
+
+	@Test
+	public void rejectsMessageAboveMaxChunks() {
+		byte[] m = message(GelfChunker.MAX_CHUNKS * 100 + 1);
+		try {
+			new GelfChunker().send(client, 1, m, m.length, 100);
+			fail("Message needs more than " + GelfChunker.MAX_CHUNKS + " chunks");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+import com.wizecore.graylog.GelfCompressor.Codec;
+
+public class GelfCompressorTest {
+
+	private static byte[] message(int size) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; sb.length() < size; i++) {
+			sb.append("{ \"short_message\": \"message ").append(i).append("\" }");
+		}
+		return sb.substring(0, size).getBytes(GelfEncoder.UTF8);
+	}
+
+	private static byte[] result(GelfCompressor c) {
+		return Arrays.copyOf(c.getBuffer(), c.size());
+	}
+
+	private static byte[] gunzip(byte[] b) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(b));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] inflate(byte[] b) throws DataFormatException {
+		Inflater inflater = new Inflater();
+		inflater.setInput(b);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		while (!inflater.finished()) {
+			int n = inflater.inflate(buf);
+			assertTrue("Truncated zlib stream", n > 0 || !inflater.needsInput());
+			out.write(buf, 0, n);
+		}
+		inflater.end();
+		return out.toByteArray();
+	}
+
+	@Test
+	public void gzipRoundTrip() throws IOException {
+		GelfCompressor c = new GelfCompressor(Codec.GZIP, Deflater.DEFAULT_COMPRESSION, 0);
+		try {
+			// Same instance is reused for messages of different size
+			for (int size : new int[] { 10, 5000, 100000, 300 }) {
+				byte[] m = message(size);
+				c.compress(m, m.length);
+				assertArrayEquals(m, gunzip(result(c)));
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test
+	public void zlibRoundTrip() throws DataFormatException {
+		GelfCompressor c = new GelfCompressor(Codec.ZLIB, Deflater.BEST_SPEED, 0);
+		try {
+			for (int size : new int[] { 10, 5000, 100000, 300 }) {
+				byte[] m = message(size);
+				c.compress(m, m.length);
+				byte[] z = result(c);
+				// zlib header, CMF 0x78 is deflate with 32K window
+				assertEquals(0x78, z[0] & 0xff);
+				assertArrayEquals(m, inflate(z));
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test
+	public void smallMessagesBypassCompression() throws IOException {
+		GelfCompressor c = new GelfCompressor(Codec.GZIP, Deflater.DEFAULT_COMPRESSION, 512);
+		try {
+			byte[] small = message(511);
+			c.compress(small, small.length);
+			assertSame(small, c.getBuffer());
+			assertEquals(small.length, c.size());
+
+			byte[] large = message(512);
+			c.compress(large, large.length);
+			assertArrayEquals(large, gunzip(result(c)));
+		} finally {
+			c.close();
+		}
+	}
+
+	@Test
+	public void noneCodecReturnsInput() {
+		GelfCompressor c = new GelfCompressor(Codec.NONE, Deflater.DEFAULT_COMPRESSION, 0);
+		byte[] m = message(5000);
+		c.compress(m, 100);
+		assertSame(m, c.getBuffer());
+		assertEquals(100, c.size());
+		c.close();
+	}
+}
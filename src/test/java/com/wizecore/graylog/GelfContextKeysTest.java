@@ -0,0 +1,67 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+public class GelfContextKeysTest {
+
+	@After
+	public void clearMdc() {
+		MDC.clear();
+	}
+
+	@Test
+	public void parsesKeysAndRenames() {
+		assertNull(GelfContextKeys.parse(null));
+		assertNull(GelfContextKeys.parse(" , "));
+
+		GelfContextKeys k = GelfContextKeys.parse("requestId=request_id, user; =skipped session=");
+		assertEquals(2, k.size());
+		assertEquals("requestId", k.getKey(0));
+		assertEquals("request_id", k.getName(0));
+		assertEquals("user", k.getKey(1));
+		assertEquals("user", k.getName(1));
+	}
+
+	@Test
+	public void addsOnlyWhitelistedKeys() {
+		Map<String, String> context = new HashMap<String, String>();
+		context.put("requestId", "r1");
+		context.put("password", "secret");
+
+		GelfMessage m = new GelfMessage();
+		GelfContextKeys.parse("requestId=request_id,user").addFields(context, m);
+		assertEquals(1, m.getFieldCount());
+		assertEquals("r1", m.getAdditonalFields().get("request_id"));
+	}
+
+	@Test
+	public void mdcUpdaterLooksUpWhitelistedKeys() {
+		MDC.put("requestId", "r1");
+		MDC.put("password", "secret");
+
+		GelfMessage m = new GelfMessage();
+		new MDCGelfUpdater("requestId=request_id,user").update(m);
+		assertEquals(1, m.getFieldCount());
+		assertEquals("r1", m.getAdditonalFields().get("request_id"));
+
+		// Without keys, whole MDC is copied
+		m = new GelfMessage();
+		new MDCGelfUpdater().update(m);
+		assertEquals(2, m.getFieldCount());
+		assertEquals("secret", m.getAdditonalFields().get("password"));
+
+		MDC.clear();
+		m = new GelfMessage();
+		new MDCGelfUpdater().update(m);
+		new MDCGelfUpdater("requestId").update(m);
+		assertEquals(0, m.getFieldCount());
+	}
+}
@@ -0,0 +1,209 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+public class GelfDeduplicatorTest {
+
+	/**
+	 * Keeps messages instead of sending them.
+	 */
+	private static class Capture extends GelfSender {
+		final List<GelfMessage> messages = new CopyOnWriteArrayList<GelfMessage>();
+
+		Capture() {
+			super("localhost");
+		}
+
+		@Override
+		public void sendMessage(GelfMessage m) {
+			messages.add(m);
+		}
+
+		GelfMessage await(int count) throws InterruptedException {
+			long until = System.currentTimeMillis() + 5000;
+			while (messages.size() < count && System.currentTimeMillis() < until) {
+				Thread.sleep(5);
+			}
+			assertEquals(count, messages.size());
+			return messages.get(count - 1);
+		}
+	}
+
+	private static GelfMessage message(String text) {
+		GelfMessage m = new GelfMessage(text, null, 1450000000042L, GelfMessage.SYSLOG_WARN, null, 0);
+		m.setHost("host1");
+		m.setFacility("test");
+		m.addField("logger", "com.example.A");
+		return m;
+	}
+
+	@Test
+	public void fingerprintsLoggerLevelTemplateAndTopFrame() {
+		long fp = GelfDeduplicator.fingerprint("a", 4, "Failed {}", null);
+		assertEquals(fp, GelfDeduplicator.fingerprint("a", 4, "Failed {}", null));
+		assertFalse(fp == GelfDeduplicator.fingerprint("b", 4, "Failed {}", null));
+		assertFalse(fp == GelfDeduplicator.fingerprint("a", 3, "Failed {}", null));
+		assertFalse(fp == GelfDeduplicator.fingerprint("a", 4, "Failed", null));
+
+		Exception e1 = new IllegalStateException("one");
+		Exception e2 = new IllegalStateException("two");
+		Exception e3 = new IllegalStateException("three");
+		e2.setStackTrace(e1.getStackTrace());
+		long f1 = GelfDeduplicator.fingerprint("a", 4, "Failed {}", e1);
+		assertFalse(fp == f1);
+		// Exception message doesn`t matter, top frame does
+		assertEquals(f1, GelfDeduplicator.fingerprint("a", 4, "Failed {}", e2));
+		assertFalse(f1 == GelfDeduplicator.fingerprint("a", 4, "Failed {}", e3));
+	}
+
+	@Test
+	public void collapsesRepeatsIntoOneMessage() throws InterruptedException {
+		Capture c = new Capture();
+		GelfDeduplicator d = new GelfDeduplicator(60000, 100);
+		d.start(c);
+		long fp = GelfDeduplicator.fingerprint("a", 4, "Failed {}", null);
+		long other = GelfDeduplicator.fingerprint("b", 4, "Failed {}", null);
+
+		long before = System.currentTimeMillis();
+		assertTrue(d.admit(fp));
+		d.sent(fp, message("Failed 1"));
+		for (int i = 0; i < 9; i++) {
+			assertFalse(d.admit(fp));
+		}
+		assertTrue(d.admit(other));
+		assertTrue(c.messages.isEmpty());
+
+		// Stop sends summaries of open windows
+		d.stop();
+		GelfMessage r = c.await(1);
+		assertEquals("Failed 1", r.getShortMessage());
+		assertEquals(GelfMessage.SYSLOG_WARN, r.getLevel());
+		assertEquals("host1", r.getHost());
+		assertEquals("com.example.A", r.getAdditonalFields().get("logger"));
+		assertEquals(9L, r.getAdditonalFields().get("repeat_count"));
+		long first = (Long) r.getAdditonalFields().get("first_timestamp");
+		long last = (Long) r.getAdditonalFields().get("last_timestamp");
+		assertTrue(first >= before && last >= first && last <= System.currentTimeMillis());
+		assertEquals(last, r.getTimestamp());
+	}
+
+	@Test
+	public void keepsPooledFirstMessageOutOfPool() throws InterruptedException {
+		Capture c = new Capture();
+		GelfDeduplicator d = new GelfDeduplicator(60000, 100);
+		d.start(c);
+		GelfMessagePool pool = new GelfMessagePool(16);
+		long fp = GelfDeduplicator.fingerprint("a", 4, "Failed {}", null);
+
+		assertTrue(d.admit(fp));
+		GelfMessage m = pool.obtain();
+		m.setShortMessage("Failed 1");
+		m.setHost("host1");
+		m.setFacility("test");
+		d.sent(fp, m);
+		// Sender releases message, but it is not reused for another event
+		m.release();
+		assertNotSame(m, pool.obtain());
+		assertFalse(d.admit(fp));
+
+		d.stop();
+		GelfMessage r = c.await(1);
+		assertNotSame(m, r);
+		assertEquals("Failed 1", r.getShortMessage());
+		assertEquals("host1", r.getHost());
+		assertEquals(1L, r.getAdditonalFields().get("repeat_count"));
+		// Sent message is not changed
+		assertEquals("Failed 1", m.getShortMessage());
+		assertNull(m.getAdditonalFields().get("repeat_count"));
+	}
+
+	@Test
+	public void nextOccurrenceAfterWindowOpensNewWindow() throws InterruptedException {
+		Capture c = new Capture();
+		GelfDeduplicator d = new GelfDeduplicator(50, 100);
+		d.start(c);
+		try {
+			long fp = GelfDeduplicator.fingerprint("a", 4, "Failed {}", null);
+			assertTrue(d.admit(fp));
+			d.sent(fp, message("Failed 1"));
+			assertFalse(d.admit(fp));
+
+			Thread.sleep(100);
+			// Closed by sweeper or inline by this call
+			assertTrue(d.admit(fp));
+			assertEquals(1L, c.await(1).getAdditonalFields().get("repeat_count"));
+			d.sent(fp, message("Failed 2"));
+			assertFalse(d.admit(fp));
+		} finally {
+			d.stop();
+		}
+		assertEquals("Failed 2", c.await(2).getShortMessage());
+	}
+
+	@Test
+	public void sweeperClosesExpiredWindows() throws InterruptedException {
+		Capture c = new Capture();
+		GelfDeduplicator d = new GelfDeduplicator(50, 100);
+		d.start(c);
+		try {
+			long fp = GelfDeduplicator.fingerprint("a", 4, "Failed {}", null);
+			long single = GelfDeduplicator.fingerprint("b", 4, "Failed {}", null);
+			assertTrue(d.admit(fp));
+			d.sent(fp, message("Failed 1"));
+			assertTrue(d.admit(single));
+			d.sent(single, message("Single"));
+			for (int i = 0; i < 3; i++) {
+				assertFalse(d.admit(fp));
+			}
+
+			// No summary for message without repeats
+			assertEquals(3L, c.await(1).getAdditonalFields().get("repeat_count"));
+			Thread.sleep(100);
+			assertEquals(1, c.messages.size());
+		} finally {
+			d.stop();
+		}
+	}
+
+	@Test
+	public void closingWindowKeepsCollidingWindowsOpen() throws InterruptedException {
+		// Same stripe, and neighbouring slots of one table
+		GelfDeduplicator d = new GelfDeduplicator(60000, 16 * 16);
+		for (int i = 0; i < 12; i += 2) {
+			assertTrue(d.admit(16 + 128 * i));
+		}
+		long expired = System.currentTimeMillis() + 60000;
+		Thread.sleep(20);
+		for (int i = 1; i < 12; i += 2) {
+			assertTrue(d.admit(16 + 128 * i));
+		}
+
+		// Closes first windows only, later ones are shifted into freed slots
+		d.sweep(expired);
+		for (int i = 1; i < 12; i += 2) {
+			assertFalse("fingerprint " + (16 + 128 * i), d.admit(16 + 128 * i));
+		}
+		for (int i = 0; i < 12; i += 2) {
+			assertTrue("fingerprint " + (16 + 128 * i), d.admit(16 + 128 * i));
+		}
+	}
+
+	@Test
+	public void doesNotTrackAboveMaxEntries() {
+		GelfDeduplicator d = new GelfDeduplicator(60000, 1);
+		assertTrue(d.admit(1));
+		assertFalse(d.admit(1));
+		// Table is full, so not deduplicated
+		assertTrue(d.admit(17));
+		assertTrue(d.admit(17));
+	}
+}
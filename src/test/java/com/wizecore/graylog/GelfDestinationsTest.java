@@ -0,0 +1,193 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.wizecore.graylog.GelfDestinations.Balance;
+import com.wizecore.graylog.GelfDestinations.Endpoint;
+
+public class GelfDestinationsTest {
+
+	private static InetAddress address(int last) throws UnknownHostException {
+		return InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) last });
+	}
+
+	private static GelfDestinations destinations(Balance balance, int count) throws UnknownHostException {
+		GelfDestinations d = new GelfDestinations();
+		d.setBalance(balance);
+		List<InetAddress> l = new ArrayList<InetAddress>();
+		for (int i = 1; i <= count; i++) {
+			l.add(address(i));
+		}
+		assertTrue(d.update(l, 12201));
+		return d;
+	}
+
+	@Test
+	public void parsesBalance() {
+		assertSame(Balance.ROUND_ROBIN, Balance.parse(null));
+		assertSame(Balance.ROUND_ROBIN, Balance.parse("round-robin"));
+		assertSame(Balance.LEAST_OUTSTANDING, Balance.parse("least_outstanding"));
+		assertSame(Balance.FAILOVER, Balance.parse(" Failover "));
+	}
+
+	@Test
+	public void selectsNothingWithoutEndpoints() {
+		GelfDestinations d = new GelfDestinations();
+		assertTrue(d.isEmpty());
+		assertNull(d.select(System.nanoTime(), false));
+	}
+
+	@Test
+	public void roundRobinUsesEveryEndpointInTurn() throws UnknownHostException {
+		GelfDestinations d = destinations(Balance.ROUND_ROBIN, 3);
+		Endpoint[] l = d.getEndpoints();
+		long now = System.nanoTime();
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 3; i++) {
+				assertSame(l[i], d.select(now, false));
+			}
+		}
+
+		// Failed endpoint is skipped
+		l[1].failed(now);
+		for (int i = 0; i < 6; i++) {
+			assertFalse(d.select(now, false) == l[1]);
+		}
+	}
+
+	@Test
+	public void leastOutstandingPicksEndpointWithFewestBytes() throws UnknownHostException {
+		GelfDestinations d = destinations(Balance.LEAST_OUTSTANDING, 3);
+		Endpoint[] l = d.getEndpoints();
+		long now = System.nanoTime();
+		l[0].setOutstanding(1000);
+		l[1].setOutstanding(10);
+		l[2].setOutstanding(500);
+		for (int i = 0; i < 5; i++) {
+			assertSame(l[1], d.select(now, false));
+		}
+
+		l[1].failed(now);
+		assertSame(l[2], d.select(now, false));
+	}
+
+	@Test
+	public void failoverPrefersFirstAvailableEndpoint() throws UnknownHostException {
+		GelfDestinations d = destinations(Balance.FAILOVER, 3);
+		Endpoint[] l = d.getEndpoints();
+		long now = System.nanoTime();
+		assertSame(l[0], d.select(now, false));
+		assertSame(l[0], d.select(now, false));
+
+		l[0].failed(now);
+		assertSame(l[1], d.select(now, false));
+		l[1].failed(now);
+		assertSame(l[2], d.select(now, false));
+
+		l[0].succeeded();
+		assertSame(l[0], d.select(now, false));
+	}
+
+	@Test
+	public void backoffDoublesUpToMaximum() throws UnknownHostException {
+		Endpoint e = destinations(Balance.ROUND_ROBIN, 1).getEndpoints()[0];
+		long now = 1000;
+		e.failed(now);
+		assertFalse(e.isHealthy());
+		assertEquals(now + GelfDestinations.MIN_BACKOFF, e.getFailedUntil());
+		e.failed(now);
+		assertEquals(now + 2 * GelfDestinations.MIN_BACKOFF, e.getFailedUntil());
+		e.failed(now);
+		assertEquals(now + 4 * GelfDestinations.MIN_BACKOFF, e.getFailedUntil());
+		for (int i = 0; i < 100; i++) {
+			e.failed(now);
+		}
+		assertEquals(now + GelfDestinations.MAX_BACKOFF, e.getFailedUntil());
+
+		// Success resets backoff
+		e.succeeded();
+		assertTrue(e.isHealthy());
+		e.failed(now);
+		assertEquals(now + GelfDestinations.MIN_BACKOFF, e.getFailedUntil());
+	}
+
+	@Test
+	public void failedEndpointReturnsOptimisticallyAfterBackoff() throws UnknownHostException {
+		GelfDestinations d = destinations(Balance.FAILOVER, 2);
+		Endpoint[] l = d.getEndpoints();
+		long now = System.nanoTime();
+		l[0].failed(now);
+		long expired = l[0].getFailedUntil();
+		assertSame(l[1], d.select(expired - 1, true));
+		// UDP takes it back when backoff expires, TCP waits for connect probe
+		assertSame(l[0], d.select(expired, true));
+		assertSame(l[1], d.select(expired, false));
+	}
+
+	@Test
+	public void allFailedSelectsEndpointRetriedFirst() throws UnknownHostException {
+		GelfDestinations d = destinations(Balance.ROUND_ROBIN, 3);
+		Endpoint[] l = d.getEndpoints();
+		long now = System.nanoTime();
+		l[0].failed(now);
+		l[0].failed(now);
+		l[1].failed(now);
+		l[2].failed(now);
+		l[2].failed(now);
+		assertSame(l[1], d.select(now, false));
+	}
+
+	@Test
+	public void updateKeepsStateOfRemainingEndpoints() throws UnknownHostException {
+		GelfDestinations d = destinations(Balance.ROUND_ROBIN, 2);
+		Endpoint kept = d.getEndpoints()[1];
+		kept.failed(System.nanoTime());
+
+		assertTrue(d.update(Arrays.asList(address(2), address(3)), 12201));
+		assertEquals(2, d.getEndpoints().length);
+		assertSame(kept, d.getEndpoints()[0]);
+		assertFalse(kept.isHealthy());
+		assertEquals(address(3), d.getEndpoints()[1].getAddress().getAddress());
+	}
+
+	@Test
+	public void sameAddressesInOtherOrderAreNotChange() throws UnknownHostException {
+		GelfDestinations d = destinations(Balance.ROUND_ROBIN, 3);
+		Endpoint[] before = d.getEndpoints();
+		int version = d.getVersion();
+
+		assertFalse(d.update(Arrays.asList(address(3), address(1), address(2)), 12201));
+		assertEquals(version, d.getVersion());
+		assertTrue(d.contains(before[0]));
+		assertTrue(d.contains(before[1]));
+		assertTrue(d.contains(before[2]));
+
+		assertTrue(d.update(Arrays.asList(address(3), address(1)), 12201));
+		assertEquals(version + 1, d.getVersion());
+		assertFalse(d.contains(before[1]));
+	}
+
+	@Test
+	public void duplicateAddressesAreNotChange() throws UnknownHostException {
+		GelfDestinations d = new GelfDestinations();
+		assertTrue(d.update(Arrays.asList(address(1), address(2), address(1)), 12201));
+		assertEquals(2, d.getEndpoints().length);
+		int version = d.getVersion();
+
+		assertFalse(d.update(Arrays.asList(address(1), address(2), address(1)), 12201));
+		assertFalse(d.update(Arrays.asList(address(2), address(1)), 12201));
+		assertEquals(version, d.getVersion());
+	}
+}
@@ -0,0 +1,120 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class GelfEncoderTest {
+
+	private static String escaped(String s) {
+		GelfEncoder e = new GelfEncoder(4);
+		e.writeEscaped(s, 0, s.length());
+		return e.toString();
+	}
+
+	private static String encoded(GelfMessage m) {
+		GelfEncoder e = new GelfEncoder();
+		e.encode(m);
+		return e.toString();
+	}
+
+	private static GelfMessage message(String shortMessage) {
+		GelfMessage m = new GelfMessage(shortMessage, null, 1450000000042L, GelfMessage.SYSLOG_INFO, null, 0);
+		m.setHost("host1");
+		m.setFacility("test");
+		return m;
+	}
+
+	@Test
+	public void escapesSpecialAndControlChars() {
+		assertEquals("plain text", escaped("plain text"));
+		assertEquals("a\\\"b\\\\c", escaped("a\"b\\c"));
+		assertEquals("\\n\\r\\t\\b\\f", escaped("\n\r\t\b\f"));
+		assertEquals("\\u0000\\u0001\\u001f", escaped("\u0000\u0001\u001f"));
+		assertEquals("/\u007f", escaped("/\u007f"));
+	}
+
+	@Test
+	public void encodesUtf8() {
+		assertEquals("café €", escaped("café €"));
+		assertEquals(3, new String("€").getBytes(GelfEncoder.UTF8).length);
+		// Surrogate pair is single 4 byte code point, unpaired surrogate is replaced
+		assertEquals("😀", escaped("😀"));
+		assertEquals("a?b", escaped("a\ud83db"));
+	}
+
+	@Test
+	public void escapeReturnsSameStringIfNothingToEscape() {
+		String s = "nothing to escape";
+		assertEquals(s, GelfEncoder.escape(s, 0, s.length()));
+		assertEquals("x\\ny", GelfEncoder.escape("x\ny", 0, 3));
+	}
+
+	@Test
+	public void writesStandardFields() {
+		GelfMessage m = message("  hello \"world\"  ");
+		m.setFile("Test.java");
+		m.setLine(42);
+		String json = encoded(m);
+		assertTrue(json, json.startsWith("{ \"version\": \"1.1\", \"host\": \"host1\", \"facility\": \"test\", "));
+		assertTrue(json, json.contains("\"short_message\": \"hello \\\"world\\\"\""));
+		assertTrue(json, json.contains("\"timestamp\": \"1450000000.042\""));
+		assertTrue(json, json.contains("\"level\": 6"));
+		assertTrue(json, json.contains("\"file\": \"Test.java\""));
+		assertTrue(json, json.contains("\"line\": 42"));
+		assertTrue(json, json.endsWith(" }"));
+	}
+
+	@Test
+	public void writesTypedAdditionalFields() {
+		GelfMessage m = message("fields");
+		m.addField("count", 42L);
+		m.addField("ratio", 0.5);
+		m.addField("ok", true);
+		m.addField("boxed", Integer.valueOf(7));
+		m.addField("short", Short.valueOf((short) 3));
+		m.addField("byte", Byte.valueOf((byte) 2));
+		m.addField("float", Float.valueOf(1.5f));
+		m.addField("flag", Boolean.FALSE);
+		m.addField("name", "a\"b");
+		m.addField("nan", Double.NaN);
+		m.addField("missing", (Object) null);
+		m.addField(GelfMessage.ID_NAME, "ignored");
+		String json = encoded(m);
+		assertTrue(json, json.contains("\"_count\": 42"));
+		assertTrue(json, json.contains("\"_ratio\": 0.5"));
+		assertTrue(json, json.contains("\"_ok\": true"));
+		assertTrue(json, json.contains("\"_boxed\": 7"));
+		assertTrue(json, json.contains("\"_short\": 3"));
+		assertTrue(json, json.contains("\"_byte\": 2"));
+		assertTrue(json, json.contains("\"_float\": 1.5"));
+		assertTrue(json, json.contains("\"_flag\": false"));
+		assertTrue(json, json.contains("\"_name\": \"a\\\"b\""));
+		assertTrue(json, json.contains("\"_nan\": \"NaN\""));
+		assertTrue(json, json.contains("\"_missing\": null"));
+		assertFalse(json, json.contains("\"_id\""));
+	}
+
+	@Test
+	public void writesPreEncodedStaticFields() {
+		Map<String, String> prepared = new LinkedHashMap<String, String>();
+		prepared.put("env", "prod");
+		GelfStaticFields sf = new GelfStaticFields(GelfMessage.GELF_VERSION, "host1", "test", prepared);
+
+		GelfMessage m = new GelfMessage("static", null, 1450000000042L, GelfMessage.SYSLOG_INFO, null, 0);
+		m.setStaticFields(sf);
+		String json = encoded(m);
+		assertTrue(json, json.startsWith("{ \"version\": \"1.1\", \"host\": \"host1\", \"facility\": \"test\", \"_env\": \"prod\", \"short_message\": \"static\""));
+
+		// Changed host is not taken from pre-encoded fields
+		m.setHost("host2");
+		json = encoded(m);
+		assertTrue(json, json.contains("\"host\": \"host2\""));
+		assertTrue(json, json.contains("\"_env\": \"prod\""));
+	}
+}
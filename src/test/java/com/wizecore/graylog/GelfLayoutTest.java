@@ -0,0 +1,144 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.ContextDataFactory;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.ByteBufferDestination;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.logging.log4j.util.StringMap;
+import org.junit.Test;
+
+public class GelfLayoutTest {
+
+	/**
+	 * Collects drained bytes, small buffer makes layout drain in the middle of message.
+	 */
+	private static class Destination implements ByteBufferDestination {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final ByteBuffer buf = ByteBuffer.allocate(16);
+
+		@Override
+		public ByteBuffer getByteBuffer() {
+			return buf;
+		}
+
+		@Override
+		public ByteBuffer drain(ByteBuffer b) {
+			b.flip();
+			while (b.hasRemaining()) {
+				out.write(b.get());
+			}
+			b.clear();
+			return b;
+		}
+
+		byte[] bytes() {
+			drain(buf);
+			return out.toByteArray();
+		}
+	}
+
+	private static GelfLayout layout(boolean nullDelimiter, String compression) {
+		return layout(nullDelimiter, compression, null);
+	}
+
+	private static GelfLayout layout(boolean nullDelimiter, String compression, String contextKeys) {
+		return GelfLayout.createLayout(null, "env=prod", "test", "host1", true, true, false, contextKeys, nullDelimiter,
+				compression, null, null, null, null, null, null);
+	}
+
+	private static LogEvent event(Throwable t) {
+		StringMap context = ContextDataFactory.createContextData();
+		context.putValue("requestId", "r1");
+		context.putValue("password", "secret");
+		return Log4jLogEvent.newBuilder()
+			.setContextData(context)
+			.setLoggerName("com.example.Test")
+			.setLevel(Level.ERROR)
+			.setMessage(new ParameterizedMessage("Failed {} of {}", 1, 3))
+			.setThreadName("main")
+			.setTimeMillis(1450000000042L)
+			.setThrown(t)
+			.build();
+	}
+
+	private static String gunzip(byte[] b) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(b));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+		return new String(out.toByteArray(), GelfEncoder.UTF8);
+	}
+
+	@Test
+	public void encodesEventIntoDestination() {
+		Destination d = new Destination();
+		Exception e = new IllegalStateException("broken");
+		layout(true, null).encode(event(e), d);
+		byte[] b = d.bytes();
+		assertEquals(0, b[b.length - 1]);
+
+		String json = new String(b, 0, b.length - 1, GelfEncoder.UTF8);
+		assertTrue(json, json.startsWith("{ \"version\": \"1.1\", \"host\": \"host1\", \"facility\": \"test\", \"_env\": \"prod\", "));
+		assertTrue(json, json.contains("\"short_message\": \"Failed 1 of 3\""));
+		assertTrue(json, json.contains("\"full_message\": \"Failed 1 of 3\\njava.lang.IllegalStateException: broken\\n\\tat "));
+		assertTrue(json, json.contains("\"timestamp\": \"1450000000.042\""));
+		assertTrue(json, json.contains("\"level\": 3"));
+		assertTrue(json, json.contains("\"file\": \"GelfLayoutTest.java\""));
+		assertTrue(json, json.contains("\"_logger\": \"com.example.Test\""));
+		assertTrue(json, json.contains("\"_exception\": \"java.lang.IllegalStateException\""));
+		assertTrue(json, json.endsWith(" }"));
+		// Context data is not added by default
+		assertFalse(json, json.contains("\"_requestId\""));
+	}
+
+	@Test
+	public void addsWhitelistedContextKeys() {
+		String json = new String(layout(false, null, "requestId=request_id").toByteArray(event(null)), GelfEncoder.UTF8);
+		assertTrue(json, json.contains("\"_request_id\": \"r1\""));
+		assertFalse(json, json.contains("password"));
+	}
+
+	@Test
+	public void writesSameBytesAsToByteArray() {
+		GelfLayout l = layout(true, null);
+		LogEvent event = event(null);
+		for (int i = 0; i < 3; i++) {
+			Destination d = new Destination();
+			l.encode(event, d);
+			assertArrayEquals(l.toByteArray(event), d.bytes());
+		}
+	}
+
+	@Test
+	public void compressesMessageBeforeDelimiter() throws IOException {
+		Destination d = new Destination();
+		layout(true, "gzip").encode(event(null), d);
+		byte[] b = d.bytes();
+		assertEquals(0, b[b.length - 1]);
+		byte[] gz = new byte[b.length - 1];
+		System.arraycopy(b, 0, gz, 0, gz.length);
+		String json = gunzip(gz);
+		assertTrue(json, json.contains("\"short_message\": \"Failed 1 of 3\""));
+
+		d = new Destination();
+		layout(false, "gzip").encode(event(null), d);
+		assertEquals(json, gunzip(d.bytes()));
+	}
+}
@@ -0,0 +1,130 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class GelfMessagePoolTest {
+
+	private static GelfMessage filled(GelfMessage m) {
+		m.setShortMessage("short");
+		m.setFullMessage("full");
+		m.setHost("host1");
+		m.setFacility("test");
+		m.setTimestamp(1450000000042L);
+		m.setLevel(GelfMessage.SYSLOG_ERROR);
+		m.setFile("Test.java");
+		m.setLine(42);
+		m.addField("a", "1");
+		m.addField("b", 2);
+		return m;
+	}
+
+	@Test
+	public void reusesReleasedMessage() {
+		GelfMessagePool pool = new GelfMessagePool(16);
+		GelfMessage m = filled(pool.obtain());
+		m.release();
+		// Second release doesn`t put it into pool twice
+		m.release();
+
+		GelfMessage r = pool.obtain();
+		assertSame(m, r);
+		assertNotSame(m, pool.obtain());
+		assertNull(r.getShortMessage());
+		assertNull(r.getFullMessage());
+		assertNull(r.getHost());
+		assertNull(r.getFacility());
+		assertNull(r.getFile());
+		assertEquals(0, r.getLine());
+		assertEquals(0, r.getTimestamp());
+		assertEquals(GelfMessage.GELF_VERSION, r.getVersion());
+		assertEquals(0, r.getFieldCount());
+		assertTrue(r.getAdditonalFields().isEmpty());
+	}
+
+	@Test
+	public void doesNotPoolMessagesCreatedWithConstructor() {
+		GelfMessagePool pool = new GelfMessagePool(16);
+		GelfMessage m = filled(new GelfMessage());
+		m.release();
+		assertEquals("short", m.getShortMessage());
+		assertNotSame(m, pool.obtain());
+	}
+
+	@Test
+	public void copyIsNotPooled() {
+		GelfMessagePool pool = new GelfMessagePool(16);
+		GelfMessage m = filled(pool.obtain());
+		GelfMessage c = m.copy();
+		m.release();
+
+		assertEquals("short", c.getShortMessage());
+		assertEquals("host1", c.getHost());
+		assertEquals(42, c.getLine());
+		assertEquals("1", c.getAdditonalFields().get("a"));
+		c.release();
+		assertEquals("short", c.getShortMessage());
+		assertSame(m, pool.obtain());
+		assertNotSame(c, pool.obtain());
+	}
+
+	@Test
+	public void fieldsViewIsLive() {
+		GelfMessage m = new GelfMessage();
+		Map<String, Object> fields = m.getAdditonalFields();
+		assertTrue(fields.isEmpty());
+
+		m.addField("a", "1");
+		m.addField("b", 2);
+		assertEquals(2, fields.size());
+		assertEquals("1", fields.get("a"));
+		assertTrue(fields.containsKey("b"));
+
+		// Writes go to the message
+		assertEquals("1", fields.put("a", "one"));
+		fields.put("c", 3L);
+		assertEquals(3, m.getFieldCount());
+		assertEquals("one", m.getFieldValue(0));
+
+		assertEquals(2L, fields.remove("b"));
+		assertNull(fields.remove("missing"));
+		assertEquals(2, m.getFieldCount());
+		assertFalse(fields.containsKey("b"));
+
+		for (Iterator<Map.Entry<String, Object>> it = fields.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Object> e = it.next();
+			if (e.getKey().equals("a")) {
+				e.setValue("uno");
+			} else {
+				it.remove();
+			}
+		}
+		assertEquals(1, m.getFieldCount());
+		assertEquals("a", m.getFieldKey(0));
+		assertEquals("uno", m.getFieldValue(0));
+
+		fields.clear();
+		assertEquals(0, m.getFieldCount());
+		m.addField("d", "4");
+		assertEquals("4", fields.get("d"));
+	}
+
+	@Test
+	public void setAdditionalFieldsReplacesFields() {
+		GelfMessage m = new GelfMessage();
+		m.addField("a", "1");
+		Map<String, Object> other = new GelfMessage().addField("b", "2").getAdditonalFields();
+		m.setAdditonalFields(other);
+		assertEquals(1, m.getFieldCount());
+		assertEquals("2", m.getAdditonalFields().get("b"));
+	}
+}
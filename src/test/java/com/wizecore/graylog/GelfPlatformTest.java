@@ -0,0 +1,60 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+/**
+ * Checks that Java 21 classes of multi-release jar are used when running on Java 21.
+ * <p>
+ * Virtual threads are checked only by test-java21 execution, which runs with -Djdk21.home.
+ */
+public class GelfPlatformTest {
+
+	private static boolean isJava21() {
+		String v = System.getProperty("java.specification.version");
+		return !v.startsWith("1.") && Integer.parseInt(v) >= 21;
+	}
+
+	private static boolean isVirtual(Thread t) throws Exception {
+		Method m = Thread.class.getMethod("isVirtual");
+		return (Boolean) m.invoke(t);
+	}
+
+	@Test
+	public void createsDaemonPlatformThread() throws Exception {
+		Thread t = GelfPlatform.newIoThread(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}, "io", false);
+		assertEquals("io", t.getName());
+		assertTrue(t.isDaemon());
+		if (isJava21()) {
+			assertFalse(isVirtual(t));
+		}
+	}
+
+	@Test
+	public void createsVirtualThreadOnJava21() throws Exception {
+		final long[] id = new long[1];
+		Thread t = GelfPlatform.newIoThread(new Runnable() {
+			@Override
+			public void run() {
+				id[0] = GelfPlatform.currentThreadId();
+			}
+		}, "io", true);
+		assertTrue(t.isDaemon());
+		if (isJava21()) {
+			assertTrue(isVirtual(t));
+		}
+
+		t.start();
+		t.join(5000);
+		assertEquals(t.getId(), id[0]);
+	}
+}
@@ -0,0 +1,116 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class GelfRateLimiterTest {
+
+	private static int admitted(GelfRateLimiter l, String logger, int level, int count) {
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if (l.admit(logger, level)) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	@Test
+	public void disabledByDefaultValues() {
+		GelfRateLimiter l = new GelfRateLimiter(0, 0, 1, 1);
+		assertFalse(l.isEnabled());
+		assertEquals(1000, admitted(l, "a", GelfMessage.SYSLOG_DEBUG, 1000));
+		assertNull(l.summary(60000));
+	}
+
+	@Test
+	public void admitsBurstThenRate() throws InterruptedException {
+		// One message per second, 5 at once
+		GelfRateLimiter l = new GelfRateLimiter(1, 5, 1, 1);
+		assertTrue(l.isEnabled());
+		assertEquals(5, admitted(l, "a", GelfMessage.SYSLOG_INFO, 100));
+
+		// Every logger and level has own bucket
+		assertEquals(5, admitted(l, "a", GelfMessage.SYSLOG_WARN, 100));
+		assertEquals(5, admitted(l, "b", GelfMessage.SYSLOG_INFO, 100));
+
+		// Fast rate refills while waiting
+		l = new GelfRateLimiter(100, 1, 1, 1);
+		assertEquals(1, admitted(l, "a", GelfMessage.SYSLOG_INFO, 100));
+		Thread.sleep(50);
+		int n = admitted(l, "a", GelfMessage.SYSLOG_INFO, 100);
+		assertTrue("Admitted " + n, n >= 1 && n <= 5);
+	}
+
+	@Test
+	public void sharesBucketAboveMaxLoggers() {
+		GelfRateLimiter l = new GelfRateLimiter(1, 5, 1, 1);
+		for (int i = 0; i < GelfRateLimiter.MAX_LOGGERS; i++) {
+			assertTrue(l.admit("logger" + i, GelfMessage.SYSLOG_INFO));
+		}
+		// Loggers above the limit use the same bucket
+		assertEquals(3, admitted(l, "x", GelfMessage.SYSLOG_INFO, 3));
+		assertEquals(2, admitted(l, "y", GelfMessage.SYSLOG_INFO, 100));
+		assertEquals(0, admitted(l, "z", GelfMessage.SYSLOG_INFO, 100));
+		// Loggers with own buckets are not affected
+		assertEquals(4, admitted(l, "logger0", GelfMessage.SYSLOG_INFO, 100));
+	}
+
+	@Test
+	public void defaultBurstIsOneSecond() {
+		GelfRateLimiter l = new GelfRateLimiter(20, 0, 1, 1);
+		int n = admitted(l, "a", GelfMessage.SYSLOG_INFO, 1000);
+		assertTrue("Admitted " + n, n >= 20 && n <= 25);
+	}
+
+	@Test
+	public void alwaysAdmitsErrors() {
+		GelfRateLimiter l = new GelfRateLimiter(1, 1, 0, 0);
+		for (int level = 0; level <= GelfMessage.SYSLOG_ERROR; level++) {
+			assertEquals(100, admitted(l, "a", level, 100));
+		}
+		assertNull(l.summary(60000));
+	}
+
+	@Test
+	public void samplesDebugAndInfo() {
+		GelfRateLimiter l = new GelfRateLimiter(0, 0, 0, 0.5);
+		assertTrue(l.isEnabled());
+		assertEquals(0, admitted(l, "a", GelfMessage.SYSLOG_DEBUG, 1000));
+		int n = admitted(l, "a", GelfMessage.SYSLOG_INFO, 10000);
+		assertTrue("Admitted " + n, n > 4000 && n < 6000);
+		// WARNING is not sampled
+		assertEquals(1000, admitted(l, "a", GelfMessage.SYSLOG_WARN, 1000));
+
+		GelfMessage m = l.summary(60000);
+		assertEquals(0L, m.getAdditonalFields().get("rate_limited"));
+		assertEquals(Long.valueOf(1000 + 10000 - n), m.getAdditonalFields().get("sampled_out"));
+	}
+
+	@Test
+	public void summaryReportsAndResetsRejectedCounts() {
+		GelfRateLimiter l = new GelfRateLimiter(1, 2, 0, 1);
+		admitted(l, "com.example.A", GelfMessage.SYSLOG_INFO, 10);
+		admitted(l, "com.example.B", GelfMessage.SYSLOG_WARN, 5);
+		admitted(l, "com.example.B", GelfMessage.SYSLOG_DEBUG, 4);
+
+		GelfMessage m = l.summary(60000);
+		assertEquals("Rejected 15 log messages in last 60 s", m.getShortMessage());
+		assertEquals(GelfMessage.SYSLOG_WARN, m.getLevel());
+		assertEquals(11L, m.getAdditonalFields().get("rate_limited"));
+		assertEquals(4L, m.getAdditonalFields().get("sampled_out"));
+		String full = m.getFullMessage();
+		assertTrue(full, full.contains("\ncom.example.A INFO: 8 rate limited, 0 sampled out"));
+		assertTrue(full, full.contains("\ncom.example.B WARNING: 3 rate limited, 0 sampled out"));
+		assertTrue(full, full.contains("\ncom.example.B DEBUG: 0 rate limited, 4 sampled out"));
+
+		// Counts are reset
+		assertNull(l.summary(60000));
+		admitted(l, "com.example.A", GelfMessage.SYSLOG_INFO, 1);
+		assertEquals(1L, l.summary(60000).getAdditonalFields().get("rate_limited"));
+	}
+}
@@ -0,0 +1,98 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+public class GelfRingBufferTest {
+
+	@Test
+	public void roundsCapacityToPowerOfTwo() {
+		assertEquals(1, new GelfRingBuffer<Object>(1).capacity());
+		assertEquals(8, new GelfRingBuffer<Object>(5).capacity());
+		assertEquals(4096, new GelfRingBuffer<Object>(4096).capacity());
+	}
+
+	@Test
+	public void keepsOrderAndRejectsWhenFull() {
+		GelfRingBuffer<Integer> q = new GelfRingBuffer<Integer>(4);
+		assertTrue(q.isEmpty());
+		assertNull(q.poll());
+
+		// Wraps around several times
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 4; i++) {
+				assertTrue(q.offer(round * 10 + i));
+			}
+			assertFalse(q.offer(-1));
+			assertEquals(4, q.size());
+
+			for (int i = 0; i < 4; i++) {
+				assertEquals(Integer.valueOf(round * 10 + i), q.poll());
+			}
+			assertNull(q.poll());
+			assertTrue(q.isEmpty());
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void deliversEveryElementOnceToConcurrentConsumers() throws InterruptedException {
+		final int producers = 4;
+		final int consumers = 3;
+		final int perProducer = 100000;
+		final int total = producers * perProducer;
+		final GelfRingBuffer<Integer> q = new GelfRingBuffer<Integer>(64);
+		final AtomicIntegerArray seen = new AtomicIntegerArray(total);
+		final AtomicInteger consumed = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(producers + consumers);
+
+		for (int p = 0; p < producers; p++) {
+			final int base = p * perProducer;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						Integer v = base + i;
+						while (!q.offer(v)) {
+							Thread.yield();
+						}
+					}
+					done.countDown();
+				}
+			}, "producer-" + p).start();
+		}
+
+		for (int c = 0; c < consumers; c++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (consumed.get() < total) {
+						Integer v = q.poll();
+						if (v == null) {
+							Thread.yield();
+							continue;
+						}
+						seen.incrementAndGet(v);
+						consumed.incrementAndGet();
+					}
+					done.countDown();
+				}
+			}, "consumer-" + c).start();
+		}
+
+		assertTrue(done.await(50, TimeUnit.SECONDS));
+		assertEquals(total, consumed.get());
+		for (int i = 0; i < total; i++) {
+			assertEquals("element " + i, 1, seen.get(i));
+		}
+		assertTrue(q.isEmpty());
+	}
+}
@@ -0,0 +1,139 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.wizecore.graylog.GelfSender.Protocol;
+
+public class GelfSenderRegistryTest {
+
+	/**
+	 * Counts close() calls.
+	 */
+	private static class Tracked extends GelfSender {
+		int closed;
+
+		Tracked(int port) {
+			super(Protocol.UDP, "127.0.0.1", port);
+			setJmx(false);
+		}
+
+		@Override
+		public void close() {
+			closed++;
+			super.close();
+		}
+	}
+
+	@Test
+	public void sharesSenderUntilLastRelease() {
+		Tracked a = new Tracked(20001);
+		Tracked b = new Tracked(20001);
+		assertSame(a, GelfSenderRegistry.acquire(a));
+		assertSame(a, GelfSenderRegistry.acquire(b));
+		assertSame(a, GelfSenderRegistry.acquire(new Tracked(20001)));
+
+		GelfSenderRegistry.release(a);
+		GelfSenderRegistry.release(a);
+		assertEquals(0, a.closed);
+		GelfSenderRegistry.release(a);
+		assertEquals(1, a.closed);
+		assertEquals(0, b.closed);
+
+		// Released sender is not handed out again
+		Tracked c = new Tracked(20001);
+		assertSame(c, GelfSenderRegistry.acquire(c));
+		GelfSenderRegistry.release(c);
+		assertEquals(1, c.closed);
+	}
+
+	@Test
+	public void separatesDestinationsAndOptions() {
+		Tracked a = new Tracked(20002);
+		Tracked otherPort = new Tracked(20003);
+		Tracked otherOptions = new Tracked(20002);
+		otherOptions.setAsync(true);
+		assertSame(a, GelfSenderRegistry.acquire(a));
+		assertSame(otherPort, GelfSenderRegistry.acquire(otherPort));
+		assertSame(otherOptions, GelfSenderRegistry.acquire(otherOptions));
+
+		GelfSenderRegistry.release(a);
+		GelfSenderRegistry.release(otherPort);
+		GelfSenderRegistry.release(otherOptions);
+		assertEquals(1, a.closed);
+		assertEquals(1, otherPort.closed);
+		assertEquals(1, otherOptions.closed);
+	}
+
+	/**
+	 * Does nothing with metrics.
+	 */
+	private static class Listener implements GelfMetricsListener {
+		@Override
+		public void sent(GelfSender sender, int bytes) {
+		}
+
+		@Override
+		public void dropped(GelfSender sender, int count) {
+		}
+
+		@Override
+		public void serialized(GelfSender sender, long nanos, int bytes) {
+		}
+
+		@Override
+		public void compressed(GelfSender sender, long nanos, int bytes, int compressedBytes) {
+		}
+
+		@Override
+		public void written(GelfSender sender, long nanos, int bytes) {
+		}
+
+		@Override
+		public void reconnected(GelfSender sender, String endpoint) {
+		}
+	}
+
+	@Test
+	public void separatesMetricsListenerInstances() {
+		Listener listener = new Listener();
+		Tracked a = new Tracked(20006);
+		a.setMetricsListener(listener);
+		Tracked same = new Tracked(20006);
+		same.setMetricsListener(listener);
+		Tracked other = new Tracked(20006);
+		other.setMetricsListener(new Listener());
+		assertSame(a, GelfSenderRegistry.acquire(a));
+		assertSame(a, GelfSenderRegistry.acquire(same));
+		assertSame(other, GelfSenderRegistry.acquire(other));
+
+		GelfSenderRegistry.release(a);
+		GelfSenderRegistry.release(a);
+		GelfSenderRegistry.release(other);
+		assertEquals(1, a.closed);
+		assertEquals(1, other.closed);
+	}
+
+	@Test
+	public void releasesByIdentityAfterOptionsChange() {
+		Tracked a = new Tracked(20004);
+		assertSame(a, GelfSenderRegistry.acquire(a));
+		a.setQueueSize(10);
+		GelfSenderRegistry.release(a);
+		assertEquals(1, a.closed);
+
+		Tracked b = new Tracked(20004);
+		assertNotSame(a, GelfSenderRegistry.acquire(b));
+		GelfSenderRegistry.release(b);
+	}
+
+	@Test
+	public void closesUnregisteredSender() {
+		Tracked a = new Tracked(20005);
+		GelfSenderRegistry.release(a);
+		assertEquals(1, a.closed);
+	}
+}
@@ -0,0 +1,262 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import com.wizecore.graylog.GelfCompressor.Codec;
+import com.wizecore.graylog.GelfSender.Protocol;
+
+/**
+ * Sends messages through loopback UDP and TCP.
+ */
+public class GelfSenderTest {
+
+	private static GelfMessage message(String text) {
+		GelfMessage m = new GelfMessage(text, null, System.currentTimeMillis(), GelfMessage.SYSLOG_INFO, null, 0);
+		m.setHost("test-host");
+		m.setFacility("test");
+		return m;
+	}
+
+	private static DatagramChannel udpServer() throws IOException {
+		DatagramChannel server = DatagramChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		server.socket().setSoTimeout(5000);
+		return server;
+	}
+
+	private static byte[] receive(DatagramChannel server) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(65536);
+		server.receive(b);
+		b.flip();
+		byte[] r = new byte[b.remaining()];
+		b.get(r);
+		return r;
+	}
+
+	private static String gunzip(byte[] b) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(b));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+		return new String(out.toByteArray(), GelfEncoder.UTF8);
+	}
+
+	/**
+	 * Reads null-terminated frames from accepted connection.
+	 */
+	private static List<String> frames(Socket socket, int count) throws IOException {
+		socket.setSoTimeout(5000);
+		InputStream in = socket.getInputStream();
+		List<String> frames = new ArrayList<String>();
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		while (frames.size() < count) {
+			int b = in.read();
+			assertTrue("Connection closed after " + frames.size() + " frames", b >= 0);
+			if (b == 0) {
+				frames.add(new String(frame.toByteArray(), GelfEncoder.UTF8));
+				frame.reset();
+			} else {
+				frame.write(b);
+			}
+		}
+		return frames;
+	}
+
+	private static GelfSender sender(Protocol proto, int port) {
+		GelfSender s = new GelfSender(proto, InetAddress.getLoopbackAddress().getHostAddress(), port);
+		s.setJmx(false);
+		s.setDnsTtl(0);
+		return s;
+	}
+
+	@Test
+	public void spillNameDependsOnOptions() {
+		GelfSender a = sender(Protocol.TCP, 12201);
+		GelfSender b = sender(Protocol.TCP, 12201);
+		assertEquals(a.getSpillName(), b.getSpillName());
+		assertTrue(a.getSpillName(), a.getSpillName().startsWith("tcp-127.0.0.1-12201-"));
+
+		b.setBatchSize(64 * 1024);
+		assertFalse(a.getSpillName().equals(b.getSpillName()));
+		assertFalse(a.getSpillName().equals(sender(Protocol.UDP, 12201).getSpillName()));
+	}
+
+	@Test(timeout = 30000)
+	public void sendsUncompressedUdp() throws IOException {
+		DatagramChannel server = udpServer();
+		GelfSender s = sender(Protocol.UDP, server.socket().getLocalPort());
+		s.setCompression(Codec.NONE);
+		try {
+			s.sendMessage(message("hello udp"));
+			String json = new String(receive(server), GelfEncoder.UTF8);
+			assertTrue(json, json.contains("\"short_message\": \"hello udp\""));
+			assertTrue(json, json.contains("\"host\": \"test-host\""));
+			assertEquals(1, s.getMetrics().getMessagesSent());
+		} finally {
+			s.close();
+			server.close();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void stripesUdpChannelsByThread() throws Exception {
+		final int threads = 8;
+		final int perThread = 20;
+		DatagramChannel server = udpServer();
+		server.socket().setReceiveBufferSize(1024 * 1024);
+		final GelfSender s = sender(Protocol.UDP, server.socket().getLocalPort());
+		s.setCompression(Codec.NONE);
+		try {
+			final CountDownLatch done = new CountDownLatch(threads);
+			final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							for (int i = 0; i < perThread; i++) {
+								s.sendMessage(message("thread " + thread + " message " + i));
+							}
+						} catch (Throwable e) {
+							error.set(e);
+						}
+						done.countDown();
+					}
+				}).start();
+			}
+			assertTrue(done.await(20, TimeUnit.SECONDS));
+			assertEquals(null, error.get());
+
+			// Messages of every thread come from one channel, at most UDP_CHANNELS channels are used
+			Pattern p = Pattern.compile("\"short_message\": \"thread (\\d+) message \\d+\"");
+			Map<String, Set<SocketAddress>> sources = new HashMap<String, Set<SocketAddress>>();
+			Set<SocketAddress> all = new HashSet<SocketAddress>();
+			ByteBuffer b = ByteBuffer.allocate(65536);
+			for (int i = 0; i < threads * perThread; i++) {
+				b.clear();
+				SocketAddress from = server.receive(b);
+				String json = new String(b.array(), 0, b.position(), GelfEncoder.UTF8);
+				Matcher m = p.matcher(json);
+				assertTrue(json, m.find());
+				Set<SocketAddress> l = sources.get(m.group(1));
+				if (l == null) {
+					l = new HashSet<SocketAddress>();
+					sources.put(m.group(1), l);
+				}
+				l.add(from);
+				all.add(from);
+			}
+			assertEquals(threads, sources.size());
+			for (Set<SocketAddress> l : sources.values()) {
+				assertEquals(1, l.size());
+			}
+			assertTrue(all.size() + " channels", all.size() <= GelfSender.UDP_CHANNELS);
+			assertEquals(threads * perThread, s.getMetrics().getMessagesSent());
+		} finally {
+			s.close();
+			server.close();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void sendsGzippedUdpAsynchronously() throws IOException {
+		DatagramChannel server = udpServer();
+		GelfSender s = sender(Protocol.UDP, server.socket().getLocalPort());
+		s.setAsync(true);
+		try {
+			for (int i = 0; i < 3; i++) {
+				s.sendMessage(message("async " + i));
+			}
+			for (int i = 0; i < 3; i++) {
+				String json = gunzip(receive(server));
+				assertTrue(json, json.contains("\"short_message\": \"async " + i + "\""));
+			}
+		} finally {
+			s.close();
+			server.close();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void sendsNullTerminatedTcpFrames() throws IOException {
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		server.setSoTimeout(5000);
+		GelfSender s = sender(Protocol.TCP, server.getLocalPort());
+		try {
+			for (int i = 0; i < 3; i++) {
+				s.sendMessage(message("tcp " + i));
+			}
+
+			Socket socket = server.accept();
+			List<String> frames = frames(socket, 3);
+			for (int i = 0; i < 3; i++) {
+				assertTrue(frames.get(i), frames.get(i).contains("\"short_message\": \"tcp " + i + "\""));
+			}
+			s.close();
+			// Counted only when written to the socket
+			assertEquals(3, s.getMetrics().getMessagesSent());
+			// Closed by I/O thread before it stops
+			assertEquals(-1, socket.getInputStream().read());
+			socket.close();
+		} finally {
+			s.close();
+			server.close();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void sendsBatchedTcpFrames() throws IOException {
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		server.setSoTimeout(5000);
+		GelfSender s = sender(Protocol.TCP, server.getLocalPort());
+		s.setBatchSize(64 * 1024);
+		s.setBatchLinger(10);
+		try {
+			for (int i = 0; i < 10; i++) {
+				s.sendMessage(message("batch " + i));
+			}
+
+			Socket socket = server.accept();
+			List<String> frames = frames(socket, 10);
+			for (int i = 0; i < 10; i++) {
+				assertTrue(frames.get(i), frames.get(i).contains("\"short_message\": \"batch " + i + "\""));
+			}
+			socket.close();
+		} finally {
+			s.close();
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GelfSpillBufferTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static byte[] record(int i, int size) {
+		byte[] b = new byte[size];
+		String s = "record " + i + " ";
+		for (int j = 0; j < size; j++) {
+			b[j] = (byte) s.charAt(j % s.length());
+		}
+		return b;
+	}
+
+	private static void append(GelfSpillBuffer b, byte[] r) {
+		assertTrue(b.append(r, 0, r.length));
+	}
+
+	private File[] segments(File dir) {
+		return dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File d, String n) {
+				return n.endsWith(".spill");
+			}
+		});
+	}
+
+	@Test
+	public void replaysInOrderAcrossSegments() throws IOException {
+		File dir = tmp.newFolder();
+		GelfSpillBuffer b = new GelfSpillBuffer(dir, "test", 1024 * 1024);
+		try {
+			assertTrue(b.isEmpty());
+			assertNull(b.peek());
+
+			// 256K segments, 3 of them
+			for (int i = 0; i < 7000; i++) {
+				append(b, record(i, 100));
+			}
+			assertTrue(segments(dir).length >= 3);
+
+			for (int i = 0; i < 7000; i++) {
+				assertArrayEquals("record " + i, record(i, 100), b.peek());
+				// Peek doesn`t remove
+				assertArrayEquals(record(i, 100), b.peek());
+				b.remove();
+			}
+			assertTrue(b.isEmpty());
+			assertNull(b.peek());
+			assertEquals(0, b.getDropped());
+			// Read segments are deleted, last one is reused
+			assertEquals(1, segments(dir).length);
+		} finally {
+			b.close();
+		}
+	}
+
+	@Test
+	public void evictsOldestSegmentAtMaxSize() throws IOException {
+		File dir = tmp.newFolder();
+		long maxSize = 256 * 1024;
+		GelfSpillBuffer b = new GelfSpillBuffer(dir, "test", maxSize);
+		try {
+			int total = 1000;
+			for (int i = 0; i < total; i++) {
+				append(b, record(i, 1000));
+			}
+
+			long size = 0;
+			for (File f: segments(dir)) {
+				size += f.length();
+			}
+			assertTrue("Spill size " + size, size <= maxSize);
+
+			long dropped = b.getDropped();
+			assertTrue(dropped > 0);
+			// Newest records are kept, in order
+			for (long i = dropped; i < total; i++) {
+				assertArrayEquals("record " + i, record((int) i, 1000), b.peek());
+				b.remove();
+			}
+			assertTrue(b.isEmpty());
+		} finally {
+			b.close();
+		}
+	}
+
+	@Test
+	public void dropsRecordLargerThanSegment() throws IOException {
+		GelfSpillBuffer b = new GelfSpillBuffer(tmp.newFolder(), "test", 256 * 1024);
+		try {
+			byte[] r = record(0, 64 * 1024);
+			assertFalse(b.append(r, 0, r.length));
+			assertEquals(1, b.getDropped());
+			assertTrue(b.isEmpty());
+		} finally {
+			b.close();
+		}
+	}
+
+	@Test
+	public void roundsUpSmallMaxSize() throws IOException {
+		File dir = tmp.newFolder();
+		GelfSpillBuffer b = new GelfSpillBuffer(dir, "test", 1000);
+		try {
+			for (int i = 0; i < 60; i++) {
+				append(b, record(i, 1000));
+			}
+			assertEquals(0, b.getDropped());
+			assertEquals(1, segments(dir).length);
+			assertEquals(GelfSpillBuffer.MIN_SIZE, segments(dir)[0].length());
+			for (int i = 0; i < 60; i++) {
+				assertArrayEquals("record " + i, record(i, 1000), b.peek());
+				b.remove();
+			}
+		} finally {
+			b.close();
+		}
+	}
+
+	@Test
+	public void recoversAfterReopen() throws IOException {
+		File dir = tmp.newFolder();
+		GelfSpillBuffer b = new GelfSpillBuffer(dir, "test", 1024 * 1024);
+		for (int i = 0; i < 10; i++) {
+			append(b, record(i, 200));
+		}
+		for (int i = 0; i < 3; i++) {
+			b.remove();
+		}
+		b.close();
+
+		// Other name doesn`t see these records
+		GelfSpillBuffer other = new GelfSpillBuffer(dir, "other", 1024 * 1024);
+		assertTrue(other.isEmpty());
+		other.close();
+
+		b = new GelfSpillBuffer(dir, "test", 1024 * 1024);
+		try {
+			for (int i = 3; i < 10; i++) {
+				assertArrayEquals("record " + i, record(i, 200), b.peek());
+				b.remove();
+			}
+			assertTrue(b.isEmpty());
+
+			// Appends continue after reopen
+			append(b, record(10, 200));
+			assertArrayEquals(record(10, 200), b.peek());
+		} finally {
+			b.close();
+		}
+	}
+
+	@Test
+	public void rejectsSecondBufferWithSameNameInThisJvm() throws IOException {
+		File dir = tmp.newFolder();
+		GelfSpillBuffer b = new GelfSpillBuffer(dir, "test", 1024 * 1024);
+		try {
+			new GelfSpillBuffer(dir, "test", 1024 * 1024);
+			fail("Opened locked spill buffer");
+		} catch (IOException e) {
+			// Expected
+		} finally {
+			b.close();
+		}
+
+		// Lock is released on close
+		new GelfSpillBuffer(dir, "test", 1024 * 1024).close();
+	}
+}
@@ -0,0 +1,135 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class GelfStackTraceRendererTest {
+
+	private static String printed(Throwable t) {
+		StringWriter sw = new StringWriter();
+		PrintWriter pw = new PrintWriter(sw);
+		t.printStackTrace(pw);
+		pw.flush();
+		String s = sw.toString().replace(System.getProperty("line.separator"), "\n");
+		// Renderer doesn`t end with line separator
+		return s.substring(0, s.length() - 1);
+	}
+
+	private static String rendered(GelfStackTraceRenderer r, Throwable t) {
+		return r.render(t).toString();
+	}
+
+	private static String escaped(GelfStackTraceRenderer.StackTrace st) {
+		GelfEncoder e = new GelfEncoder();
+		st.writeTo(e);
+		return e.toString();
+	}
+
+	private static void assertSameAsPrinted(Throwable t) {
+		GelfStackTraceRenderer r = new GelfStackTraceRenderer();
+		String expected = printed(t);
+		assertEquals(expected, rendered(r, t));
+		// From cache
+		assertEquals(expected, rendered(r, t));
+		GelfStackTraceRenderer.StackTrace st = r.render(t);
+		assertEquals(expected.length(), st.length());
+		GelfEncoder e = new GelfEncoder();
+		e.writeEscaped(expected, 0, expected.length());
+		assertEquals(e.toString(), escaped(st));
+	}
+
+	/**
+	 * Throws from specified stack depth, so exceptions share the bottom frames.
+	 */
+	private static Exception nested(int depth, Exception e) {
+		if (depth > 0) {
+			return nested(depth - 1, e);
+		}
+		e.fillInStackTrace();
+		return e;
+	}
+
+	@Test
+	public void rendersSingleException() {
+		assertSameAsPrinted(new IllegalStateException("Failed \"quoted\"\nsecond line"));
+		assertSameAsPrinted(new RuntimeException());
+	}
+
+	@Test
+	public void rendersCausesWithCommonFrames() {
+		Exception root = nested(3, new IllegalArgumentException("root"));
+		Exception middle = nested(1, new IllegalStateException("middle", root));
+		Exception top = new RuntimeException("top", middle);
+		assertTrue(printed(top).contains("... "));
+		assertSameAsPrinted(top);
+	}
+
+	@Test
+	public void rendersSuppressedExceptions() {
+		Exception top = new RuntimeException("top");
+		Exception suppressed = nested(2, new IllegalStateException("suppressed", nested(4, new IllegalArgumentException("cause"))));
+		suppressed.addSuppressed(new Exception("nested suppressed"));
+		top.addSuppressed(suppressed);
+		top.addSuppressed(new Exception("second"));
+		top.initCause(nested(1, new Exception("cause")));
+		assertTrue(printed(top).contains("Suppressed: "));
+		assertSameAsPrinted(top);
+	}
+
+	@Test
+	public void keepsFramesOfSameStackTraceWithDifferentMessages() {
+		GelfStackTraceRenderer r = new GelfStackTraceRenderer();
+		for (int i = 0; i < 3; i++) {
+			Exception e = new IllegalStateException("attempt " + i);
+			assertEquals(printed(e), rendered(r, e));
+		}
+	}
+
+	@Test
+	public void limitsDepthAndCauses() {
+		Exception root = nested(10, new IllegalArgumentException("root"));
+		Exception top = nested(10, new RuntimeException("top", new IllegalStateException("middle", root)));
+
+		String s = rendered(new GelfStackTraceRenderer(2, 0, null, 16), top);
+		String[] lines = s.split("\n");
+		assertEquals("java.lang.RuntimeException: top", lines[0]);
+		assertTrue(lines[1], lines[1].startsWith("\tat " + GelfStackTraceRendererTest.class.getName() + ".nested("));
+		assertTrue(lines[3], lines[3].matches("\t\\.\\.\\. \\d+ frames omitted"));
+		assertTrue(s, s.contains("\nCaused by: java.lang.IllegalArgumentException: root"));
+
+		s = rendered(new GelfStackTraceRenderer(0, 1, null, 16), top);
+		assertTrue(s, s.contains("\nCaused by: java.lang.IllegalStateException: middle"));
+		assertTrue(s, s.endsWith("\nCaused by: ... 1 more"));
+	}
+
+	@Test
+	public void foldsFramesByPrefix() {
+		Exception e = new RuntimeException("folded");
+		String s = rendered(new GelfStackTraceRenderer(0, 0, "org.junit., sun., jdk.", 16), e);
+		String[] lines = s.split("\n");
+		// Top frame is never folded
+		assertTrue(lines[1], lines[1].startsWith("\tat " + GelfStackTraceRendererTest.class.getName() + "."));
+		assertTrue(s, s.contains(" frames folded"));
+		assertTrue(s, !s.contains("at org.junit."));
+	}
+
+	@Test
+	public void rendersCircularReference() {
+		Exception a = new IllegalStateException("a");
+		Exception b = nested(2, new IllegalArgumentException("b"));
+		a.initCause(b);
+		b.initCause(a);
+		assertTrue(printed(a).contains("CIRCULAR REFERENCE"));
+		assertSameAsPrinted(a);
+
+		Exception s = new RuntimeException("suppressed self");
+		Exception top = new Exception("top", s);
+		s.addSuppressed(top);
+		assertSameAsPrinted(top);
+	}
+}
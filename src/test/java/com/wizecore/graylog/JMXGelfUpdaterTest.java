@@ -0,0 +1,56 @@
+package com.wizecore.graylog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class JMXGelfUpdaterTest {
+
+	private static Map<String, Object> update(GelfMessageUpdater u) {
+		GelfMessage m = new GelfMessage();
+		u.update(m);
+		return m.getAdditonalFields();
+	}
+
+	@Test
+	public void addsProcessMetadata() {
+		RuntimeMXBean r = ManagementFactory.getRuntimeMXBean();
+		Map<String, Object> f = update(new JMXGelfUpdater());
+		assertEquals(r.getName().substring(0, r.getName().indexOf('@')), f.get("pid"));
+		assertEquals(System.getProperty("java.version"), f.get("jvm_version"));
+		assertEquals(r.getStartTime(), f.get("jvm_start_time"));
+		String command = System.getProperty("sun.java.command");
+		if (command != null && command.trim().length() > 0) {
+			assertTrue(command.trim().startsWith((String) f.get("main_class")));
+		}
+	}
+
+	@Test
+	public void addsSampledJvmStats() {
+		Map<String, Object> f = update(new JMXGelfUpdater());
+		assertTrue((Long) f.get("jvm_heap_used") > 0);
+		assertTrue((Long) f.get("jvm_gc_count") >= 0);
+		assertTrue((Long) f.get("jvm_gc_time") >= 0);
+		assertTrue((Long) f.get("jvm_threads") > 0);
+		if (f.containsKey("jvm_cpu_load")) {
+			double load = (Double) f.get("jvm_cpu_load");
+			assertTrue("CPU load " + load, load >= 0 && load <= 1);
+		}
+	}
+
+	@Test
+	public void reusesCachedValues() {
+		Map<String, Object> a = update(new JMXGelfUpdater());
+		Map<String, Object> b = update(new JMXGelfUpdater());
+		assertSame(a.get("pid"), b.get("pid"));
+		assertSame(a.get("jvm_version"), b.get("jvm_version"));
+		assertSame(a.get("main_class"), b.get("main_class"));
+		assertEquals(a.keySet(), b.keySet());
+	}
+}